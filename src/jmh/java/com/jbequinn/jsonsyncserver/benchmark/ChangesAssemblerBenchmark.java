@@ -0,0 +1,69 @@
+package com.jbequinn.jsonsyncserver.benchmark;
+
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.service.ChangesAssembler;
+import com.jbequinn.jsonsyncserver.service.JsonObjectMerger;
+import com.jbequinn.jsonsyncserver.service.SyncRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Everything a sync does in memory before writing: parsing the request and building the changes, half of the items
+ * being new and the other half merged with their stored versions
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChangesAssemblerBenchmark {
+	@Param({"10", "1000", "10000", "100000"})
+	private int size;
+
+	private ChangesAssembler changesAssembler;
+	private JsonObject body;
+	private List<SyncEntity> storedItems;
+
+	@Setup
+	public void setUp() {
+		changesAssembler = new ChangesAssembler(new JsonObjectMerger());
+		body = Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("changes", Json.createObjectBuilder()
+						.add("items", Fixtures.toJsonArray(Fixtures.changedItems(size)))
+						.add("tags", JsonValue.EMPTY_JSON_ARRAY)
+						.add("deletions", JsonValue.EMPTY_JSON_ARRAY))
+				.build();
+		// as the repository returns them
+		storedItems = Fixtures.storedItems(size).subList(0, size / 2).stream()
+				.map(item -> SyncEntity.of(EntitySchema.ITEM, item))
+				.collect(toList());
+	}
+
+	@Benchmark
+	public Object assembleChanges() {
+		var request = SyncRequest.from(body);
+		var changes = changesAssembler.newChanges(request);
+		changesAssembler.addItems(changes, request.getItems(), storedItems);
+		return changes;
+	}
+}
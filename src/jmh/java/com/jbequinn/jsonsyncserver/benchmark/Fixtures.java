@@ -0,0 +1,62 @@
+package com.jbequinn.jsonsyncserver.benchmark;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payloads of any size, made by copying the items of the fixtures used by the tests with new ids
+ */
+final class Fixtures {
+	private Fixtures() {
+	}
+
+	/**
+	 * Items as stored by a previous push, from file.json
+	 */
+	static List<JsonObject> storedItems(int count) {
+		return copies(read("file.json").getJsonArray("items"), count, 0);
+	}
+
+	/**
+	 * Items as sent in a sync, from changes.json. They have the same ids as the stored ones, and newer timestamps, so
+	 * that merging them changes something
+	 */
+	static List<JsonObject> changedItems(int count) {
+		return copies(read("changes.json").getJsonObject("changes").getJsonArray("items"), count, 1000);
+	}
+
+	static JsonArray toJsonArray(List<JsonObject> jsonObjects) {
+		var builder = Json.createArrayBuilder();
+		jsonObjects.forEach(builder::add);
+		return builder.build();
+	}
+
+	private static List<JsonObject> copies(JsonArray templates, int count, long timestampShift) {
+		var copies = new ArrayList<JsonObject>(count);
+		for (int i = 0; i < count; i++) {
+			var template = templates.getJsonObject(i % templates.size());
+			var id = String.format("%032X", i);
+
+			var builder = Json.createObjectBuilder(template)
+					.add("id", id);
+			template.forEach((key, value) -> {
+				if ((key.endsWith("_ts") || key.equals("created_on")) && value.getValueType() == JsonValue.ValueType.NUMBER) {
+					builder.add(key, ((JsonNumber) value).longValue() + timestampShift);
+				}
+			});
+			copies.add(builder.build());
+		}
+		return copies;
+	}
+
+	private static JsonObject read(String resource) {
+		try (var reader = Json.createReader(Fixtures.class.getClassLoader().getResourceAsStream(resource))) {
+			return reader.readObject();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.jbequinn.jsonsyncserver.benchmark;
+
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.repository.JsonObjectCodec;
+import com.jbequinn.jsonsyncserver.repository.SyncEntityCodec;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.json.JsonObject;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the items between JSON-P and BSON, done for every element written to or read from Mongo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonObjectCodecBenchmark {
+	@Param({"10", "1000", "10000", "100000"})
+	private int size;
+
+	private JsonObjectCodec codec;
+	private SyncEntityCodec entityCodec;
+	private List<JsonObject> items;
+	private List<byte[]> encodedItems;
+
+	@Setup
+	public void setUp() {
+		codec = new JsonObjectCodec();
+		entityCodec = new SyncEntityCodec(EntitySchema.ITEM);
+		items = Fixtures.storedItems(size);
+		encodedItems = new ArrayList<>(size);
+		items.forEach(item -> encodedItems.add(encode(item).toByteArray()));
+	}
+
+	@Benchmark
+	public void encodeItems(Blackhole blackhole) {
+		for (var item : items) {
+			blackhole.consume(encode(item));
+		}
+	}
+
+	@Benchmark
+	public void decodeItems(Blackhole blackhole) {
+		for (var encodedItem : encodedItems) {
+			try (var reader = new BsonBinaryReader(ByteBuffer.wrap(encodedItem))) {
+				blackhole.consume(codec.decode(reader, DecoderContext.builder().build()));
+			}
+		}
+	}
+
+	/**
+	 * The same documents read as the entities that a sync merges with
+	 */
+	@Benchmark
+	public void decodeItemEntities(Blackhole blackhole) {
+		for (var encodedItem : encodedItems) {
+			try (var reader = new BsonBinaryReader(ByteBuffer.wrap(encodedItem))) {
+				blackhole.consume(entityCodec.decode(reader, DecoderContext.builder().build()));
+			}
+		}
+	}
+
+	private BasicOutputBuffer encode(JsonObject item) {
+		var buffer = new BasicOutputBuffer();
+		try (var writer = new BsonBinaryWriter(buffer)) {
+			codec.encode(writer, item, EncoderContext.builder().build());
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,69 @@
+package com.jbequinn.jsonsyncserver.benchmark;
+
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.service.JsonObjectMerger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.json.JsonObject;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Merges every item of a sync with its stored version, like a sync where all the items sent already exist
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark {
+	@Param({"10", "1000", "10000", "100000"})
+	private int size;
+
+	private JsonObjectMerger merger;
+	private List<JsonObject> storedItems;
+	private List<JsonObject> changedItems;
+	private List<SyncEntity> storedEntities;
+	private List<SyncEntity> changedEntities;
+
+	@Setup
+	public void setUp() {
+		merger = new JsonObjectMerger();
+		storedItems = Fixtures.storedItems(size);
+		changedItems = Fixtures.changedItems(size);
+		storedEntities = storedItems.stream().map(item -> SyncEntity.of(EntitySchema.ITEM, item)).collect(toList());
+		changedEntities = changedItems.stream().map(item -> SyncEntity.of(EntitySchema.ITEM, item)).collect(toList());
+	}
+
+	@Benchmark
+	public void mergeItems(Blackhole blackhole) {
+		for (int i = 0; i < size; i++) {
+			blackhole.consume(merger.mergeItem(changedItems.get(i), storedItems.get(i)));
+		}
+	}
+
+	/**
+	 * The merge of a sync, where the items are already entities
+	 */
+	@Benchmark
+	public void mergeItemEntities(Blackhole blackhole) {
+		for (int i = 0; i < size; i++) {
+			blackhole.consume(merger.merge(changedEntities.get(i), storedEntities.get(i)));
+		}
+	}
+}
@@ -3,12 +3,217 @@ package com.jbequinn.jsonsyncserver;
 import io.quarkus.arc.config.ConfigProperties;
 import lombok.Data;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Positive;
 
+/**
+ * The settings under "application". Those with a default are boxed, as Quarkus only falls back to the initial value
+ * of the fields that are not primitive
+ */
 @ConfigProperties(prefix = "application")
 @Data
 public class JsonSyncServerProperties {
   @NotBlank
   private String key;
+
+  /**
+   * Where the data is stored: "mongo" in the Mongo database configured by Quarkus, "embedded" in segment files on the
+   * local disk, with no external database. The reactive sync needs "mongo"
+   */
+  private String storage = "mongo";
+
+  /**
+   * Name of the Mongo database, used by both the blocking and the reactive clients
+   */
+  @NotBlank
+  private String databaseName = "everdo";
+
+  /**
+   * Directory of the segment files of the "embedded" storage
+   */
+  @NotBlank
+  private String embeddedStorageDirectory = "data";
+
+  /**
+   * Size in bytes of each segment file of the "embedded" storage. They are mapped in memory whole
+   */
+  @Min(4096)
+  private Integer embeddedSegmentSize = 64 * 1024 * 1024;
+
+  /**
+   * How often the "embedded" storage checks whether it is worth compacting
+   */
+  @Min(1)
+  private Long embeddedCompactionIntervalSeconds = 60L;
+
+  /**
+   * Fraction of the segment files taken by overwritten or deleted elements above which the "embedded" storage is
+   * compacted
+   */
+  private Double embeddedCompactionGarbageRatio = 0.5;
+
+  /**
+   * Whether the items and tags looked up by id are cached in memory. It only sees the writes of this instance, so it
+   * must be disabled when several instances share a database
+   */
+  private Boolean entityCache = true;
+
+  /**
+   * Maximum number of items, and of tags, in the entity cache
+   */
+  @Min(1)
+  private Integer entityCacheMaxSize = 10_000;
+
+  /**
+   * How long an element stays in the entity cache after it was loaded from the database or written. Reading it from
+   * the cache doesn't make it stay longer
+   */
+  @Min(1)
+  private Long entityCacheTimeToLiveSeconds = 300L;
+
+  /**
+   * Maximum number of write operations sent to Mongo in a single bulk write
+   */
+  @Min(1)
+  private Integer bulkWriteBatchSize = 500;
+
+  /**
+   * How the items and tags merged in a sync are written: "replace" replaces the whole document, "diff" only sets and
+   * unsets the fields that changed
+   */
+  private String updateMode = "replace";
+
+  /**
+   * Where the items and tags of a sync are merged with the stored ones: "application" reads them and merges them
+   * here, "database" sends the merge rules to Mongo as pipeline updates, without reading anything
+   */
+  private String mergeMode = "application";
+
+  /**
+   * Number of elements parsed from a /push request before they are inserted
+   */
+  @Min(1)
+  private Integer pushBatchSize = 1000;
+
+  /**
+   * Whether the readiness check fails when a query run on every sync is still planned as a collection scan.
+   * Otherwise it is only logged as a warning
+   */
+  private Boolean failReadinessOnCollectionScan = false;
+
+  /**
+   * How the blocking repository calls are run: "platform" runs them in a bounded pool of threads, "virtual" in a new
+   * virtual thread each, along with the /sync requests themselves. The "virtual" mode needs a JVM with virtual threads,
+   * the server fails to start with it otherwise
+   */
+  private String repositoryExecutorMode = "platform";
+
+  /**
+   * Number of threads running the blocking repository calls, in the "platform" mode
+   */
+  @Min(1)
+  private Integer repositoryExecutorThreads = 16;
+
+  /**
+   * Maximum number of repository calls waiting for a thread
+   */
+  @Min(1)
+  private Integer repositoryExecutorQueueCapacity = 1000;
+
+  /**
+   * What happens to a repository call when the queue is full: "caller-runs" runs it in the calling thread, "abort"
+   * fails it
+   */
+  private String repositoryExecutorRejectionPolicy = "caller-runs";
+
+  /**
+   * Whether the response of a sync starts to be written before all its elements are found. An error finding them
+   * can then only cut the response short, instead of failing the request
+   */
+  private Boolean streamSyncResponse = false;
+
+  /**
+   * Whether /sync runs on the reactive Mongo driver, without blocking a thread per request. Otherwise it runs on the
+   * blocking driver, like every other endpoint
+   */
+  private Boolean reactiveSync = false;
+
+  /**
+   * Whether the writes of the syncs arriving at about the same time are gathered and sent to Mongo together
+   */
+  private Boolean syncWriteCoalescing = false;
+
+  /**
+   * How long the first write of a batch waits for others before the batch is sent
+   */
+  @Min(1)
+  private Long syncWriteCoalescingWindowMillis = 5L;
+
+  /**
+   * Number of syncs whose writes are sent right away, without waiting for the end of the window
+   */
+  @Min(1)
+  private Integer syncWriteCoalescingMaxBatch = 50;
+
+  /**
+   * Largest page size a client can ask for in a paginated sync
+   */
+  @Min(1)
+  private Integer maxSyncPageSize = 5000;
+
+  /**
+   * Whether the body of a /pull is kept gzipped in memory between writes, and served with an entity tag. The whole
+   * data set is then held on the heap, and only the writes of this instance refresh it: single instance only
+   */
+  private Boolean pullSnapshotCache = false;
+
+  /**
+   * Which deletions are removed periodically: "off" keeps them all, "retention" removes those older than the retention
+   * period, "device-cursors" also those that every device seen within the retention period has already received
+   */
+  private String tombstoneCompaction = "off";
+
+  /**
+   * How long a deletion is kept for the clients that haven't received it yet
+   */
+  @Min(1)
+  private Long tombstoneRetentionDays = 90L;
+
+  @Min(1)
+  private Long tombstoneCompactionIntervalMinutes = 60L;
+
+  /**
+   * How long the changes are kept in the change log. A client whose cursor is older falls back to the timestamps
+   */
+  @Min(1)
+  private Long changeLogRetentionDays = 30L;
+
+  @Min(1)
+  private Long changeLogTrimIntervalMinutes = 60L;
+
+  /**
+   * Whether the requests to /sync, /push and /pull above the limits below are answered right away with a 429. Off by
+   * default: with a single api.key, the limits per key apply to all the clients together
+   */
+  private Boolean admissionControl = false;
+
+  /**
+   * Number of requests to each of those endpoints handled at the same time
+   */
+  @Min(1)
+  private Integer admissionMaxConcurrentRequests = 8;
+
+  /**
+   * Requests per second that each key can make to each of those endpoints, on average
+   */
+  @Positive
+  private Double admissionRequestsPerSecond = 5.0;
+
+  /**
+   * Requests that each key can make to each of those endpoints in a row, above the average rate
+   */
+  @Min(1)
+  private Integer admissionBurst = 20;
 }
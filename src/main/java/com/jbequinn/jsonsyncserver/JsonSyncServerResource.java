@@ -1,32 +1,43 @@
 package com.jbequinn.jsonsyncserver;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.jbequinn.jsonsyncserver.model.SyncResponse;
 import com.jbequinn.jsonsyncserver.service.JsonSyncServerService;
+import com.jbequinn.jsonsyncserver.service.PullSnapshotCache;
+import com.jbequinn.jsonsyncserver.service.ReactiveJsonSyncServerService;
 import lombok.extern.flogger.Flogger;
 
-import javax.json.Json;
 import javax.json.JsonObject;
-import javax.json.JsonReader;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 @Flogger
 @Path("/")
 public class JsonSyncServerResource {
 
 	private final JsonSyncServerService service;
-	private final ObjectMapper objectMapper;
+	private final ReactiveJsonSyncServerService reactiveService;
+	private final PullSnapshotCache pullSnapshotCache;
+	private final JsonSyncServerProperties properties;
+	private final WireFormats wireFormats;
 
-	public JsonSyncServerResource(JsonSyncServerService service, ObjectMapper objectMapper) {
+	public JsonSyncServerResource(JsonSyncServerService service, ReactiveJsonSyncServerService reactiveService,
+			PullSnapshotCache pullSnapshotCache, JsonSyncServerProperties properties, WireFormats wireFormats) {
 		this.service = service;
-		this.objectMapper = objectMapper;
+		this.reactiveService = reactiveService;
+		this.pullSnapshotCache = pullSnapshotCache;
+		this.properties = properties;
+		this.wireFormats = wireFormats;
 	}
 
 	@GET
@@ -45,45 +56,94 @@ public class JsonSyncServerResource {
 
 	@POST
 	@Path("/pull")
-	@Produces(MediaType.APPLICATION_JSON)
-	public Response pull() throws JsonProcessingException {
+	@Produces({MediaType.APPLICATION_JSON, WireFormats.APPLICATION_SMILE, WireFormats.APPLICATION_CBOR})
+	public Response pull(@Context HttpHeaders headers,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) throws IOException {
 		log.atFinest()
 				.log("Pull invoked");
 
+		var responseType = wireFormats.responseType(headers);
+
+		// the snapshot is only kept in JSON, which is what the Everdo client asks for
+		if (properties.getPullSnapshotCache() && MediaType.APPLICATION_JSON_TYPE.equals(responseType)) {
+			var snapshot = pullSnapshotCache.get();
+			// the body depends on the Accept-Encoding, for the caches between the clients and the server
+			if (snapshot.matches(ifNoneMatch)) {
+				return Response.notModified(snapshot.getEntityTag())
+						.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+						.build();
+			}
+
+			var response = Response.ok(snapshot, responseType)
+					.tag(snapshot.getEntityTag())
+					.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+			if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+				response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+			}
+			return response.build();
+		}
+
+		var objectMapper = wireFormats.mapperFor(responseType);
+		StreamingOutput output = outputStream -> {
+			var generator = objectMapper.getFactory().createGenerator(outputStream)
+					.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			service.writeAllItemsTagsAndDeletions(generator);
+		};
+
 		return Response
-				.ok(objectMapper.writeValueAsString(service.findAllItemsTagsAndDeletions()))
+				.ok(output, responseType)
 				.build();
 	}
 
 	@POST
 	@Path("/push")
-	@Consumes(MediaType.APPLICATION_JSON)
-	public Response push(@Context UriInfo ui, String body) throws IOException {
+	@Consumes({MediaType.APPLICATION_JSON, WireFormats.APPLICATION_SMILE, WireFormats.APPLICATION_CBOR})
+	public Response push(@Context UriInfo ui, @Context HttpHeaders headers, InputStream body) throws IOException {
 		log.atFinest()
 				.log("Push invoked: %s?%s", ui.getAbsolutePath(), ui.getRequestUri());
 
-		/*
-		JsonReader jsonReader = Json.createReader(new StringReader(body));
-		JsonObject object = jsonReader.readObject();
-		jsonReader.close();
-		 */
-
-		service.saveAllItemsTagsAndDeletions(objectMapper.readValue(body, JsonObject.class));
+		try (var parser = wireFormats.requestMapper(headers).getFactory().createParser(body)) {
+			service.saveAllItemsTagsAndDeletions(parser);
+		}
 
 		return Response.ok().build();
 	}
 
 	@POST
 	@Path("/sync")
-	@Produces(MediaType.APPLICATION_JSON)
-	@Consumes(MediaType.APPLICATION_JSON)
-	public Response sync(@Context UriInfo ui, String body) throws Exception {
+	@Produces({MediaType.APPLICATION_JSON, WireFormats.APPLICATION_SMILE, WireFormats.APPLICATION_CBOR})
+	@Consumes({MediaType.APPLICATION_JSON, WireFormats.APPLICATION_SMILE, WireFormats.APPLICATION_CBOR})
+	public CompletionStage<Response> sync(@Context UriInfo ui, @Context HttpHeaders headers, InputStream body)
+			throws Exception {
 		log.atFinest()
 				.log("Sync invoked: %s?%s", ui.getAbsolutePath(), ui.getRequestUri());
 
-		return Response
-				.ok(objectMapper.writeValueAsString(service.sync(objectMapper.readValue(body, JsonObject.class))))
-				.build();
+		var request = wireFormats.requestMapper(headers).readValue(body, JsonObject.class);
+		var responseType = wireFormats.responseType(headers);
+		var objectMapper = wireFormats.mapperFor(responseType);
+
+		// both the reactive sync and the sync on a virtual thread release the request thread until the response is ready
+		CompletionStage<SyncResponse> syncResponse;
+		if (properties.getReactiveSync()) {
+			syncResponse = reactiveService.sync(request);
+		} else if (service.runsOnVirtualThreads()) {
+			syncResponse = service.syncOnVirtualThread(request);
+		} else {
+			syncResponse = CompletableFuture.completedFuture(service.sync(request));
+		}
+
+		return syncResponse.thenApply(response -> {
+			StreamingOutput output = outputStream -> {
+				var generator = objectMapper.getFactory().createGenerator(outputStream)
+						.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+				service.writeSyncResponse(response, generator);
+			};
+
+			return Response
+					.ok(output, responseType)
+					.build();
+		});
 	}
 
 	@POST
@@ -0,0 +1,30 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.repository.UpdateMode;
+import com.jbequinn.jsonsyncserver.service.MergeMode;
+import io.quarkus.runtime.StartupEvent;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+
+/**
+ * Parses the modes given as strings at startup, and checks that the settings go together, so that a mistake stops the
+ * server instead of failing the first sync that needs them
+ */
+@ApplicationScoped
+public class PropertiesValidator {
+	private final JsonSyncServerProperties properties;
+
+	public PropertiesValidator(JsonSyncServerProperties properties) {
+		this.properties = properties;
+	}
+
+	void onStart(@Observes StartupEvent event) {
+		UpdateMode.of(properties.getUpdateMode());
+		MergeMode.of(properties.getMergeMode());
+		if (properties.getReactiveSync() && "embedded".equals(properties.getStorage())) {
+			throw new IllegalArgumentException("The reactive sync needs the mongo storage, it can't be used with the "
+					+ "embedded one");
+		}
+	}
+}
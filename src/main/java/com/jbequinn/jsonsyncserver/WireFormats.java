@@ -0,0 +1,71 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr353.JSR353Module;
+
+import javax.inject.Singleton;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * The formats in which the sync endpoints read and write. JSON is what the Everdo client speaks, Smile and CBOR are
+ * binary encodings of the same documents, for the clients that ask for them
+ */
+@Singleton
+public class WireFormats {
+	public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+	public static final MediaType APPLICATION_SMILE_TYPE = MediaType.valueOf(APPLICATION_SMILE);
+	public static final String APPLICATION_CBOR = "application/cbor";
+	public static final MediaType APPLICATION_CBOR_TYPE = MediaType.valueOf(APPLICATION_CBOR);
+
+	private final ObjectMapper jsonMapper;
+	private final ObjectMapper smileMapper;
+	private final ObjectMapper cborMapper;
+
+	public WireFormats(ObjectMapper objectMapper) {
+		this.jsonMapper = objectMapper;
+		this.smileMapper = new ObjectMapper(new SmileFactory()).registerModule(new JSR353Module());
+		this.cborMapper = new ObjectMapper(new CBORFactory()).registerModule(new JSR353Module());
+	}
+
+	/**
+	 * The mapper to read a request body with, JSON if the request has no content type
+	 */
+	public ObjectMapper requestMapper(HttpHeaders headers) {
+		return mapperFor(headers.getMediaType());
+	}
+
+	/**
+	 * The first of the formats that the request accepts, JSON if none of them is accepted explicitly
+	 */
+	public MediaType responseType(HttpHeaders headers) {
+		for (var acceptable : headers.getAcceptableMediaTypes()) {
+			// JSON goes first, so that wildcards get it
+			if (acceptable.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+				return MediaType.APPLICATION_JSON_TYPE;
+			}
+			if (acceptable.isCompatible(APPLICATION_SMILE_TYPE)) {
+				return APPLICATION_SMILE_TYPE;
+			}
+			if (acceptable.isCompatible(APPLICATION_CBOR_TYPE)) {
+				return APPLICATION_CBOR_TYPE;
+			}
+		}
+		return MediaType.APPLICATION_JSON_TYPE;
+	}
+
+	public ObjectMapper mapperFor(MediaType mediaType) {
+		if (mediaType == null) {
+			return jsonMapper;
+		}
+		if (mediaType.isCompatible(APPLICATION_SMILE_TYPE) && !mediaType.isWildcardType()) {
+			return smileMapper;
+		}
+		if (mediaType.isCompatible(APPLICATION_CBOR_TYPE) && !mediaType.isWildcardType()) {
+			return cborMapper;
+		}
+		return jsonMapper;
+	}
+}
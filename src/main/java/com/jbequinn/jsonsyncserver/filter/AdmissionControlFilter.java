@@ -0,0 +1,55 @@
+package com.jbequinn.jsonsyncserver.filter;
+
+import lombok.extern.flogger.Flogger;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Answers with a 429, and the seconds to wait in {@code Retry-After}, the requests above the limits of the
+ * {@link AdmissionController}. It runs after the {@link ParameterAuthenticationFilter}, so only the requests with a
+ * valid key count. The slot of an admitted request is given back by the {@link AdmissionReleaseListener}.
+ */
+@Flogger
+@Provider
+@Priority(Priorities.USER + 100)
+public class AdmissionControlFilter implements ContainerRequestFilter {
+	static final String ADMISSION_ATTRIBUTE = AdmissionControlFilter.class.getName() + ".admission";
+
+	@Inject
+	AdmissionController admissionController;
+
+	@Context
+	HttpServletRequest servletRequest;
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		var endpoint = endpointOf(requestContext.getUriInfo().getPath());
+		if (!admissionController.isLimited(endpoint)) {
+			return;
+		}
+
+		var admission = admissionController.admit(servletRequest.getParameter("key"), endpoint);
+		if (admission.isAdmitted()) {
+			servletRequest.setAttribute(ADMISSION_ATTRIBUTE, admission);
+		} else {
+			requestContext.abortWith(Response.status(Response.Status.TOO_MANY_REQUESTS)
+					.header(HttpHeaders.RETRY_AFTER, admission.getRetryAfterSeconds())
+					.build());
+		}
+	}
+
+	private static String endpointOf(String path) {
+		var start = path.startsWith("/") ? 1 : 0;
+		var end = path.indexOf('/', start);
+		return path.substring(start, end < 0 ? path.length() : end);
+	}
+}
@@ -0,0 +1,157 @@
+package com.jbequinn.jsonsyncserver.filter;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Limits of the endpoints that do the heavy work: how many of their requests are handled at the same time, and how
+ * often each API key can call them. A request above the limits is rejected right away rather than queued, so that a
+ * client retrying in a loop can't take the Mongo connections and the threads that the rest of the clients need.
+ * <p>
+ * There is a token bucket per key and endpoint. Only the keys that passed the authentication get one, so there are as
+ * many as valid keys, and they are never evicted.
+ */
+@ApplicationScoped
+@Flogger
+public class AdmissionController {
+	private static final String NAME = "admission";
+	private static final Set<String> LIMITED_ENDPOINTS = Set.of("sync", "push", "pull");
+
+	private final JsonSyncServerProperties properties;
+	private final Map<String, EndpointLimits> endpoints;
+
+	public AdmissionController(JsonSyncServerProperties properties, MetricRegistry metricRegistry) {
+		this.properties = properties;
+		endpoints = LIMITED_ENDPOINTS.stream()
+				.collect(toMap(identity(), endpoint -> new EndpointLimits(endpoint, metricRegistry)));
+
+		if (properties.getAdmissionControl()) {
+			log.atInfo().log("Admission control on %s: %d concurrent requests each, %.1f requests/s per key in bursts of %d",
+					LIMITED_ENDPOINTS, properties.getAdmissionMaxConcurrentRequests(),
+					properties.getAdmissionRequestsPerSecond(), properties.getAdmissionBurst());
+		}
+	}
+
+	/**
+	 * Whether the requests to the endpoint, the first segment of its path, go through {@link #admit(String, String)}
+	 */
+	public boolean isLimited(String endpoint) {
+		return properties.getAdmissionControl() && endpoints.containsKey(endpoint);
+	}
+
+	public Admission admit(String key, String endpoint) {
+		var limits = endpoints.get(endpoint);
+		if (limits == null) {
+			throw new IllegalArgumentException("Unknown endpoint to limit: " + endpoint);
+		}
+
+		// the rate goes first, so that a client above its rate doesn't take a slot from the others
+		var now = System.nanoTime();
+		var waitNanos = limits.bucketOf(String.valueOf(key), now).tryTake(now);
+		if (waitNanos > 0) {
+			limits.rateRejections.inc();
+			log.atFine().log("Too many requests to /%s with the same key, retry in %d ms", endpoint,
+					TimeUnit.NANOSECONDS.toMillis(waitNanos));
+			return Admission.rejected(Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000));
+		}
+
+		if (!limits.slots.tryAcquire()) {
+			limits.concurrencyRejections.inc();
+			log.atFine().log("Too many requests to /%s at the same time", endpoint);
+			return Admission.rejected(1);
+		}
+
+		limits.admitted.inc();
+		return Admission.admitted(limits.slots);
+	}
+
+	/**
+	 * The outcome of a request. An admitted one holds a slot of its endpoint until it is released
+	 */
+	public static final class Admission {
+		private final Semaphore slots;
+		private final long retryAfterSeconds;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Admission(Semaphore slots, long retryAfterSeconds) {
+			this.slots = slots;
+			this.retryAfterSeconds = retryAfterSeconds;
+		}
+
+		private static Admission admitted(Semaphore slots) {
+			return new Admission(slots, 0);
+		}
+
+		private static Admission rejected(long retryAfterSeconds) {
+			return new Admission(null, retryAfterSeconds);
+		}
+
+		public boolean isAdmitted() {
+			return slots != null;
+		}
+
+		/**
+		 * For a rejected request, how long to wait before trying again
+		 */
+		public long getRetryAfterSeconds() {
+			return retryAfterSeconds;
+		}
+
+		/**
+		 * Gives the slot back. Only the first call counts
+		 */
+		public void release() {
+			if (slots != null && released.compareAndSet(false, true)) {
+				slots.release();
+			}
+		}
+	}
+
+	private final class EndpointLimits {
+		private final Semaphore slots = new Semaphore(properties.getAdmissionMaxConcurrentRequests());
+		private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+		private final Counter admitted;
+		private final Counter concurrencyRejections;
+		private final Counter rateRejections;
+
+		private EndpointLimits(String endpoint, MetricRegistry metricRegistry) {
+			var prefix = NAME + "_" + endpoint;
+			admitted = metricRegistry.counter(prefix + "_admitted");
+			concurrencyRejections = metricRegistry.counter(prefix + "_rejected_concurrency");
+			rateRejections = metricRegistry.counter(prefix + "_rejected_rate");
+			metricRegistry.register(prefix + "_in_flight",
+					(Gauge<Integer>) () -> properties.getAdmissionMaxConcurrentRequests() - slots.availablePermits());
+			metricRegistry.register(prefix + "_throttled_keys", (Gauge<Long>) this::throttledKeys);
+		}
+
+		private TokenBucket bucketOf(String key, long now) {
+			return buckets.computeIfAbsent(key, ignored ->
+					new TokenBucket(properties.getAdmissionBurst(), properties.getAdmissionRequestsPerSecond(), now));
+		}
+
+		/**
+		 * Number of keys that have to wait before their next request
+		 */
+		private long throttledKeys() {
+			var now = System.nanoTime();
+			return buckets.values().stream()
+					.filter(bucket -> bucket.tokens(now) < 1)
+					.count();
+		}
+	}
+}
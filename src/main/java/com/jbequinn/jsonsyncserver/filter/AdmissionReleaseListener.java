@@ -0,0 +1,22 @@
+package com.jbequinn.jsonsyncserver.filter;
+
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Gives back the slot of a request admitted by the {@link AdmissionControlFilter} once the request is over. Doing it
+ * here rather than in a response filter also covers the requests that fail with an exception that nothing maps to a
+ * response, and the /sync responses that are written after the resource method has returned.
+ */
+@WebListener
+public class AdmissionReleaseListener implements ServletRequestListener {
+
+	@Override
+	public void requestDestroyed(ServletRequestEvent event) {
+		var admission = event.getServletRequest().getAttribute(AdmissionControlFilter.ADMISSION_ATTRIBUTE);
+		if (admission instanceof AdmissionController.Admission) {
+			((AdmissionController.Admission) admission).release();
+		}
+	}
+}
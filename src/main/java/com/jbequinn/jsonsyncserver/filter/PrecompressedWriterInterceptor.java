@@ -0,0 +1,32 @@
+package com.jbequinn.jsonsyncserver.filter;
+
+import com.jbequinn.jsonsyncserver.service.PullSnapshot;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.IOException;
+
+/**
+ * Writes a pull snapshot as it is when the response is gzipped. It runs before the gzip interceptor, which then never
+ * gets the chance to compress it a second time
+ */
+@Provider
+@Priority(Priorities.ENTITY_CODER - 100)
+public class PrecompressedWriterInterceptor implements WriterInterceptor {
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		var contentEncoding = context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+		if (context.getEntity() instanceof PullSnapshot && contentEncoding != null
+				&& "gzip".equalsIgnoreCase(contentEncoding.toString())) {
+			((PullSnapshot) context.getEntity()).writeGzipped(context.getOutputStream());
+			return;
+		}
+
+		context.proceed();
+	}
+}
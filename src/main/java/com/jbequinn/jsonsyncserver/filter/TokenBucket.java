@@ -0,0 +1,44 @@
+package com.jbequinn.jsonsyncserver.filter;
+
+/**
+ * Lets operations through at a given rate on average, and in bursts of up to its capacity. The time is passed in, as
+ * {@link System#nanoTime()} values, rather than read here
+ */
+public final class TokenBucket {
+	private final double capacity;
+	private final double nanosPerToken;
+	private double tokens;
+	private long refilledAt;
+
+	public TokenBucket(int capacity, double tokensPerSecond, long nowNanos) {
+		this.capacity = capacity;
+		this.nanosPerToken = 1_000_000_000d / tokensPerSecond;
+		tokens = capacity;
+		refilledAt = nowNanos;
+	}
+
+	/**
+	 * Takes a token if there is one, and returns 0. Otherwise, returns the nanoseconds until there is one
+	 */
+	public synchronized long tryTake(long nowNanos) {
+		refill(nowNanos);
+		if (tokens >= 1) {
+			tokens--;
+			return 0;
+		}
+		return Math.max(1, (long) Math.ceil((1 - tokens) * nanosPerToken));
+	}
+
+	public synchronized double tokens(long nowNanos) {
+		refill(nowNanos);
+		return tokens;
+	}
+
+	private void refill(long nowNanos) {
+		var elapsedNanos = nowNanos - refilledAt;
+		if (elapsedNanos > 0) {
+			tokens = Math.min(capacity, tokens + elapsedNanos / nanosPerToken);
+			refilledAt = nowNanos;
+		}
+	}
+}
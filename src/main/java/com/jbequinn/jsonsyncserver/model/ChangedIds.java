@@ -0,0 +1,16 @@
+package com.jbequinn.jsonsyncserver.model;
+
+import lombok.Data;
+
+import java.util.HashSet;
+import java.util.Set;
+
+@Data
+public class ChangedIds {
+	private Set<String> itemIds = new HashSet<>();
+	private Set<String> tagIds = new HashSet<>();
+	private Set<String> deletionSyncIds = new HashSet<>();
+
+	// sequence number of the last change included, which is the end of the range looked up unless it was limited
+	private long lastSequence;
+}
@@ -4,15 +4,25 @@ import lombok.Data;
 
 import javax.json.JsonObject;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Data
 public class ChangesDto {
-	private List<JsonObject> newItemsToSave = new ArrayList<>();
-	private List<JsonObject> itemsToUpdate = new ArrayList<>();
+	private List<SyncEntity> newItemsToSave = new ArrayList<>();
+	private List<SyncEntity> itemsToUpdate = new ArrayList<>();
 
-	private List<JsonObject> newTagsToSave = new ArrayList<>();
-	private List<JsonObject> tagsToUpdate = new ArrayList<>();
+	private List<SyncEntity> newTagsToSave = new ArrayList<>();
+	private List<SyncEntity> tagsToUpdate = new ArrayList<>();
+
+	// the versions stored before the merge of the items and tags to update, by id
+	private Map<String, SyncEntity> storedItems = new HashMap<>();
+	private Map<String, SyncEntity> storedTags = new HashMap<>();
+
+	// items and tags to merge with the stored ones by Mongo itself, when the merge is done in the database
+	private List<JsonObject> itemsToMerge = new ArrayList<>();
+	private List<JsonObject> tagsToMerge = new ArrayList<>();
 
 	private List<JsonObject> newDeletions = new ArrayList<>();
 	private List<String> itemsIdsToDelete = new ArrayList<>();
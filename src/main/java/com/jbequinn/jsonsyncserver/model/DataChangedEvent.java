@@ -0,0 +1,7 @@
+package com.jbequinn.jsonsyncserver.model;
+
+/**
+ * Fired after anything is written to the items, tags or deletions
+ */
+public class DataChangedEvent {
+}
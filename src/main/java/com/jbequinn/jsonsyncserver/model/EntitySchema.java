@@ -0,0 +1,109 @@
+package com.jbequinn.jsonsyncserver.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields that the clients are known to send for items and tags. Each of them has a slot of its own in a
+ * {@link SyncEntity}, so the keys are these constants instead of a copy per element, and the timestamps are kept as
+ * primitive longs. Any other field still round trips, in the overflow of the entity.
+ */
+public enum EntitySchema {
+	ITEM(
+			List.of("title_ts", "note_ts", "list_ts", "type_ts", "start_date_ts", "due_date_ts", "time_ts",
+					"energy_ts", "schedule_ts", "contact_id_ts", "parent_id_ts", "is_focused_ts", "completed_on_ts",
+					"position_global_ts", "position_parent_ts", "position_child_ts", "position_focus_ts",
+					"num_parallel_actions_ts", "tags_changed_ts"),
+			List.of("sync_id", "recurrent_task_id", "repeated_on")),
+	TAG(
+			List.of("title_ts", "color_ts", "type_ts"),
+			List.of());
+
+	public static final String ID = "id";
+	public static final String CHANGED_TS = "changed_ts";
+	public static final String CREATED_ON = "created_on";
+
+	// the values are the pair values followed by the fields, and the timestamps the pair timestamps followed by these
+	private final MergePlan pairs;
+	private final String[] valueKeys;
+	private final String[] timestampKeys;
+	// value slots as they are, timestamp slots as -1 - slot
+	private final Map<String, Integer> slots = new HashMap<>();
+
+	EntitySchema(List<String> pairTimestampKeys, List<String> fieldKeys) {
+		pairs = MergePlan.from(new LinkedHashSet<>(pairTimestampKeys));
+
+		var values = new ArrayList<String>();
+		var timestamps = new ArrayList<String>();
+		for (int pair = 0; pair < pairs.size(); pair++) {
+			values.add(pairs.valueKey(pair));
+			timestamps.add(pairs.timestampKey(pair));
+		}
+		values.add(ID);
+		values.addAll(fieldKeys);
+		timestamps.add(CHANGED_TS);
+		timestamps.add(CREATED_ON);
+
+		valueKeys = values.toArray(new String[0]);
+		timestampKeys = timestamps.toArray(new String[0]);
+		for (int slot = 0; slot < valueKeys.length; slot++) {
+			slots.put(valueKeys[slot], slot);
+		}
+		for (int slot = 0; slot < timestampKeys.length; slot++) {
+			slots.put(timestampKeys[slot], -1 - slot);
+		}
+	}
+
+	/**
+	 * Number of value and timestamp pairs, e.g. {@code title} and {@code title_ts}
+	 */
+	public int pairCount() {
+		return pairs.size();
+	}
+
+	public String valueKey(int pair) {
+		return pairs.valueKey(pair);
+	}
+
+	public String timestampKey(int pair) {
+		return pairs.timestampKey(pair);
+	}
+
+	int valueSlots() {
+		return valueKeys.length;
+	}
+
+	int timestampSlots() {
+		return timestampKeys.length;
+	}
+
+	String valueKeyAt(int slot) {
+		return valueKeys[slot];
+	}
+
+	String timestampKeyAt(int slot) {
+		return timestampKeys[slot];
+	}
+
+	int idSlot() {
+		return pairs.size();
+	}
+
+	int changedTsSlot() {
+		return pairs.size();
+	}
+
+	int createdOnSlot() {
+		return pairs.size() + 1;
+	}
+
+	/**
+	 * The slot of a known key, see {@link #slots}, or null if it isn't known
+	 */
+	Integer slotOf(String key) {
+		return slots.get(key);
+	}
+}
@@ -0,0 +1,76 @@
+package com.jbequinn.jsonsyncserver.model;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The value and timestamp pairs of one schema of item, e.g. {@code title} and {@code title_ts}, or {@code tags} and
+ * {@code tags_changed_ts}. Finding them means looking at every key, so a plan is built once per set of keys and reused
+ * for every item with the same keys.
+ * <p>
+ * When both {@code foo_ts} and {@code foo_changed_ts} are present, {@code foo_ts} is the timestamp of {@code foo}, and
+ * {@code foo_changed_ts} the one of {@code foo_changed}, so that no value is part of two pairs
+ */
+public final class MergePlan {
+	private static final String TIMESTAMP_SUFFIX = "_ts";
+	private static final String CHANGED_TIMESTAMP_SUFFIX = "_changed_ts";
+	// the timestamp of the whole item, not of a field
+	private static final String CHANGED_TIMESTAMP = "changed_ts";
+
+	private final String[] valueKeys;
+	private final String[] timestampKeys;
+	private final Set<String> pairKeys;
+
+	private MergePlan(String[] valueKeys, String[] timestampKeys, Set<String> pairKeys) {
+		this.valueKeys = valueKeys;
+		this.timestampKeys = timestampKeys;
+		this.pairKeys = pairKeys;
+	}
+
+	public static MergePlan from(Set<String> keys) {
+		var valueKeys = new ArrayList<String>();
+		var timestampKeys = new ArrayList<String>();
+		var pairKeys = new HashSet<String>();
+
+		for (var key : keys) {
+			if (key.equals(CHANGED_TIMESTAMP) || !key.endsWith(TIMESTAMP_SUFFIX)) {
+				continue;
+			}
+
+			var valueKey = key.substring(0, key.length() - TIMESTAMP_SUFFIX.length());
+			// foo_changed_ts is the timestamp of foo, unless foo already has foo_ts
+			if (key.endsWith(CHANGED_TIMESTAMP_SUFFIX)) {
+				var changedValueKey = key.substring(0, key.length() - CHANGED_TIMESTAMP_SUFFIX.length());
+				if (!keys.contains(changedValueKey + TIMESTAMP_SUFFIX)) {
+					valueKey = changedValueKey;
+				}
+			}
+			valueKeys.add(valueKey);
+			timestampKeys.add(key);
+			pairKeys.add(valueKey);
+			pairKeys.add(key);
+		}
+
+		return new MergePlan(valueKeys.toArray(new String[0]), timestampKeys.toArray(new String[0]), pairKeys);
+	}
+
+	public int size() {
+		return timestampKeys.length;
+	}
+
+	public String valueKey(int pair) {
+		return valueKeys[pair];
+	}
+
+	public String timestampKey(int pair) {
+		return timestampKeys[pair];
+	}
+
+	/**
+	 * Whether the key is either the value or the timestamp of a pair
+	 */
+	public boolean isPairKey(String key) {
+		return pairKeys.contains(key);
+	}
+}
@@ -0,0 +1,362 @@
+package com.jbequinn.jsonsyncserver.model;
+
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.spi.JsonProvider;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An item or a tag on the sync path. The fields of its {@link EntitySchema} are kept in arrays indexed by the schema,
+ * with the timestamps as primitive longs, instead of a map entry and a boxed number each. The fields that the schema
+ * doesn't know are kept as they came in an overflow map, so that turning it back into JSON gives the same object.
+ * <p>
+ * Entities are immutable. They are created from JSON, by the Mongo codec, or field by field with a {@link Builder}.
+ */
+public final class SyncEntity {
+	private static final JsonProvider JSON = JsonProvider.provider();
+	private static final JsonBuilderFactory BUILDERS = JSON.createBuilderFactory(Map.of());
+
+	// the states of a timestamp that are not a long. The longs that would clash with them are kept as OTHER
+	private static final long ABSENT = Long.MIN_VALUE;
+	private static final long NULL = Long.MIN_VALUE + 1;
+	// any other JSON value, e.g. a decimal, kept as it is in otherTimestamps
+	private static final long OTHER = Long.MIN_VALUE + 2;
+
+	private final EntitySchema schema;
+	private final String id;
+	private final JsonValue[] values;
+	private final long[] timestamps;
+	// only created for an entity with OTHER timestamps
+	private final JsonValue[] otherTimestamps;
+	private final Map<String, JsonValue> overflow;
+
+	private SyncEntity(Builder builder) {
+		schema = builder.schema;
+		values = builder.values;
+		timestamps = builder.timestamps;
+		otherTimestamps = builder.otherTimestamps;
+		overflow = builder.overflow == null ? Map.of() : Collections.unmodifiableMap(builder.overflow);
+
+		var idValue = values[schema.idSlot()];
+		id = idValue instanceof JsonString ? ((JsonString) idValue).getString() : null;
+	}
+
+	public static SyncEntity of(EntitySchema schema, JsonObject jsonObject) {
+		var builder = builder(schema);
+		jsonObject.forEach(builder::set);
+		return builder.build();
+	}
+
+	public static Builder builder(EntitySchema schema) {
+		return new Builder(schema);
+	}
+
+	public EntitySchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * The id, or null if it is missing or not a string
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * The {@code changed_ts} of the whole entity, 0 if it is missing or not a number
+	 */
+	public long getChangedTs() {
+		return timestampOrZero(schema.changedTsSlot());
+	}
+
+	public boolean hasValue(int pair) {
+		return values[pair] != null;
+	}
+
+	public boolean hasTimestamp(int pair) {
+		return timestamps[pair] != ABSENT;
+	}
+
+	/**
+	 * The timestamp of a pair, 0 if it is missing or not a number
+	 */
+	public long timestamp(int pair) {
+		return timestampOrZero(pair);
+	}
+
+	/**
+	 * The fields unknown to the schema
+	 */
+	public Map<String, JsonValue> getOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * The value of any field, or null if the entity doesn't have it
+	 */
+	public JsonValue get(String key) {
+		var slot = schema.slotOf(key);
+		if (slot == null) {
+			return overflow.get(key);
+		}
+		return slot >= 0 ? values[slot] : timestampValue(-1 - slot);
+	}
+
+	/**
+	 * The keys of the fields that are different in the other entity of the same schema, or that only one of them has
+	 */
+	public Set<String> keysDifferentFrom(SyncEntity other) {
+		if (other.schema != schema) {
+			throw new IllegalArgumentException("Can't compare an entity of " + schema + " with one of " + other.schema);
+		}
+
+		Set<String> keys = new HashSet<>();
+		for (int slot = 0; slot < values.length; slot++) {
+			if (!Objects.equals(values[slot], other.values[slot])) {
+				keys.add(schema.valueKeyAt(slot));
+			}
+		}
+		for (int slot = 0; slot < timestamps.length; slot++) {
+			if (timestamps[slot] != other.timestamps[slot]
+					|| (timestamps[slot] == OTHER && !otherTimestamps[slot].equals(other.otherTimestamps[slot]))) {
+				keys.add(schema.timestampKeyAt(slot));
+			}
+		}
+		overflow.forEach((key, value) -> {
+			if (!value.equals(other.overflow.get(key))) {
+				keys.add(key);
+			}
+		});
+		other.overflow.keySet().stream()
+				.filter(key -> !overflow.containsKey(key))
+				.forEach(keys::add);
+
+		return keys;
+	}
+
+	public JsonObject toJsonObject() {
+		var builder = BUILDERS.createObjectBuilder();
+		accept(new FieldVisitor() {
+			@Override
+			public void value(String key, JsonValue value) {
+				builder.add(key, value);
+			}
+
+			@Override
+			public void timestamp(String key, long timestamp) {
+				builder.add(key, timestamp);
+			}
+		});
+		return builder.build();
+	}
+
+	/**
+	 * Hands over every field, the id and the fields without a timestamp first, then each pair, the timestamps of the
+	 * whole entity and the overflow
+	 */
+	public void accept(FieldVisitor visitor) {
+		var pairCount = schema.pairCount();
+		for (int slot = pairCount; slot < values.length; slot++) {
+			if (values[slot] != null) {
+				visitor.value(schema.valueKeyAt(slot), values[slot]);
+			}
+		}
+		for (int pair = 0; pair < pairCount; pair++) {
+			if (values[pair] != null) {
+				visitor.value(schema.valueKeyAt(pair), values[pair]);
+			}
+			visitTimestamp(visitor, pair);
+		}
+		for (int slot = pairCount; slot < timestamps.length; slot++) {
+			visitTimestamp(visitor, slot);
+		}
+		overflow.forEach(visitor::value);
+	}
+
+	private void visitTimestamp(FieldVisitor visitor, int slot) {
+		var timestamp = timestamps[slot];
+		if (timestamp == ABSENT) {
+			return;
+		}
+		if (timestamp == NULL || timestamp == OTHER) {
+			visitor.value(schema.timestampKeyAt(slot), timestampValue(slot));
+		} else {
+			visitor.timestamp(schema.timestampKeyAt(slot), timestamp);
+		}
+	}
+
+	private JsonValue timestampValue(int slot) {
+		var timestamp = timestamps[slot];
+		if (timestamp == ABSENT) {
+			return null;
+		}
+		if (timestamp == NULL) {
+			return JsonValue.NULL;
+		}
+		if (timestamp == OTHER) {
+			return otherTimestamps[slot];
+		}
+		return JSON.createValue(timestamp);
+	}
+
+	private long timestampOrZero(int slot) {
+		var timestamp = timestamps[slot];
+		if (timestamp == ABSENT || timestamp == NULL) {
+			return 0;
+		}
+		if (timestamp == OTHER) {
+			var value = otherTimestamps[slot];
+			return value.getValueType() == JsonValue.ValueType.NUMBER ? ((JsonNumber) value).longValue() : 0;
+		}
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return toJsonObject().toString();
+	}
+
+	/**
+	 * Receives the fields of an entity, the timestamps that are longs without turning them into JSON values
+	 */
+	public interface FieldVisitor {
+		void value(String key, JsonValue value);
+
+		void timestamp(String key, long timestamp);
+	}
+
+	/**
+	 * Collects the fields of one entity. Setting a field again replaces it
+	 */
+	public static final class Builder {
+		private final EntitySchema schema;
+		private final JsonValue[] values;
+		private final long[] timestamps;
+		private JsonValue[] otherTimestamps;
+		private Map<String, JsonValue> overflow;
+
+		private Builder(EntitySchema schema) {
+			this.schema = schema;
+			values = new JsonValue[schema.valueSlots()];
+			timestamps = new long[schema.timestampSlots()];
+			Arrays.fill(timestamps, ABSENT);
+		}
+
+		public Builder set(String key, JsonValue value) {
+			var slot = schema.slotOf(key);
+			if (slot == null) {
+				if (overflow == null) {
+					overflow = new LinkedHashMap<>();
+				}
+				overflow.put(key, value);
+			} else if (slot >= 0) {
+				values[slot] = value;
+			} else {
+				setTimestamp(-1 - slot, value);
+			}
+			return this;
+		}
+
+		/**
+		 * Same as {@link #set(String, JsonValue)} with a number, without creating the JSON value when it is one of
+		 * the timestamps of the schema
+		 */
+		public Builder set(String key, long value) {
+			var slot = schema.slotOf(key);
+			if (slot != null && slot < 0 && value > OTHER) {
+				timestamps[-1 - slot] = value;
+				return this;
+			}
+			return set(key, JSON.createValue(value));
+		}
+
+		private void setTimestamp(int slot, JsonValue value) {
+			if (value.getValueType() == JsonValue.ValueType.NULL) {
+				timestamps[slot] = NULL;
+				return;
+			}
+			if (value.getValueType() == JsonValue.ValueType.NUMBER && ((JsonNumber) value).isIntegral()) {
+				try {
+					var timestamp = ((JsonNumber) value).longValueExact();
+					if (timestamp > OTHER) {
+						timestamps[slot] = timestamp;
+						return;
+					}
+				} catch (ArithmeticException e) {
+					// too big for a long, kept as it is
+				}
+			}
+
+			if (otherTimestamps == null) {
+				otherTimestamps = new JsonValue[timestamps.length];
+			}
+			timestamps[slot] = OTHER;
+			otherTimestamps[slot] = value;
+		}
+
+		/**
+		 * Copies the fields that are not part of a pair: the id, the fields without a timestamp and the timestamps of
+		 * the whole entity
+		 */
+		public Builder copyFields(SyncEntity from) {
+			checkSchema(from);
+			for (int slot = schema.pairCount(); slot < values.length; slot++) {
+				values[slot] = from.values[slot];
+			}
+			for (int slot = schema.pairCount(); slot < timestamps.length; slot++) {
+				copyTimestampSlot(slot, from);
+			}
+			return this;
+		}
+
+		public Builder copyValue(int pair, SyncEntity from) {
+			checkSchema(from);
+			values[pair] = from.values[pair];
+			return this;
+		}
+
+		public Builder copyTimestamp(int pair, SyncEntity from) {
+			checkSchema(from);
+			copyTimestampSlot(pair, from);
+			return this;
+		}
+
+		private void copyTimestampSlot(int slot, SyncEntity from) {
+			if (from.timestamps[slot] == OTHER) {
+				setTimestamp(slot, from.otherTimestamps[slot]);
+			} else {
+				timestamps[slot] = from.timestamps[slot];
+			}
+		}
+
+		private void checkSchema(SyncEntity from) {
+			if (from.schema != schema) {
+				throw new IllegalArgumentException("Can't copy the fields of an entity of " + from.schema + " to one of " + schema);
+			}
+		}
+
+		/**
+		 * Replaces all the fields unknown to the schema
+		 */
+		public Builder overflow(Map<String, JsonValue> fields) {
+			overflow = fields.isEmpty() ? null : new LinkedHashMap<>(fields);
+			return this;
+		}
+
+		/**
+		 * The entity with the fields set so far. The builder can't be used anymore afterwards
+		 */
+		public SyncEntity build() {
+			return new SyncEntity(this);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.jbequinn.jsonsyncserver.model;
+
+import lombok.Getter;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Response of a sync, whose elements are still being looked up in parallel. Each array is only combined with the
+ * rest once it is complete, so nothing is shared between the threads finding them.
+ */
+@Getter
+public class SyncResponse {
+	private final long syncTs;
+	private final long syncCursor;
+	private final long timeDeltaMs;
+	private final Map<String, CompletableFuture<JsonArray>> sections;
+
+	// only for a page of a paginated sync: whether there is a next page, and the token to get it
+	private final boolean paginated;
+	private final String nextPageToken;
+
+	public SyncResponse(long syncTs, long syncCursor, long timeDeltaMs, CompletableFuture<JsonArray> items,
+			CompletableFuture<JsonArray> tags, CompletableFuture<JsonArray> deletionsToAdd) {
+		this(syncTs, syncCursor, timeDeltaMs, items, tags, deletionsToAdd, false, null);
+	}
+
+	/**
+	 * A page of a paginated sync, the last one if the next page token is null
+	 */
+	public SyncResponse(long syncTs, long syncCursor, long timeDeltaMs, CompletableFuture<JsonArray> items,
+			CompletableFuture<JsonArray> tags, CompletableFuture<JsonArray> deletionsToAdd, String nextPageToken) {
+		this(syncTs, syncCursor, timeDeltaMs, items, tags, deletionsToAdd, true, nextPageToken);
+	}
+
+	private SyncResponse(long syncTs, long syncCursor, long timeDeltaMs, CompletableFuture<JsonArray> items,
+			CompletableFuture<JsonArray> tags, CompletableFuture<JsonArray> deletionsToAdd, boolean paginated,
+			String nextPageToken) {
+		this.paginated = paginated;
+		this.nextPageToken = nextPageToken;
+		this.syncTs = syncTs;
+		this.syncCursor = syncCursor;
+		this.timeDeltaMs = timeDeltaMs;
+
+		var sections = new LinkedHashMap<String, CompletableFuture<JsonArray>>();
+		sections.put("items", items);
+		sections.put("tags", tags);
+		sections.put("deletions_to_add", deletionsToAdd);
+		this.sections = Collections.unmodifiableMap(sections);
+	}
+
+	public CompletableFuture<Void> completion() {
+		return CompletableFuture.allOf(sections.values().toArray(new CompletableFuture[0]));
+	}
+
+	/**
+	 * Builds the whole response, waiting for the sections not complete yet
+	 */
+	public JsonObject toJsonObject() {
+		var builder = Json.createObjectBuilder()
+				.add("sync_ts", syncTs)
+				.add("sync_cursor", syncCursor)
+				.add("success", true)
+				.add("time_delta_ms", timeDeltaMs);
+		if (paginated) {
+			builder.add("has_more", nextPageToken != null);
+			if (nextPageToken != null) {
+				builder.add("page_token", nextPageToken);
+			}
+		}
+		sections.forEach((name, section) -> builder.add(name, section.join()));
+		return builder.build();
+	}
+}
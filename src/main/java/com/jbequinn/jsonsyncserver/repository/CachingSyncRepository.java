@@ -0,0 +1,292 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps the items and tags looked up by id in a sync in memory, since most of them were already read by the previous
+ * sync of the same client. Every write through it updates or invalidates the cached elements, but the writes of other
+ * instances are not seen: it must be disabled when several instances share a database.
+ * <p>
+ * The elements merged by the database are invalidated rather than updated, as only the database knows how they ended
+ * up.
+ */
+@Flogger
+public class CachingSyncRepository implements SyncRepository {
+	private final SyncRepository repository;
+	private final EntityCache items;
+	private final EntityCache tags;
+
+	public CachingSyncRepository(SyncRepository repository, JsonSyncServerProperties properties,
+			MetricRegistry metricRegistry) {
+		this.repository = repository;
+		items = new EntityCache("item-cache", properties.getEntityCacheMaxSize(),
+				properties.getEntityCacheTimeToLiveSeconds(), metricRegistry);
+		tags = new EntityCache("tag-cache", properties.getEntityCacheMaxSize(),
+				properties.getEntityCacheTimeToLiveSeconds(), metricRegistry);
+
+		log.atInfo().log("Caching up to %d items and %d tags for %d s",
+				properties.getEntityCacheMaxSize(), properties.getEntityCacheMaxSize(),
+				properties.getEntityCacheTimeToLiveSeconds());
+	}
+
+	@Override
+	public void forEachItem(Consumer<JsonObject> consumer) {
+		repository.forEachItem(consumer);
+	}
+
+	@Override
+	public void forEachTag(Consumer<JsonObject> consumer) {
+		repository.forEachTag(consumer);
+	}
+
+	@Override
+	public void forEachDeletion(Consumer<JsonObject> consumer) {
+		repository.forEachDeletion(consumer);
+	}
+
+	@Override
+	public List<SyncEntity> findItemsById(Collection<String> ids) {
+		return findById(items, ids, repository::findItemsById);
+	}
+
+	@Override
+	public List<SyncEntity> findTagsById(Collection<String> ids) {
+		return findById(tags, ids, repository::findTagsById);
+	}
+
+	private List<SyncEntity> findById(EntityCache cache, Collection<String> ids,
+			Function<Collection<String>, List<SyncEntity>> find) {
+		if (ids == null || ids.isEmpty()) {
+			return find.apply(ids);
+		}
+
+		var found = new ArrayList<SyncEntity>(ids.size());
+		var missing = new ArrayList<String>();
+		for (var id : ids) {
+			var cached = cache.get(id);
+			if (cached == null) {
+				missing.add(id);
+			} else {
+				found.add(cached);
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			// read after the version, so that a write in between keeps what was read out of the cache
+			var version = cache.version();
+			var loaded = find.apply(missing);
+			cache.putIfUnchanged(loaded, version);
+			found.addAll(loaded);
+		}
+
+		log.atFinest().log("Found %d elements by id, %d of them in the cache", found.size(), ids.size() - missing.size());
+		return found;
+	}
+
+	@Override
+	public List<JsonObject> findDeletionsBySyncId(Collection<String> syncIds) {
+		return repository.findDeletionsBySyncId(syncIds);
+	}
+
+	@Override
+	public long currentChangeSequence() {
+		return repository.currentChangeSequence();
+	}
+
+	@Override
+	public Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo) {
+		return repository.findChangedIdsSince(cursor, upTo);
+	}
+
+	@Override
+	public Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo, int limit) {
+		return repository.findChangedIdsSince(cursor, upTo, limit);
+	}
+
+	@Override
+	public JsonArray findItemsNewerThan(long timestamp) {
+		return repository.findItemsNewerThan(timestamp);
+	}
+
+	@Override
+	public JsonArray findTagsNewerThan(long timestamp) {
+		return repository.findTagsNewerThan(timestamp);
+	}
+
+	@Override
+	public JsonArray findDeletionsNewerThan(long timestamp) {
+		return repository.findDeletionsNewerThan(timestamp);
+	}
+
+	@Override
+	public List<JsonObject> findItemsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit) {
+		return repository.findItemsPageNewerThan(timestamp, afterChangedTs, afterId, limit);
+	}
+
+	@Override
+	public List<JsonObject> findTagsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit) {
+		return repository.findTagsPageNewerThan(timestamp, afterChangedTs, afterId, limit);
+	}
+
+	@Override
+	public List<JsonObject> findDeletionsPageNewerThan(long timestamp, OptionalLong afterTs, String afterSyncId, int limit) {
+		return repository.findDeletionsPageNewerThan(timestamp, afterTs, afterSyncId, limit);
+	}
+
+	@Override
+	public void saveNewItems(List<JsonObject> items) {
+		this.items.invalidate(ids(items));
+		repository.saveNewItems(items);
+	}
+
+	@Override
+	public void saveNewTags(List<JsonObject> tags) {
+		this.tags.invalidate(ids(tags));
+		repository.saveNewTags(tags);
+	}
+
+	@Override
+	public void saveNewDeletions(List<JsonObject> deletions) {
+		repository.saveNewDeletions(deletions);
+	}
+
+	@Override
+	public void sync(ChangesDto changes) {
+		// invalidated before the write, so that nothing read in the meantime is cached, and refilled after it
+		var itemVersion = items.invalidate(changedIds(changes.getItemsIdsToDelete(),
+				changes.getNewItemsToSave(), changes.getItemsToUpdate(), changes.getItemsToMerge()));
+		var tagVersion = tags.invalidate(changedIds(changes.getTagIdsToDelete(),
+				changes.getNewTagsToSave(), changes.getTagsToUpdate(), changes.getTagsToMerge()));
+
+		repository.sync(changes);
+
+		items.putWritten(written(changes.getItemsIdsToDelete(), changes.getNewItemsToSave(), changes.getItemsToUpdate()),
+				itemVersion);
+		tags.putWritten(written(changes.getTagIdsToDelete(), changes.getNewTagsToSave(), changes.getTagsToUpdate()),
+				tagVersion);
+	}
+
+	private Set<String> changedIds(List<String> deletedIds, List<SyncEntity> newObjects,
+			List<SyncEntity> updatedObjects, List<JsonObject> objectsToMerge) {
+		var ids = new HashSet<>(deletedIds);
+		newObjects.forEach(object -> ids.add(object.getId()));
+		updatedObjects.forEach(object -> ids.add(object.getId()));
+		ids.addAll(ids(objectsToMerge));
+		return ids;
+	}
+
+	/**
+	 * The elements written as they are, leaving out those deleted in the same sync
+	 */
+	private List<SyncEntity> written(List<String> deletedIds, List<SyncEntity> newObjects, List<SyncEntity> updatedObjects) {
+		var idsToSkip = Set.copyOf(deletedIds);
+		var written = new ArrayList<SyncEntity>(newObjects.size() + updatedObjects.size());
+		newObjects.stream()
+				.filter(object -> !idsToSkip.contains(object.getId()))
+				.forEach(written::add);
+		updatedObjects.stream()
+				.filter(object -> !idsToSkip.contains(object.getId()))
+				.forEach(written::add);
+		return written;
+	}
+
+	private List<String> ids(List<JsonObject> objects) {
+		return objects.stream()
+				.map(object -> object.getString("id"))
+				.collect(toList());
+	}
+
+	@Override
+	public long deleteDeletionsUpTo(long timestamp) {
+		return repository.deleteDeletionsUpTo(timestamp);
+	}
+
+	@Override
+	public void saveDeviceCursor(String deviceId, long lastSyncTs, long seenAt) {
+		repository.saveDeviceCursor(deviceId, lastSyncTs, seenAt);
+	}
+
+	@Override
+	public OptionalLong findOldestDeviceCursor(long seenSince) {
+		return repository.findOldestDeviceCursor(seenSince);
+	}
+
+	@Override
+	public void deleteAllItems() {
+		repository.deleteAllItems();
+		items.clear();
+	}
+
+	@Override
+	public void deleteAllTags() {
+		repository.deleteAllTags();
+		tags.clear();
+	}
+
+	@Override
+	public void deleteAllDeletions() {
+		repository.deleteAllDeletions();
+	}
+
+	@Override
+	public void resetChangeLog() {
+		repository.resetChangeLog();
+	}
+
+	@Override
+	public long deleteChangesRecordedBefore(long timestamp) {
+		return repository.deleteChangesRecordedBefore(timestamp);
+	}
+
+	@Override
+	public StagingLoad startStagingLoad() {
+		var stagingLoad = repository.startStagingLoad();
+		return new StagingLoad() {
+			@Override
+			public void saveNewItems(List<JsonObject> items) {
+				stagingLoad.saveNewItems(items);
+			}
+
+			@Override
+			public void saveNewTags(List<JsonObject> tags) {
+				stagingLoad.saveNewTags(tags);
+			}
+
+			@Override
+			public void saveNewDeletions(List<JsonObject> deletions) {
+				stagingLoad.saveNewDeletions(deletions);
+			}
+
+			@Override
+			public void commit() {
+				stagingLoad.commit();
+				items.clear();
+				tags.clear();
+			}
+
+			@Override
+			public void close() {
+				stagingLoad.close();
+			}
+		};
+	}
+}
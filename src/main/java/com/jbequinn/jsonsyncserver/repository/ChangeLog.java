@@ -0,0 +1,264 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import lombok.extern.flogger.Flogger;
+import org.bson.Document;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.max;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Append-only log of the ids written by every sync, each one tagged with a server assigned and monotonic sequence
+ * number. A client that remembers the last sequence it has seen can then ask for everything changed since then with
+ * a single indexed range scan.
+ * <p>
+ * The entries older than {@code application.change-log-retention-days} are removed periodically, and the clients
+ * whose cursor is older than that fall back to the timestamps.
+ * <p>
+ * Reserving a block of sequence numbers and inserting its entries are two writes, so a reader of the counter could get
+ * a cursor past entries that are not written yet. The counter document therefore also holds a watermark, under which
+ * every entry is written, and only the watermark is handed out as the current sequence. It lives in the database, so
+ * that it holds across every instance of the server writing to it.
+ */
+@Flogger
+class ChangeLog {
+	static final String ITEM = "i";
+	static final String TAG = "t";
+	static final String DELETION = "d";
+
+	static final String COUNTER_ID = "changelog";
+	static final String SEQUENCE = "seq";
+	static final String RESET_SEQUENCE = "reset_seq";
+	static final String COMMITTED_SEQUENCE = "committed_seq";
+	static final String RECORDED_AT = "at";
+
+	// a gap in the sequence numbers that an entry recorded this long ago follows is taken for an append that will
+	// never be written, e.g. because its instance stopped between the reservation and the insert
+	static final long ABANDONED_AFTER_SECONDS = 60;
+	// how many entries the watermark is moved over at once
+	static final int WATERMARK_BATCH_SIZE = 1000;
+
+	private final MongoCollection<Document> entries;
+	private final MongoCollection<Document> counters;
+
+	ChangeLog(MongoDatabase database) {
+		entries = database.getCollection(IndexRegistry.CHANGELOG);
+		counters = database.getCollection("counters");
+	}
+
+	void append(Collection<String> itemIds, Collection<String> tagIds, Collection<String> deletionSyncIds) {
+		var count = itemIds.size() + tagIds.size() + deletionSyncIds.size();
+		if (count == 0) {
+			log.atFine().log("Nothing to append to the change log");
+			return;
+		}
+
+		var lastSequence = reserve(count);
+		entries.insertMany(entries(lastSequence, itemIds, tagIds, deletionSyncIds), new InsertManyOptions().ordered(false));
+		log.atFine().log("Appended %d entries to the change log, up to the sequence %d", count, lastSequence);
+
+		advanceWatermark(counters.find(eq("_id", COUNTER_ID)).first());
+	}
+
+	/**
+	 * The entries of the given ids, numbered up to {@code lastSequence}
+	 */
+	static List<Document> entries(long lastSequence, Collection<String> itemIds, Collection<String> tagIds,
+			Collection<String> deletionSyncIds) {
+		var count = itemIds.size() + tagIds.size() + deletionSyncIds.size();
+		var sequence = lastSequence - count;
+		var recordedAt = Instant.now().getEpochSecond();
+		var documents = new ArrayList<Document>(count);
+		for (var id : itemIds) {
+			documents.add(entry(++sequence, ITEM, id, recordedAt));
+		}
+		for (var id : tagIds) {
+			documents.add(entry(++sequence, TAG, id, recordedAt));
+		}
+		for (var id : deletionSyncIds) {
+			documents.add(entry(++sequence, DELETION, id, recordedAt));
+		}
+		return documents;
+	}
+
+	private static Document entry(long sequence, String entityType, String id, long recordedAt) {
+		return new Document(SEQUENCE, sequence)
+				.append("type", entityType)
+				.append("id", id)
+				.append(RECORDED_AT, recordedAt);
+	}
+
+	private long reserve(int count) {
+		var counter = counters.findOneAndUpdate(
+				eq("_id", COUNTER_ID),
+				inc(SEQUENCE, (long) count),
+				new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+		return getLongOrZero(counter, SEQUENCE);
+	}
+
+	/**
+	 * The watermark, under which every entry is written
+	 */
+	long currentSequence() {
+		var counter = counters.find(eq("_id", COUNTER_ID)).first();
+		if (getLongOrZero(counter, COMMITTED_SEQUENCE) < getLongOrZero(counter, SEQUENCE)) {
+			return advanceWatermark(counter);
+		}
+		return getLongOrZero(counter, COMMITTED_SEQUENCE);
+	}
+
+	/**
+	 * Moves the watermark of the given counter over the entries written since, and returns it
+	 */
+	private long advanceWatermark(Document counter) {
+		var committed = Math.max(getLongOrZero(counter, COMMITTED_SEQUENCE), getLongOrZero(counter, RESET_SEQUENCE));
+		var written = entries.find(and(gt(SEQUENCE, committed), lte(SEQUENCE, getLongOrZero(counter, SEQUENCE))))
+				.projection(include(SEQUENCE, RECORDED_AT))
+				.sort(ascending(SEQUENCE))
+				.limit(WATERMARK_BATCH_SIZE)
+				.into(new ArrayList<>());
+
+		var watermark = watermark(committed, written, Instant.now().getEpochSecond());
+		if (watermark > getLongOrZero(counter, COMMITTED_SEQUENCE)) {
+			// another instance may have moved it further meanwhile
+			counters.updateOne(eq("_id", COUNTER_ID), max(COMMITTED_SEQUENCE, watermark));
+		}
+		return watermark;
+	}
+
+	/**
+	 * Returns how far the watermark can move from {@code committed} over the given entries, sorted by sequence: up to
+	 * the first gap, unless the entry after the gap was recorded more than {@link #ABANDONED_AFTER_SECONDS} before
+	 * {@code now}. Its sequence numbers were reserved after those of the gap, so nothing will fill the gap anymore
+	 */
+	static long watermark(long committed, List<Document> written, long now) {
+		var watermark = committed;
+		for (var entry : written) {
+			var sequence = getLongOrZero(entry, SEQUENCE);
+			if (sequence > watermark + 1 && getLongOrZero(entry, RECORDED_AT) > now - ABANDONED_AFTER_SECONDS) {
+				break;
+			}
+			watermark = sequence;
+		}
+		return watermark;
+	}
+
+	/**
+	 * Returns the ids changed after the given cursor and up to {@code upTo}, both being sequence numbers. Returns an
+	 * empty optional when the cursor is not valid anymore, e.g. because all the data was replaced after it.
+	 */
+	Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo) {
+		return findChangedIdsSince(cursor, upTo, 0);
+	}
+
+	/**
+	 * Same as {@link #findChangedIdsSince(long, long)}, but looking at no more than {@code limit} changes, unless it
+	 * is 0. The last sequence of the result tells where to continue from
+	 */
+	Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo, int limit) {
+		var counter = counters.find(eq("_id", COUNTER_ID)).first();
+		if (cursor < getLongOrZero(counter, RESET_SEQUENCE) || cursor > upTo) {
+			log.atFine().log("The cursor %d is not valid anymore", cursor);
+			return Optional.empty();
+		}
+
+		var changedIds = new ChangedIds();
+		changedIds.setLastSequence(upTo);
+		var changes = entries.find(and(gt(SEQUENCE, cursor), lte(SEQUENCE, upTo)))
+				.projection(include(SEQUENCE, "type", "id"));
+		if (limit > 0) {
+			changes = changes.sort(ascending(SEQUENCE)).limit(limit);
+		}
+
+		var count = new AtomicInteger();
+		changes.forEach((Consumer<Document>) entry -> {
+			switch (entry.getString("type")) {
+				case ITEM:
+					changedIds.getItemIds().add(entry.getString("id"));
+					break;
+				case TAG:
+					changedIds.getTagIds().add(entry.getString("id"));
+					break;
+				default:
+					changedIds.getDeletionSyncIds().add(entry.getString("id"));
+			}
+			if (count.incrementAndGet() == limit) {
+				changedIds.setLastSequence(getLongOrZero(entry, SEQUENCE));
+			}
+		});
+
+		return Optional.of(changedIds);
+	}
+
+	/**
+	 * Invalidates every cursor handed out so far. Used when the whole data set is replaced or removed.
+	 */
+	void reset() {
+		var counter = counters.findOneAndUpdate(
+				eq("_id", COUNTER_ID),
+				inc(SEQUENCE, 1L),
+				new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+		var sequence = getLongOrZero(counter, SEQUENCE);
+		// nothing is left under the reset sequence, so the watermark can start from it
+		counters.updateOne(eq("_id", COUNTER_ID),
+				combine(set(RESET_SEQUENCE, sequence), max(COMMITTED_SEQUENCE, sequence)),
+				new UpdateOptions().upsert(true));
+
+		entries.drop();
+		IndexRegistry.createIndexes(IndexRegistry.CHANGELOG, entries);
+
+		log.atFine().log("Change log reset at the sequence %d", sequence);
+	}
+
+	/**
+	 * Removes the entries recorded before the given time, and returns how many were removed. The cursors older than
+	 * the last entry removed are invalidated first, so that no reader takes the missing entries for no change
+	 */
+	long deleteRecordedBefore(long timestamp) {
+		var newest = entries.find(lt(RECORDED_AT, timestamp))
+				.sort(descending(RECORDED_AT))
+				.projection(include(SEQUENCE))
+				.first();
+		if (newest == null) {
+			return 0;
+		}
+
+		var upTo = getLongOrZero(newest, SEQUENCE);
+		counters.updateOne(eq("_id", COUNTER_ID), max(RESET_SEQUENCE, upTo), new UpdateOptions().upsert(true));
+		var deleted = entries.deleteMany(lte(SEQUENCE, upTo)).getDeletedCount();
+
+		log.atFine().log("Removed %d entries of the change log, up to the sequence %d", deleted, upTo);
+		return deleted;
+	}
+
+	private static long getLongOrZero(Document document, String key) {
+		if (document == null || !(document.get(key) instanceof Number)) {
+			return 0L;
+		}
+		return ((Number) document.get(key)).longValue();
+	}
+}
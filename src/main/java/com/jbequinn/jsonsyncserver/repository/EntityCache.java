@@ -0,0 +1,125 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded map of elements by id, evicting the least recently used one when full, and every element some time after it
+ * was put. The version changes with every write, so that a reader can tell whether what it read from the database
+ * might have been overwritten since.
+ */
+final class EntityCache {
+	private final int maxSize;
+	private final long timeToLiveNanos;
+
+	private final Map<String, CachedEntity> entities;
+	private long version;
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter evictions;
+
+	EntityCache(String name, int maxSize, long timeToLiveSeconds, MetricRegistry metricRegistry) {
+		this.maxSize = maxSize;
+		this.timeToLiveNanos = TimeUnit.SECONDS.toNanos(timeToLiveSeconds);
+
+		hits = metricRegistry.counter(name + "_hits");
+		misses = metricRegistry.counter(name + "_misses");
+		evictions = metricRegistry.counter(name + "_evictions");
+		metricRegistry.register(name + "_size", (Gauge<Integer>) this::size);
+
+		entities = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedEntity> eldest) {
+				if (size() > EntityCache.this.maxSize) {
+					evictions.inc();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * The cached element, or null if it isn't cached or it expired
+	 */
+	synchronized SyncEntity get(String id) {
+		var cached = entities.get(id);
+		if (cached == null) {
+			misses.inc();
+			return null;
+		}
+		if (System.nanoTime() - cached.cachedAt > timeToLiveNanos) {
+			entities.remove(id);
+			evictions.inc();
+			misses.inc();
+			return null;
+		}
+
+		hits.inc();
+		return cached.entity;
+	}
+
+	synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * Caches elements read from the database, unless something was written since the given version
+	 */
+	synchronized void putIfUnchanged(List<SyncEntity> objects, long readVersion) {
+		if (version == readVersion) {
+			objects.forEach(this::put);
+		}
+	}
+
+	/**
+	 * Caches elements just written, or forgets about them if something else was written since the given version
+	 */
+	synchronized void putWritten(List<SyncEntity> objects, long writeVersion) {
+		if (version == writeVersion) {
+			objects.forEach(this::put);
+		} else {
+			objects.forEach(object -> entities.remove(object.getId()));
+		}
+		version++;
+	}
+
+	private void put(SyncEntity object) {
+		entities.put(object.getId(), new CachedEntity(object, System.nanoTime()));
+	}
+
+	/**
+	 * Forgets about the elements, and returns the version to write them with
+	 */
+	synchronized long invalidate(Iterable<String> ids) {
+		ids.forEach(entities::remove);
+		return ++version;
+	}
+
+	synchronized void clear() {
+		entities.clear();
+		version++;
+	}
+
+	synchronized int size() {
+		return entities.size();
+	}
+
+	private static final class CachedEntity {
+		private final SyncEntity entity;
+		private final long cachedAt;
+
+		private CachedEntity(SyncEntity entity, long cachedAt) {
+			this.entity = entity;
+			this.cachedAt = cachedAt;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexModel;
+import io.quarkus.runtime.StartupEvent;
+import lombok.extern.flogger.Flogger;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Instance;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Builds the indexes declared in the {@link IndexRegistry} in the background at startup, and then checks with
+ * {@code explain} that the queries run on every sync are actually planned through them. A failed attempt is retried
+ * later, waiting longer each time. Only the unique index of the change log is built before the startup completes,
+ * since the sequence numbers rely on it.
+ */
+@ApplicationScoped
+@Flogger
+public class IndexManager {
+	private static final long FIRST_RETRY_DELAY_SECONDS = 5;
+	private static final long MAX_RETRY_DELAY_SECONDS = 300;
+	// an index exists with the same name and other options
+	private static final int INDEX_OPTIONS_CONFLICT = 85;
+
+	private final Instance<MongoDatabase> databaseInstance;
+	private final Executor executor;
+	private final JsonSyncServerProperties properties;
+
+	private final List<String> collectionScans = new CopyOnWriteArrayList<>();
+	private volatile CompletableFuture<Void> verification = new CompletableFuture<>();
+	private volatile MongoDatabase database;
+
+	/**
+	 * The database is only looked up with the "mongo" storage, so that the "embedded" one never creates a Mongo client
+	 */
+	public IndexManager(Instance<MongoDatabase> databaseInstance, RepositoryExecutor executor,
+			JsonSyncServerProperties properties) {
+		this.databaseInstance = databaseInstance;
+		this.executor = executor;
+		this.properties = properties;
+	}
+
+	void onStart(@Observes StartupEvent event) {
+		if (!"mongo".equals(properties.getStorage())) {
+			log.atInfo().log("No indexes to build for the %s storage", properties.getStorage());
+			verification = CompletableFuture.completedFuture(null);
+			return;
+		}
+
+		database = databaseInstance.get();
+		// before any sync can append to the change log. Mongo not being reachable here fails the startup
+		IndexRegistry.createIndexes(IndexRegistry.CHANGELOG, database.getCollection(IndexRegistry.CHANGELOG));
+
+		buildAndVerify(executor, FIRST_RETRY_DELAY_SECONDS);
+	}
+
+	private void buildAndVerify(Executor runner, long retryDelaySeconds) {
+		var attempt = CompletableFuture.runAsync(() -> {
+			createIndexes();
+			verifyQueryPlans();
+		}, runner);
+		verification = attempt;
+
+		attempt.whenComplete((result, e) -> {
+			if (e != null) {
+				log.atSevere().withCause(e).log("Error when building or verifying the indexes, trying again in %d seconds",
+						retryDelaySeconds);
+				buildAndVerify(CompletableFuture.delayedExecutor(retryDelaySeconds, TimeUnit.SECONDS, executor),
+						Math.min(retryDelaySeconds * 2, MAX_RETRY_DELAY_SECONDS));
+			}
+		});
+	}
+
+	private void createIndexes() {
+		IndexRegistry.indexes().forEach((collectionName, indexes) -> {
+			log.atInfo().log("Building %d indexes on the collection %s", indexes.size(), collectionName);
+			var collection = database.getCollection(collectionName);
+			try {
+				collection.createIndexes(indexes);
+			} catch (MongoCommandException e) {
+				if (e.getErrorCode() != INDEX_OPTIONS_CONFLICT) {
+					throw e;
+				}
+				dropChangedIndexes(collection, indexes);
+				collection.createIndexes(indexes);
+			}
+		});
+		log.atInfo().log("All the indexes are built");
+	}
+
+	/**
+	 * Drops the indexes built with other options than those declared now, e.g. an index that was partial and is not
+	 * anymore, so that they can be built again
+	 */
+	private void dropChangedIndexes(MongoCollection<Document> collection, List<IndexModel> indexes) {
+		var codecRegistry = collection.getCodecRegistry();
+		var declaredFilters = indexes.stream().collect(toMap(
+				index -> index.getKeys().toBsonDocument(BsonDocument.class, codecRegistry),
+				index -> Optional.ofNullable(index.getOptions().getPartialFilterExpression())
+						.map(filter -> filter.toBsonDocument(BsonDocument.class, codecRegistry))));
+
+		collection.listIndexes(BsonDocument.class).forEach((Consumer<BsonDocument>) existing -> {
+			var declaredFilter = declaredFilters.get(existing.getDocument("key"));
+			if (declaredFilter != null
+					&& !declaredFilter.equals(Optional.ofNullable(existing.getDocument("partialFilterExpression", null)))) {
+				var name = existing.getString("name").getValue();
+				log.atWarning().log("Dropping the index %s of the collection %s, declared with other options now",
+						name, collection.getNamespace().getCollectionName());
+				collection.dropIndex(name);
+			}
+		});
+	}
+
+	private void verifyQueryPlans() {
+		collectionScans.clear();
+		IndexRegistry.hotQueries().forEach((collectionName, queries) ->
+				queries.forEach(query -> verifyQueryPlan(collectionName, query)));
+	}
+
+	private void verifyQueryPlan(String collectionName, Bson query) {
+		var filter = query.toBsonDocument(BsonDocument.class, database.getCodecRegistry());
+		var explanation = database.runCommand(new Document("explain", new Document("find", collectionName)
+				.append("filter", filter))
+				.append("verbosity", "queryPlanner"));
+
+		var queryPlanner = explanation.get("queryPlanner", Document.class);
+		var winningPlan = queryPlanner == null ? null : queryPlanner.get("winningPlan");
+		if (containsCollectionScan(winningPlan)) {
+			log.atWarning().log("The query %s on the collection %s is planned as a COLLSCAN", filter, collectionName);
+			collectionScans.add(collectionName + ": " + filter.toJson());
+		} else {
+			log.atFine().log("The query %s on the collection %s uses an index", filter, collectionName);
+		}
+	}
+
+	private boolean containsCollectionScan(Object plan) {
+		if (plan instanceof List) {
+			return ((List<?>) plan).stream().anyMatch(this::containsCollectionScan);
+		}
+		if (!(plan instanceof Document)) {
+			return false;
+		}
+
+		var stage = (Document) plan;
+		return "COLLSCAN".equals(stage.getString("stage"))
+				|| containsCollectionScan(stage.get("inputStage"))
+				|| containsCollectionScan(stage.get("inputStages"));
+	}
+
+	public boolean isVerified() {
+		return verification.isDone() && !verification.isCompletedExceptionally();
+	}
+
+	/**
+	 * Queries of the last verification that are still planned as a collection scan
+	 */
+	public List<String> getCollectionScans() {
+		return List.copyOf(collectionScans);
+	}
+}
@@ -0,0 +1,35 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+import javax.enterprise.context.ApplicationScoped;
+
+@Readiness
+@ApplicationScoped
+public class IndexReadinessCheck implements HealthCheck {
+	private final IndexManager indexManager;
+	private final JsonSyncServerProperties properties;
+
+	public IndexReadinessCheck(IndexManager indexManager, JsonSyncServerProperties properties) {
+		this.indexManager = indexManager;
+		this.properties = properties;
+	}
+
+	@Override
+	public HealthCheckResponse call() {
+		var collectionScans = indexManager.getCollectionScans();
+		var ready = indexManager.isVerified()
+				&& (collectionScans.isEmpty() || !properties.getFailReadinessOnCollectionScan());
+
+		var builder = HealthCheckResponse.named("indexes")
+				.state(ready)
+				.withData("verified", indexManager.isVerified());
+		for (int i = 0; i < collectionScans.size(); i++) {
+			builder.withData("collscan-" + i, collectionScans.get(i));
+		}
+		return builder.build();
+	}
+}
@@ -0,0 +1,99 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import org.bson.conversions.Bson;
+
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Indexes.ascending;
+
+/**
+ * Declares the indexes of every collection, together with the queries run on each sync that must be answered
+ * through them.
+ */
+public final class IndexRegistry {
+	static final String ITEMS = "items";
+	static final String TAGS = "tags";
+	static final String DELETIONS = "deletions";
+	static final String CHANGELOG = "changelog";
+	static final String DEVICES = "devices";
+
+	private static final List<IndexModel> ELEMENT_INDEXES = List.of(
+			new IndexModel(ascending("id"), options()),
+			// the newer-than queries are an $or, and each branch needs its own index. Not partial, as the pages sort on
+			// it and start with the elements without a changed timestamp
+			new IndexModel(ascending("changed_ts", "id"), options()),
+			new IndexModel(ascending("created_on"), options()
+					.partialFilterExpression(exists("created_on")))
+	);
+
+	private static final Map<String, List<IndexModel>> INDEXES = Map.of(
+			ITEMS, ELEMENT_INDEXES,
+			TAGS, ELEMENT_INDEXES,
+			DELETIONS, List.of(
+					new IndexModel(ascending("sync_id"), options()),
+					// not partial, for the same reason as the one on changed_ts
+					new IndexModel(ascending("ts", "sync_id"), options())
+			),
+			CHANGELOG, List.of(
+					new IndexModel(ascending("seq"), options().unique(true)),
+					// to find where the entries to trim end
+					new IndexModel(ascending("at"), options())
+			),
+			DEVICES, List.of(
+					new IndexModel(ascending("device_id"), options().unique(true))
+			)
+	);
+
+	private static final Bson NEWER_THAN = SyncWrites.newerThan(0L);
+	private static final Bson BY_ID = in("id", List.of(""));
+	// the next pages, after an element without a changed timestamp and after one with it
+	private static final Bson NEXT_PAGE_WITHOUT_TIMESTAMP =
+			and(NEWER_THAN, SyncWrites.after("changed_ts", OptionalLong.empty(), "id", ""));
+	private static final Bson NEXT_PAGE = and(NEWER_THAN, SyncWrites.after("changed_ts", OptionalLong.of(0L), "id", ""));
+	private static final Bson DELETIONS_NEWER_THAN = SyncWrites.deletionsNewerThan(0L);
+
+	private static final Map<String, List<Bson>> HOT_QUERIES = Map.of(
+			ITEMS, List.of(NEWER_THAN, BY_ID, NEXT_PAGE_WITHOUT_TIMESTAMP, NEXT_PAGE),
+			TAGS, List.of(NEWER_THAN, BY_ID, NEXT_PAGE_WITHOUT_TIMESTAMP, NEXT_PAGE),
+			DELETIONS, List.of(DELETIONS_NEWER_THAN, in("sync_id", List.of("")),
+					and(DELETIONS_NEWER_THAN, SyncWrites.after("ts", OptionalLong.empty(), "sync_id", "")),
+					and(DELETIONS_NEWER_THAN, SyncWrites.after("ts", OptionalLong.of(0L), "sync_id", ""))),
+			CHANGELOG, List.of(and(gt("seq", 0L), lte("seq", 1L)))
+	);
+
+	private IndexRegistry() {
+	}
+
+	private static IndexOptions options() {
+		return new IndexOptions();
+	}
+
+	public static Map<String, List<IndexModel>> indexes() {
+		return INDEXES;
+	}
+
+	/**
+	 * Creates the declared indexes of a collection on the given one, which may be a staging copy of it. Creating an
+	 * index that already exists is a no-op.
+	 */
+	static void createIndexes(String collectionName, MongoCollection<?> collection) {
+		var indexes = INDEXES.getOrDefault(collectionName, List.of());
+		if (!indexes.isEmpty()) {
+			collection.createIndexes(indexes);
+		}
+	}
+
+	public static Map<String, List<Bson>> hotQueries() {
+		return HOT_QUERIES;
+	}
+}
@@ -0,0 +1,158 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import lombok.extern.flogger.Flogger;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.Decimal128;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * Reads and writes BSON documents straight from/to JSON-P objects, without going through a JSON string.
+ * The Mongo {@code _id} of the top level document is dropped when decoding.
+ */
+@Flogger
+public class JsonObjectCodec implements Codec<JsonObject> {
+	private static final String MONGO_ID = "_id";
+
+	@Override
+	public JsonObject decode(BsonReader reader, DecoderContext decoderContext) {
+		return readObject(reader, true);
+	}
+
+	@Override
+	public void encode(BsonWriter writer, JsonObject jsonObject, EncoderContext encoderContext) {
+		writeObject(writer, jsonObject);
+	}
+
+	@Override
+	public Class<JsonObject> getEncoderClass() {
+		return JsonObject.class;
+	}
+
+	private JsonObject readObject(BsonReader reader, boolean topLevel) {
+		var builder = Json.createObjectBuilder();
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			var name = reader.readName();
+			if (topLevel && MONGO_ID.equals(name)) {
+				reader.skipValue();
+			} else {
+				builder.add(name, readValue(reader));
+			}
+		}
+		reader.readEndDocument();
+
+		return builder.build();
+	}
+
+	private JsonArray readArray(BsonReader reader) {
+		var builder = Json.createArrayBuilder();
+
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			builder.add(readValue(reader));
+		}
+		reader.readEndArray();
+
+		return builder.build();
+	}
+
+	JsonValue readValue(BsonReader reader) {
+		switch (reader.getCurrentBsonType()) {
+			case DOCUMENT:
+				return readObject(reader, false);
+			case ARRAY:
+				return readArray(reader);
+			case STRING:
+				return Json.createValue(reader.readString());
+			case INT32:
+				return Json.createValue(reader.readInt32());
+			case INT64:
+				return Json.createValue(reader.readInt64());
+			case DOUBLE:
+				return Json.createValue(reader.readDouble());
+			case DECIMAL128:
+				return Json.createValue(reader.readDecimal128().bigDecimalValue());
+			case BOOLEAN:
+				return reader.readBoolean() ? JsonValue.TRUE : JsonValue.FALSE;
+			case DATE_TIME:
+				return Json.createValue(reader.readDateTime());
+			case OBJECT_ID:
+				return Json.createValue(reader.readObjectId().toHexString());
+			case NULL:
+				reader.readNull();
+				return JsonValue.NULL;
+			case UNDEFINED:
+				reader.readUndefined();
+				return JsonValue.NULL;
+			default:
+				log.atWarning().log("Unsupported BSON type %s. Reading it as null", reader.getCurrentBsonType());
+				reader.skipValue();
+				return JsonValue.NULL;
+		}
+	}
+
+	private void writeObject(BsonWriter writer, JsonObject jsonObject) {
+		writer.writeStartDocument();
+		jsonObject.forEach((name, value) -> {
+			writer.writeName(name);
+			writeValue(writer, value);
+		});
+		writer.writeEndDocument();
+	}
+
+	void writeValue(BsonWriter writer, JsonValue value) {
+		switch (value.getValueType()) {
+			case OBJECT:
+				writeObject(writer, value.asJsonObject());
+				break;
+			case ARRAY:
+				writer.writeStartArray();
+				value.asJsonArray().forEach(element -> writeValue(writer, element));
+				writer.writeEndArray();
+				break;
+			case STRING:
+				writer.writeString(((JsonString) value).getString());
+				break;
+			case NUMBER:
+				writeNumber(writer, (JsonNumber) value);
+				break;
+			case TRUE:
+				writer.writeBoolean(true);
+				break;
+			case FALSE:
+				writer.writeBoolean(false);
+				break;
+			default:
+				writer.writeNull();
+		}
+	}
+
+	private void writeNumber(BsonWriter writer, JsonNumber number) {
+		// same number types that Document.parse would have chosen
+		if (!number.isIntegral()) {
+			writer.writeDouble(number.doubleValue());
+			return;
+		}
+
+		var bitLength = number.bigIntegerValue().bitLength();
+		if (bitLength < Integer.SIZE) {
+			writer.writeInt32(number.intValue());
+		} else if (bitLength < Long.SIZE) {
+			writer.writeInt64(number.longValue());
+		} else {
+			writer.writeDecimal128(new Decimal128(number.bigDecimalValue()));
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import javax.json.JsonObject;
+
+/**
+ * Provides the {@link JsonObjectCodec} for every {@link JsonObject} implementation, since the driver looks up the
+ * codec by the runtime class of the documents being written.
+ */
+public class JsonObjectCodecProvider implements CodecProvider {
+	private final JsonObjectCodec codec = new JsonObjectCodec();
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+		if (JsonObject.class.isAssignableFrom(clazz)) {
+			return (Codec<T>) codec;
+		}
+		return null;
+	}
+}
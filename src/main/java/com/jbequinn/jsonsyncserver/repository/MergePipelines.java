@@ -0,0 +1,199 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.model.MergePlan;
+import org.bson.BsonDocumentWrapper;
+import org.bson.conversions.Bson;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.util.List;
+
+import static com.jbequinn.jsonsyncserver.service.JsonAccessor.getLongValueOrZero;
+
+/**
+ * The last-writer-wins rules of {@code JsonObjectMerger} as aggregation pipelines, so that an element is merged with
+ * the stored one by Mongo, atomically and without reading it first. The pipelines are used with upsert, so that a new
+ * element is simply inserted: every timestamp of the stored document is then missing, and the sent element wins
+ * everything.
+ */
+public final class MergePipelines {
+	private static final JsonObjectCodec CODEC = new JsonObjectCodec();
+	private static final String CHANGED_TIMESTAMP = "changed_ts";
+	private static final String TIMESTAMP_SUFFIX = "_ts";
+	private static final String CHANGED_TIMESTAMP_SUFFIX = "_changed_ts";
+	private static final JsonValue REMOVE = Json.createValue("$$REMOVE");
+
+	private MergePipelines() {
+	}
+
+	/**
+	 * The most recent item of both is the base, and each field with a timestamp is then taken from the item where it
+	 * is newer. The fields with a timestamp that only the stored item has are kept, even when the sent item is the
+	 * base
+	 */
+	public static List<Bson> itemMerge(JsonObject item) {
+		var plan = MergePlan.from(item.keySet());
+
+		var fieldsWithoutTimestamp = Json.createObjectBuilder();
+		item.forEach((key, value) -> {
+			if (!plan.isPairKey(key)) {
+				fieldsWithoutTimestamp.add(key, value);
+			}
+		});
+
+		var sentIsMostRecent = isNewer(item, CHANGED_TIMESTAMP);
+		var sentPairKeys = Json.createArrayBuilder();
+		var newestFields = Json.createObjectBuilder();
+		for (int pair = 0; pair < plan.size(); pair++) {
+			var valueKey = plan.valueKey(pair);
+			var timestampKey = plan.timestampKey(pair);
+			sentPairKeys.add(valueKey).add(timestampKey);
+
+			// the value of the most recent item, for when the newest side of the pair doesn't have one
+			var baseValue = cond(sentIsMostRecent, item.containsKey(valueKey) ? literal(item.get(valueKey)) : REMOVE,
+					field(valueKey));
+			var sentValue = item.containsKey(valueKey) ? literal(item.get(valueKey)) : baseValue;
+			var storedValue = cond(isPresent(valueKey), field(valueKey), baseValue);
+
+			var sentIsNewer = isNewer(item, timestampKey);
+			newestFields.add(valueKey, cond(sentIsNewer, sentValue, storedValue));
+			newestFields.add(timestampKey, cond(sentIsNewer, literal(item.get(timestampKey)), field(timestampKey)));
+		}
+
+		var base = cond(sentIsMostRecent,
+				Json.createObjectBuilder()
+						.add("$mergeObjects", Json.createArrayBuilder()
+								.add(literal(fieldsWithoutTimestamp.build()))
+								.add(storedPairFields(sentPairKeys.build())))
+						.build(),
+				Json.createValue("$$ROOT"));
+		return replaceRoot(Json.createArrayBuilder()
+				.add(Json.createObjectBuilder().add("_id", field("_id")))
+				.add(base)
+				.add(newestFields));
+	}
+
+	/**
+	 * The fields of the stored item that are part of a pair, as {@code MergePlan} finds them: the timestamps, and
+	 * the values whose timestamp is there. The pairs also sent are left out, they are merged one by one
+	 */
+	private static JsonValue storedPairFields(JsonArray sentPairKeys) {
+		var key = Json.createValue("$$field.k");
+		var isTimestamp = operator("$and",
+				operator("$ne", key, Json.createValue(CHANGED_TIMESTAMP)),
+				Json.createObjectBuilder()
+						.add("$regexMatch", Json.createObjectBuilder()
+								.add("input", key)
+								.add("regex", TIMESTAMP_SUFFIX + "$"))
+						.build());
+		var hasTimestamp = operator("$or",
+				operator("$in", operator("$concat", key, Json.createValue(TIMESTAMP_SUFFIX)), Json.createValue("$$keys")),
+				operator("$in", operator("$concat", key, Json.createValue(CHANGED_TIMESTAMP_SUFFIX)), Json.createValue("$$keys")));
+		var isStoredPairKey = operator("$and",
+				operator("$not", operator("$in", key, sentPairKeys)),
+				operator("$or", isTimestamp, hasTimestamp));
+
+		var pairFields = Json.createObjectBuilder()
+				.add("$arrayToObject", Json.createObjectBuilder()
+						.add("$filter", Json.createObjectBuilder()
+								.add("input", "$$fields")
+								.add("as", "field")
+								.add("cond", isStoredPairKey)))
+				.build();
+		return let("fields", Json.createObjectBuilder().add("$objectToArray", "$$ROOT").build(),
+				let("keys", Json.createValue("$$fields.k"), pairFields));
+	}
+
+	/**
+	 * Tags are not merged field by field: the most recent one of both is kept
+	 */
+	public static List<Bson> tagMerge(JsonObject tag) {
+		var sent = Json.createObjectBuilder()
+				.add("$mergeObjects", Json.createArrayBuilder()
+						.add(Json.createObjectBuilder().add("_id", field("_id")))
+						.add(literal(tag)))
+				.build();
+		return List.of(stage(Json.createObjectBuilder()
+				.add("$replaceRoot", Json.createObjectBuilder()
+						.add("newRoot", cond(isNewer(tag, CHANGED_TIMESTAMP), sent, Json.createValue("$$ROOT"))))));
+	}
+
+	private static List<Bson> replaceRoot(JsonArrayBuilder objectsToMerge) {
+		return List.of(stage(Json.createObjectBuilder()
+				.add("$replaceRoot", Json.createObjectBuilder()
+						.add("newRoot", Json.createObjectBuilder()
+								.add("$mergeObjects", objectsToMerge)))));
+	}
+
+	private static Bson stage(JsonObjectBuilder stage) {
+		return new BsonDocumentWrapper<>(stage.build(), CODEC);
+	}
+
+	/**
+	 * Whether the sent element is newer for the given timestamp, which is also the case when the stored one doesn't
+	 * have it. On equal timestamps the stored element wins, as in the application
+	 */
+	private static JsonValue isNewer(JsonObject sent, String timestampKey) {
+		return Json.createObjectBuilder()
+				.add("$or", Json.createArrayBuilder()
+						.add(Json.createObjectBuilder()
+								.add("$eq", Json.createArrayBuilder()
+										.add(Json.createObjectBuilder().add("$type", field(timestampKey)))
+										.add("missing")))
+						.add(Json.createObjectBuilder()
+								.add("$gt", Json.createArrayBuilder()
+										.add(getLongValueOrZero(sent, timestampKey))
+										.add(Json.createObjectBuilder()
+												.add("$ifNull", Json.createArrayBuilder()
+														.add(field(timestampKey))
+														.add(0L))))))
+				.build();
+	}
+
+	private static JsonValue isPresent(String key) {
+		return operator("$ne",
+				Json.createObjectBuilder().add("$type", field(key)).build(),
+				Json.createValue("missing"));
+	}
+
+	private static JsonValue cond(JsonValue condition, JsonValue then, JsonValue otherwise) {
+		return Json.createObjectBuilder()
+				.add("$cond", Json.createArrayBuilder()
+						.add(condition)
+						.add(then)
+						.add(otherwise))
+				.build();
+	}
+
+	private static JsonValue let(String name, JsonValue value, JsonValue in) {
+		return Json.createObjectBuilder()
+				.add("$let", Json.createObjectBuilder()
+						.add("vars", Json.createObjectBuilder().add(name, value))
+						.add("in", in))
+				.build();
+	}
+
+	private static JsonValue operator(String operator, JsonValue... arguments) {
+		var array = Json.createArrayBuilder();
+		for (var argument : arguments) {
+			array.add(argument);
+		}
+		return Json.createObjectBuilder()
+				.add(operator, array)
+				.build();
+	}
+
+	private static JsonValue literal(JsonValue value) {
+		return Json.createObjectBuilder()
+				.add("$literal", value)
+				.build();
+	}
+
+	private static JsonValue field(String key) {
+		return Json.createValue("$" + key);
+	}
+}
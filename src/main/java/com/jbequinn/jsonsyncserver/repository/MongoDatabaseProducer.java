@@ -0,0 +1,78 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Disposes;
+import javax.enterprise.inject.Produces;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Optional;
+
+import static java.util.stream.Collectors.toList;
+import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
+import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
+
+@Singleton
+public class MongoDatabaseProducer {
+	// the reactive client connects to the same server as the blocking one, configured by Quarkus
+	@ConfigProperty(name = "quarkus.mongodb.hosts")
+	List<String> hosts;
+	@ConfigProperty(name = "quarkus.mongodb.credentials.username")
+	Optional<String> username;
+	@ConfigProperty(name = "quarkus.mongodb.credentials.password")
+	Optional<String> password;
+	@ConfigProperty(name = "quarkus.mongodb.credentials.auth-source")
+	Optional<String> authSource;
+	@ConfigProperty(name = "quarkus.mongodb.database")
+	Optional<String> authDatabase;
+
+	@Produces
+	@Singleton
+	public MongoDatabase database(MongoClient mongoClient, JsonSyncServerProperties properties) {
+		var database = mongoClient.getDatabase(properties.getDatabaseName());
+		return database.withCodecRegistry(withJsonObjectCodec(database.getCodecRegistry()));
+	}
+
+	/**
+	 * Client of the reactive driver, only connected the first time the reactive sync is used. It gets the hosts and
+	 * the credentials of the blocking client, the credentials being authenticated against the same database
+	 */
+	@Produces
+	@ApplicationScoped
+	public com.mongodb.reactivestreams.client.MongoClient reactiveMongoClient() {
+		var settings = MongoClientSettings.builder()
+				.applyToClusterSettings(cluster -> cluster.hosts(hosts.stream().map(ServerAddress::new).collect(toList())));
+		username.ifPresent(user -> settings.credential(MongoCredential.createCredential(
+				user,
+				authSource.or(() -> authDatabase).orElse("admin"),
+				password.orElse("").toCharArray())));
+		return MongoClients.create(settings.build());
+	}
+
+	public void closeReactiveMongoClient(@Disposes com.mongodb.reactivestreams.client.MongoClient mongoClient) {
+		mongoClient.close();
+	}
+
+	@Produces
+	@ApplicationScoped
+	public com.mongodb.reactivestreams.client.MongoDatabase reactiveDatabase(
+			com.mongodb.reactivestreams.client.MongoClient mongoClient, JsonSyncServerProperties properties) {
+		var database = mongoClient.getDatabase(properties.getDatabaseName());
+		return database.withCodecRegistry(withJsonObjectCodec(database.getCodecRegistry()));
+	}
+
+	private CodecRegistry withJsonObjectCodec(CodecRegistry codecRegistry) {
+		return fromRegistries(
+				fromProviders(new JsonObjectCodecProvider()),
+				codecRegistry);
+	}
+}
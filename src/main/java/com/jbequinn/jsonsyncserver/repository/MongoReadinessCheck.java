@@ -0,0 +1,46 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.mongodb.client.MongoDatabase;
+import lombok.extern.flogger.Flogger;
+import org.bson.Document;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Instance;
+
+/**
+ * Pings the database with the "mongo" storage. It takes the place of the check of the Mongo extension, disabled since
+ * it would fail the readiness of the "embedded" storage, which has no database to reach
+ */
+@Readiness
+@ApplicationScoped
+@Flogger
+public class MongoReadinessCheck implements HealthCheck {
+	private final Instance<MongoDatabase> database;
+	private final JsonSyncServerProperties properties;
+
+	public MongoReadinessCheck(Instance<MongoDatabase> database, JsonSyncServerProperties properties) {
+		this.database = database;
+		this.properties = properties;
+	}
+
+	@Override
+	public HealthCheckResponse call() {
+		var builder = HealthCheckResponse.named("storage")
+				.withData("storage", properties.getStorage());
+		if (!"mongo".equals(properties.getStorage())) {
+			return builder.up().build();
+		}
+
+		try {
+			database.get().runCommand(new Document("ping", 1));
+			return builder.up().build();
+		} catch (RuntimeException e) {
+			log.atWarning().withCause(e).log("The Mongo database can't be reached");
+			return builder.down().withData("error", String.valueOf(e.getMessage())).build();
+		}
+	}
+}
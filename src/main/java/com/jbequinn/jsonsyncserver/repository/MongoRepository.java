@@ -1,213 +1,483 @@
 package com.jbequinn.jsonsyncserver.repository;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
 import com.jbequinn.jsonsyncserver.model.ChangesDto;
-import com.mongodb.client.MongoClient;
+import com.jbequinn.jsonsyncserver.model.DataChangedEvent;
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.model.Indexes;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
 import lombok.extern.flogger.Flogger;
-import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.inject.Typed;
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
-import javax.json.JsonValue;
-import javax.validation.constraints.NotNull;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.function.Consumer;
 
-import static com.mongodb.client.model.Filters.*;
-import static java.util.Objects.requireNonNull;
-import static java.util.stream.Collectors.toList;
-import static org.bson.Document.parse;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.DELETIONS;
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.DEVICES;
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.ITEMS;
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.TAGS;
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.createIndexes;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.after;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.batches;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.deletionsNewerThan;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.deviceCursor;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.logBulkWrite;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.newerThan;
 
 @ApplicationScoped
+@Typed(MongoRepository.class)
 @Flogger
-public class MongoRepository {
-	private final MongoCollection<Document> itemsCollection;
-	private final MongoCollection<Document> tagsCollection;
-	private final MongoCollection<Document> deletionsCollection;
-
-	private final ObjectMapper objectMapper;
-
-	public MongoRepository(MongoClient mongoClient, ObjectMapper objectMapper) {
-		this.objectMapper = requireNonNull(objectMapper);
-
-		var database = mongoClient.getDatabase("everdo");
+public class MongoRepository implements SyncRepository {
+	private final MongoDatabase database;
+
+	private final MongoCollection<JsonObject> itemsCollection;
+	private final MongoCollection<JsonObject> tagsCollection;
+	private final MongoCollection<JsonObject> deletionsCollection;
+	private final MongoCollection<JsonObject> devicesCollection;
+	// the same collections, for the items and tags merged and written by a sync
+	private final MongoCollection<SyncEntity> itemEntities;
+	private final MongoCollection<SyncEntity> tagEntities;
+	private final ChangeLog changeLog;
+
+	private final JsonSyncServerProperties properties;
+	private final UpdateMode updateMode;
+	private final Event<DataChangedEvent> dataChanged;
+
+	public MongoRepository(MongoDatabase database, JsonSyncServerProperties properties, Event<DataChangedEvent> dataChanged) {
+		this.database = database;
+		this.properties = properties;
+		this.updateMode = UpdateMode.of(properties.getUpdateMode());
+		this.dataChanged = dataChanged;
+
+		// the indexes are built in the background by the IndexManager
+		itemsCollection = database.getCollection(ITEMS, JsonObject.class);
+		tagsCollection = database.getCollection(TAGS, JsonObject.class);
+		deletionsCollection = database.getCollection(DELETIONS, JsonObject.class);
+		devicesCollection = database.getCollection(DEVICES, JsonObject.class);
+		itemEntities = entityCollection(itemsCollection, EntitySchema.ITEM);
+		tagEntities = entityCollection(tagsCollection, EntitySchema.TAG);
+
+		changeLog = new ChangeLog(database);
+	}
 
-		itemsCollection = database.getCollection("items");
-		tagsCollection = database.getCollection("tags");
-		deletionsCollection = database.getCollection("deletions");
+	private static MongoCollection<SyncEntity> entityCollection(MongoCollection<JsonObject> collection, EntitySchema schema) {
+		return collection
+				.withCodecRegistry(SyncEntityCodec.registryOf(schema, collection.getCodecRegistry()))
+				.withDocumentClass(SyncEntity.class);
+	}
 
-		itemsCollection.createIndex(Indexes.ascending("id"));
-		tagsCollection.createIndex(Indexes.ascending("id"));
+	@Override
+	public void forEachItem(Consumer<JsonObject> consumer) {
+		forEachInCollection(itemsCollection, consumer);
 	}
 
-	public JsonArray findAllItems() {
-		return findAllByCollection(itemsCollection);
+	@Override
+	public void forEachTag(Consumer<JsonObject> consumer) {
+		forEachInCollection(tagsCollection, consumer);
 	}
 
-	public JsonArray findAllTags() {
-		return findAllByCollection(tagsCollection);
+	@Override
+	public void forEachDeletion(Consumer<JsonObject> consumer) {
+		forEachInCollection(deletionsCollection, consumer);
 	}
 
-	public JsonArray findAllDeletions() {
-		return findAllByCollection(deletionsCollection);
+	@Override
+	public List<SyncEntity> findItemsById(Collection<String> ids) {
+		return findInCollectionById(itemEntities, "id", ids);
 	}
 
-	public List<JsonObject> findItemsById(List<String> ids) {
-		return findInCollectionById(itemsCollection, ids);
+	@Override
+	public List<SyncEntity> findTagsById(Collection<String> ids) {
+		return findInCollectionById(tagEntities, "id", ids);
 	}
 
-	public List<JsonObject> findTagsById(List<String> ids) {
-		return findInCollectionById(tagsCollection, ids);
+	@Override
+	public List<JsonObject> findDeletionsBySyncId(Collection<String> syncIds) {
+		return findInCollectionById(deletionsCollection, "sync_id", syncIds);
 	}
 
-	private List<JsonObject> findInCollectionById(MongoCollection<Document> collection, List<String> ids) {
+	private <T> List<T> findInCollectionById(MongoCollection<T> collection, String idField, Collection<String> ids) {
 		if (ids == null || ids.isEmpty()) {
 			log.atFine().log("No ids to find in the collection %s", collection.getNamespace().getCollectionName());;
 			return List.of();
 		}
 
 		return collection.find()
-				.filter(in("id", ids))
-				.map(this::fromDocument)
+				.filter(in(idField, ids))
 				.into(new ArrayList<>());
 	}
 
+	@Override
+	public long currentChangeSequence() {
+		return changeLog.currentSequence();
+	}
+
+	@Override
+	public Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo) {
+		return changeLog.findChangedIdsSince(cursor, upTo);
+	}
+
+	@Override
+	public Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo, int limit) {
+		return changeLog.findChangedIdsSince(cursor, upTo, limit);
+	}
+
+	@Override
 	public JsonArray findItemsNewerThan(long timestamp) {
 		return findInCollectionNewerThan(itemsCollection, timestamp);
 	}
 
+	@Override
 	public JsonArray findTagsNewerThan(long timestamp) {
 		return findInCollectionNewerThan(tagsCollection, timestamp);
 	}
 
-	private JsonArray findInCollectionNewerThan(MongoCollection<Document> collection, long timestamp) {
+	private JsonArray findInCollectionNewerThan(MongoCollection<JsonObject> collection, long timestamp) {
 		var builder = Json.createArrayBuilder();
 		collection.find()
-				.filter(or(
-						gt("changed_ts", timestamp),
-						gt("created_on", timestamp)
-				))
-				.map(this::fromDocument)
+				.filter(newerThan(timestamp))
 				.forEach((Consumer<JsonObject>) builder::add);
 
 		return builder.build();
 	}
 
+	@Override
 	public JsonArray findDeletionsNewerThan(long timestamp) {
 		var builder = Json.createArrayBuilder();
 		deletionsCollection.find()
-				.filter(gt("ts", timestamp))
-				.map(this::fromDocument)
+				.filter(deletionsNewerThan(timestamp))
 				.forEach((Consumer<JsonObject>) builder::add);
 
 		return builder.build();
 	}
 
+	@Override
+	public List<JsonObject> findItemsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit) {
+		return findPageInCollection(itemsCollection, newerThan(timestamp), "changed_ts", afterChangedTs, "id", afterId, limit);
+	}
+
+	@Override
+	public List<JsonObject> findTagsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit) {
+		return findPageInCollection(tagsCollection, newerThan(timestamp), "changed_ts", afterChangedTs, "id", afterId, limit);
+	}
+
+	@Override
+	public List<JsonObject> findDeletionsPageNewerThan(long timestamp, OptionalLong afterTs, String afterSyncId, int limit) {
+		return findPageInCollection(deletionsCollection, deletionsNewerThan(timestamp), "ts", afterTs, "sync_id", afterSyncId, limit);
+	}
+
+	private List<JsonObject> findPageInCollection(MongoCollection<JsonObject> collection, Bson filter,
+			String timestampField, OptionalLong afterTimestamp, String idField, String afterId, int limit) {
+		if (afterId != null) {
+			filter = and(filter, after(timestampField, afterTimestamp, idField, afterId));
+		}
+
+		return collection.find()
+				.filter(filter)
+				.sort(ascending(timestampField, idField))
+				.limit(limit)
+				.into(new ArrayList<>());
+	}
+
+	@Override
 	public void saveNewItems(List<JsonObject> items) {
 		saveInCollection(itemsCollection, items);
+		dataChanged.fire(new DataChangedEvent());
 	}
 
+	@Override
 	public void saveNewTags(List<JsonObject> tags) {
 		saveInCollection(tagsCollection, tags);
+		dataChanged.fire(new DataChangedEvent());
 	}
 
+	@Override
 	public void saveNewDeletions(List<JsonObject> deletions) {
 		saveInCollection(deletionsCollection, deletions);
+		dataChanged.fire(new DataChangedEvent());
 	}
 
-	private void saveInCollection(MongoCollection<Document> collection, List<JsonObject> objects) {
+	private void saveInCollection(MongoCollection<JsonObject> collection, List<JsonObject> objects) {
 		if (objects == null || objects.isEmpty()) {
 			log.atFine().log("No elements to save in the collection %s", collection.getNamespace().getCollectionName());
 			return;
 		}
-		collection.insertMany(toDocuments(objects));
+		collection.insertMany(objects);
 	}
 
-	public void updateExistingItems(List<JsonObject> items) {
-		updateInCollection(itemsCollection, items);
-	}
+	@Override
+	public void sync(ChangesDto changes) {
+		var writes = SyncWrites.of(changes, properties.getBulkWriteBatchSize(), updateMode);
 
-	public void updateExistingTags(List<JsonObject> tags) {
-		updateInCollection(tagsCollection, tags);
+		bulkWrite(itemEntities, writes.getItemWrites());
+		bulkWrite(tagEntities, writes.getTagWrites());
+		bulkWrite(deletionsCollection, writes.getDeletionWrites());
+
+		changeLog.append(writes.getChangedItemIds(), writes.getChangedTagIds(), writes.getChangedDeletionSyncIds());
+		dataChanged.fire(new DataChangedEvent());
 	}
 
-	private void updateInCollection(MongoCollection<Document> collection, List<JsonObject> jsonObjects) {
-		if (jsonObjects == null || jsonObjects.isEmpty()) {
-			log.atFine().log("No elements to update in the collection %s", collection.getNamespace().getCollectionName());
+	private <T> void bulkWrite(MongoCollection<T> collection, List<WriteModel<T>> writes) {
+		var collectionName = collection.getNamespace().getCollectionName();
+		if (writes.isEmpty()) {
+			log.atFine().log("No elements to write in the collection %s", collectionName);
 			return;
 		}
 
-		jsonObjects.stream()
-				.map(JsonValue::asJsonObject)
-				.forEach(item -> collection
-						.replaceOne(eq("id", item.getString("id")), parse(item.toString())));
+		for (var batch : batches(writes, properties.getBulkWriteBatchSize())) {
+			var start = System.nanoTime();
+			var result = collection.bulkWrite(batch, new BulkWriteOptions().ordered(false));
+			logBulkWrite(collectionName, batch.size(), start, result);
+		}
 	}
 
-	public void sync(ChangesDto changes) {
-		saveNewItems(changes.getNewItemsToSave());
-		updateExistingItems(changes.getItemsToUpdate());
-
-		saveNewTags(changes.getNewTagsToSave());
-		updateExistingTags(changes.getTagsToUpdate());
-
-		saveNewDeletions(changes.getNewDeletions());
-
-		deleteInCollection(itemsCollection, changes.getItemsIdsToDelete());
-		deleteInCollection(tagsCollection, changes.getTagIdsToDelete());
+	@Override
+	public long deleteDeletionsUpTo(long timestamp) {
+		var deleted = deletionsCollection.deleteMany(lte("ts", timestamp)).getDeletedCount();
+		if (deleted > 0) {
+			dataChanged.fire(new DataChangedEvent());
+		}
+		return deleted;
 	}
 
-	private void deleteInCollection(MongoCollection<Document> collection, List<String> ids) {
-		if (ids == null || ids.isEmpty()) {
-			log.atFine().log("No ids to delete in the collection %s", collection.getNamespace().getCollectionName());
-			return;
-		}
+	@Override
+	public void saveDeviceCursor(String deviceId, long lastSyncTs, long seenAt) {
+		devicesCollection.replaceOne(eq("device_id", deviceId), deviceCursor(deviceId, lastSyncTs, seenAt),
+				new ReplaceOptions().upsert(true));
+	}
 
-		collection.deleteMany(in("id", ids));
+	@Override
+	public OptionalLong findOldestDeviceCursor(long seenSince) {
+		var oldest = devicesCollection.find(gte("last_seen", seenSince))
+				.sort(ascending("last_sync_ts"))
+				.limit(1)
+				.first();
+		return oldest == null ? OptionalLong.empty() : OptionalLong.of(oldest.getJsonNumber("last_sync_ts").longValue());
 	}
 
+	@Override
 	public void deleteAllItems() {
-		itemsCollection.deleteMany(new Document());
+		itemsCollection.drop();
+		createIndexes(ITEMS, itemsCollection);
+		dataChanged.fire(new DataChangedEvent());
 	}
 
+	@Override
 	public void deleteAllTags() {
-		tagsCollection.deleteMany(new Document());
+		tagsCollection.drop();
+		createIndexes(TAGS, tagsCollection);
+		dataChanged.fire(new DataChangedEvent());
 	}
 
+	@Override
 	public void deleteAllDeletions() {
-		deletionsCollection.deleteMany(new Document());
+		deletionsCollection.drop();
+		createIndexes(DELETIONS, deletionsCollection);
+		dataChanged.fire(new DataChangedEvent());
 	}
 
-	private JsonArray findAllByCollection(MongoCollection<Document> collection) {
-		var builder = Json.createArrayBuilder();
-		collection.find()
-				.map(this::fromDocument)
-				.forEach((Consumer<JsonObject>) builder::add);
+	@Override
+	public void resetChangeLog() {
+		changeLog.reset();
+	}
 
-		return builder.build();
+	@Override
+	public long deleteChangesRecordedBefore(long timestamp) {
+		return changeLog.deleteRecordedBefore(timestamp);
 	}
 
-	private List<Document> toDocuments(List<JsonObject> jsonArray) {
-		return jsonArray.stream()
-				.map(jsonObject -> parse(jsonObject.toString()))
-				.collect(toList());
+	@Override
+	public StagingLoad startStagingLoad() {
+		return new MongoStagingLoad("_staging_" + new ObjectId().toHexString());
 	}
 
-	@NotNull
-	private JsonObject fromDocument(Document document) {
-		document.remove("_id");
-		try {
-			return objectMapper.readValue(document.toJson(), JsonObject.class);
-		} catch (IOException e) {
-			log.atSevere()
-					.withCause(e)
-					.log("Error when reading the Mongo document: %s", document);
-			return JsonValue.EMPTY_JSON_OBJECT;
+	/**
+	 * Set of collections, next to the live ones, where a full data set is loaded and indexed before being swapped in
+	 */
+	private class MongoStagingLoad implements StagingLoad {
+		private final MongoCollection<JsonObject> stagingItems;
+		private final MongoCollection<JsonObject> stagingTags;
+		private final MongoCollection<JsonObject> stagingDeletions;
+		private final String suffix;
+		private boolean committed;
+
+		private MongoStagingLoad(String suffix) {
+			this.suffix = suffix;
+			stagingItems = createStagingCollection(ITEMS + suffix);
+			stagingTags = createStagingCollection(TAGS + suffix);
+			stagingDeletions = createStagingCollection(DELETIONS + suffix);
+		}
+
+		private MongoCollection<JsonObject> createStagingCollection(String name) {
+			// created upfront, so that there's always something to rename even if nothing is loaded
+			database.createCollection(name);
+			return database.getCollection(name, JsonObject.class);
+		}
+
+		@Override
+		public void saveNewItems(List<JsonObject> items) {
+			saveInCollection(stagingItems, items);
 		}
+
+		@Override
+		public void saveNewTags(List<JsonObject> tags) {
+			saveInCollection(stagingTags, tags);
+		}
+
+		@Override
+		public void saveNewDeletions(List<JsonObject> deletions) {
+			saveInCollection(stagingDeletions, deletions);
+		}
+
+		/**
+		 * Replaces the live collections with the staging ones. Each one is renamed onto its live collection, dropping it
+		 * in the same atomic step, so readers see either the old or the new version of every collection, but never a
+		 * missing or partially loaded one.
+		 * <p>
+		 * The three renames are not atomic together though. A copy of every live collection is made beforehand, and
+		 * only dropped once the three staging collections are in place: when a rename fails, the collections already
+		 * swapped are replaced by their copies, so that the data set is never made of collections from two loads.
+		 */
+		@Override
+		public void commit() {
+			createIndexes(ITEMS, stagingItems);
+			createIndexes(TAGS, stagingTags);
+			createIndexes(DELETIONS, stagingDeletions);
+
+			var swaps = List.of(
+					new Swap(ITEMS, stagingItems, itemsCollection),
+					new Swap(TAGS, stagingTags, tagsCollection),
+					new Swap(DELETIONS, stagingDeletions, deletionsCollection));
+			try {
+				swaps.forEach(Swap::copyPrevious);
+				swaps.forEach(Swap::apply);
+			} catch (MongoException e) {
+				log.atSevere().withCause(e).log("Error when replacing the collections, putting the previous ones back");
+				swaps.forEach(Swap::rollBack);
+				swaps.forEach(Swap::dropPrevious);
+				throw e;
+			}
+			swaps.forEach(Swap::dropPrevious);
+
+			changeLog.reset();
+			dataChanged.fire(new DataChangedEvent());
+
+			committed = true;
+		}
+
+		@Override
+		public void close() {
+			if (!committed) {
+				log.atWarning().log("Discarding the staging collection %s and its siblings",
+						stagingItems.getNamespace().getCollectionName());
+				stagingItems.drop();
+				stagingTags.drop();
+				stagingDeletions.drop();
+			}
+		}
+
+		/**
+		 * Replacement of one live collection by its staging one, that can be undone with a copy of the previous version
+		 * until that copy is dropped
+		 */
+		private class Swap {
+			private final String collectionName;
+			private final MongoCollection<JsonObject> staging;
+			private final MongoCollection<JsonObject> target;
+			private final MongoCollection<JsonObject> previous;
+			private boolean previousCopied;
+			private boolean stagingMovedIn;
+
+			private Swap(String collectionName, MongoCollection<JsonObject> staging, MongoCollection<JsonObject> target) {
+				this.collectionName = collectionName;
+				this.staging = staging;
+				this.target = target;
+				this.previous = database.getCollection(collectionName + "_previous" + suffix, JsonObject.class);
+			}
+
+			private void copyPrevious() {
+				if (collectionExists(target.getNamespace())) {
+					// the live collection stays where it is, the syncs are kept out by the push until the swap is over
+					target.aggregate(List.of(Aggregates.out(previous.getNamespace().getCollectionName()))).toCollection();
+					previousCopied = true;
+				}
+			}
+
+			private void apply() {
+				log.atFine().log("Replacing the collection %s with %s",
+						target.getNamespace().getCollectionName(), staging.getNamespace().getCollectionName());
+				staging.renameCollection(target.getNamespace(), new RenameCollectionOptions().dropTarget(true));
+				stagingMovedIn = true;
+			}
+
+			private void rollBack() {
+				if (!stagingMovedIn) {
+					return;
+				}
+				try {
+					if (previousCopied) {
+						// the copy has none of the indexes, they are built before it is renamed back
+						createIndexes(collectionName, previous);
+						previous.renameCollection(target.getNamespace(), new RenameCollectionOptions().dropTarget(true));
+						previousCopied = false;
+					} else {
+						// there was nothing before the load
+						target.drop();
+						createIndexes(collectionName, target);
+					}
+					stagingMovedIn = false;
+				} catch (MongoException e) {
+					log.atSevere().withCause(e).log("Could not put back the collection %s, its previous version is in %s",
+							target.getNamespace().getCollectionName(), previous.getNamespace().getCollectionName());
+					// kept for a restore by hand
+					previousCopied = false;
+				}
+			}
+
+			private void dropPrevious() {
+				if (previousCopied) {
+					previous.drop();
+					previousCopied = false;
+				}
+			}
+		}
+	}
+
+	private boolean collectionExists(MongoNamespace namespace) {
+		return database.listCollectionNames()
+				.into(new ArrayList<>())
+				.contains(namespace.getCollectionName());
+	}
+
+	private void forEachInCollection(MongoCollection<JsonObject> collection, Consumer<JsonObject> consumer) {
+		// the documents are handed over one by one, as they come off the cursor
+		collection.find()
+				.forEach(consumer);
 	}
 }
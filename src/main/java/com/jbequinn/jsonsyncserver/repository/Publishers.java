@@ -0,0 +1,57 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Adapts the publishers of the reactive Mongo driver to completable futures, so that they can be composed like the
+ * rest of the sync
+ */
+final class Publishers {
+	private Publishers() {
+	}
+
+	static <T> CompletableFuture<List<T>> toList(Publisher<T> publisher) {
+		var future = new CompletableFuture<List<T>>();
+		publisher.subscribe(new Subscriber<T>() {
+			private final List<T> elements = new ArrayList<>();
+
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(T element) {
+				elements.add(element);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				future.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				future.complete(elements);
+			}
+		});
+		return future;
+	}
+
+	static <T> CompletableFuture<Optional<T>> first(Publisher<T> publisher) {
+		return toList(publisher)
+				.thenApply(elements -> elements.stream().findFirst());
+	}
+
+	static CompletableFuture<Void> completion(Publisher<?> publisher) {
+		return toList(publisher)
+				.thenApply(elements -> null);
+	}
+}
@@ -0,0 +1,143 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import lombok.extern.flogger.Flogger;
+import org.bson.Document;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+import static com.jbequinn.jsonsyncserver.repository.ChangeLog.COMMITTED_SEQUENCE;
+import static com.jbequinn.jsonsyncserver.repository.ChangeLog.COUNTER_ID;
+import static com.jbequinn.jsonsyncserver.repository.ChangeLog.ITEM;
+import static com.jbequinn.jsonsyncserver.repository.ChangeLog.RECORDED_AT;
+import static com.jbequinn.jsonsyncserver.repository.ChangeLog.RESET_SEQUENCE;
+import static com.jbequinn.jsonsyncserver.repository.ChangeLog.SEQUENCE;
+import static com.jbequinn.jsonsyncserver.repository.ChangeLog.TAG;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.max;
+
+/**
+ * Non-blocking counterpart of {@link ChangeLog}, writing to the same collections and moving the same watermark, so
+ * that the current sequence covers the entries written by either of them
+ */
+@Flogger
+class ReactiveChangeLog {
+	private final MongoCollection<Document> entries;
+	private final MongoCollection<Document> counters;
+
+	ReactiveChangeLog(MongoDatabase database) {
+		entries = database.getCollection(IndexRegistry.CHANGELOG);
+		counters = database.getCollection("counters");
+	}
+
+	CompletableFuture<Void> append(Collection<String> itemIds, Collection<String> tagIds, Collection<String> deletionSyncIds) {
+		var count = itemIds.size() + tagIds.size() + deletionSyncIds.size();
+		if (count == 0) {
+			log.atFine().log("Nothing to append to the change log");
+			return CompletableFuture.completedFuture(null);
+		}
+
+		return reserve(count)
+				.thenCompose(lastSequence -> {
+					log.atFine().log("Appending %d entries to the change log, up to the sequence %d", count, lastSequence);
+					return Publishers.completion(entries.insertMany(
+							ChangeLog.entries(lastSequence, itemIds, tagIds, deletionSyncIds),
+							new InsertManyOptions().ordered(false)));
+				})
+				.thenCompose(ignored -> Publishers.first(counters.find(eq("_id", COUNTER_ID)).first()))
+				.thenCompose(this::advanceWatermark)
+				.thenApply(watermark -> null);
+	}
+
+	private CompletableFuture<Long> reserve(int count) {
+		return Publishers.first(counters.findOneAndUpdate(
+				eq("_id", COUNTER_ID),
+				inc(SEQUENCE, (long) count),
+				new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)))
+				.thenApply(counter -> getLongOrZero(counter, SEQUENCE));
+	}
+
+	/**
+	 * @see ChangeLog#currentSequence()
+	 */
+	CompletableFuture<Long> currentSequence() {
+		return Publishers.first(counters.find(eq("_id", COUNTER_ID)).first())
+				.thenCompose(counter -> {
+					if (getLongOrZero(counter, COMMITTED_SEQUENCE) < getLongOrZero(counter, SEQUENCE)) {
+						return advanceWatermark(counter);
+					}
+					return CompletableFuture.completedFuture(getLongOrZero(counter, COMMITTED_SEQUENCE));
+				});
+	}
+
+	private CompletableFuture<Long> advanceWatermark(Optional<Document> counter) {
+		var committed = Math.max(getLongOrZero(counter, COMMITTED_SEQUENCE), getLongOrZero(counter, RESET_SEQUENCE));
+		return Publishers.toList(entries.find(and(gt(SEQUENCE, committed), lte(SEQUENCE, getLongOrZero(counter, SEQUENCE))))
+				.projection(include(SEQUENCE, RECORDED_AT))
+				.sort(ascending(SEQUENCE))
+				.limit(ChangeLog.WATERMARK_BATCH_SIZE))
+				.thenCompose(written -> {
+					var watermark = ChangeLog.watermark(committed, written, Instant.now().getEpochSecond());
+					if (watermark <= getLongOrZero(counter, COMMITTED_SEQUENCE)) {
+						return CompletableFuture.completedFuture(watermark);
+					}
+					return Publishers.completion(counters.updateOne(eq("_id", COUNTER_ID), max(COMMITTED_SEQUENCE, watermark)))
+							.thenApply(ignored -> watermark);
+				});
+	}
+
+	/**
+	 * @see ChangeLog#findChangedIdsSince(long, long)
+	 */
+	CompletableFuture<Optional<ChangedIds>> findChangedIdsSince(long cursor, long upTo) {
+		return Publishers.first(counters.find(eq("_id", COUNTER_ID)).first())
+				.thenCompose(counter -> {
+					if (cursor < getLongOrZero(counter, RESET_SEQUENCE) || cursor > upTo) {
+						log.atFine().log("The cursor %d is not valid anymore", cursor);
+						return CompletableFuture.completedFuture(Optional.empty());
+					}
+
+					return Publishers.toList(entries.find(and(gt(SEQUENCE, cursor), lte(SEQUENCE, upTo)))
+							.projection(include("type", "id")))
+							.thenApply(changes -> {
+								var changedIds = new ChangedIds();
+								changedIds.setLastSequence(upTo);
+								changes.forEach(entry -> {
+									switch (entry.getString("type")) {
+										case ITEM:
+											changedIds.getItemIds().add(entry.getString("id"));
+											break;
+										case TAG:
+											changedIds.getTagIds().add(entry.getString("id"));
+											break;
+										default:
+											changedIds.getDeletionSyncIds().add(entry.getString("id"));
+									}
+								});
+								return Optional.of(changedIds);
+							});
+				});
+	}
+
+	private long getLongOrZero(Optional<Document> document, String key) {
+		return document
+				.map(value -> value.get(key))
+				.filter(Number.class::isInstance)
+				.map(value -> ((Number) value).longValue())
+				.orElse(0L);
+	}
+}
@@ -0,0 +1,177 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.DataChangedEvent;
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import lombok.extern.flogger.Flogger;
+import org.bson.conversions.Bson;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.DELETIONS;
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.DEVICES;
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.ITEMS;
+import static com.jbequinn.jsonsyncserver.repository.IndexRegistry.TAGS;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.batches;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.deletionsNewerThan;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.deviceCursor;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.logBulkWrite;
+import static com.jbequinn.jsonsyncserver.repository.SyncWrites.newerThan;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+/**
+ * The queries and writes of a sync on the reactive Mongo driver. None of its methods blocks: they return as soon as
+ * the command is sent, and the futures are completed by the driver threads
+ */
+@ApplicationScoped
+@Flogger
+public class ReactiveMongoRepository {
+	private final MongoCollection<JsonObject> itemsCollection;
+	private final MongoCollection<JsonObject> tagsCollection;
+	private final MongoCollection<JsonObject> deletionsCollection;
+	private final MongoCollection<JsonObject> devicesCollection;
+	// see MongoRepository
+	private final MongoCollection<SyncEntity> itemEntities;
+	private final MongoCollection<SyncEntity> tagEntities;
+	private final ReactiveChangeLog changeLog;
+
+	private final JsonSyncServerProperties properties;
+	private final UpdateMode updateMode;
+	private final Event<DataChangedEvent> dataChanged;
+
+	public ReactiveMongoRepository(MongoDatabase database, JsonSyncServerProperties properties,
+			Event<DataChangedEvent> dataChanged) {
+		this.properties = properties;
+		this.updateMode = UpdateMode.of(properties.getUpdateMode());
+		this.dataChanged = dataChanged;
+
+		itemsCollection = database.getCollection(ITEMS, JsonObject.class);
+		tagsCollection = database.getCollection(TAGS, JsonObject.class);
+		deletionsCollection = database.getCollection(DELETIONS, JsonObject.class);
+		devicesCollection = database.getCollection(DEVICES, JsonObject.class);
+		itemEntities = entityCollection(itemsCollection, EntitySchema.ITEM);
+		tagEntities = entityCollection(tagsCollection, EntitySchema.TAG);
+
+		changeLog = new ReactiveChangeLog(database);
+	}
+
+	private static MongoCollection<SyncEntity> entityCollection(MongoCollection<JsonObject> collection, EntitySchema schema) {
+		return collection
+				.withCodecRegistry(SyncEntityCodec.registryOf(schema, collection.getCodecRegistry()))
+				.withDocumentClass(SyncEntity.class);
+	}
+
+	public CompletableFuture<List<SyncEntity>> findItemsById(Collection<String> ids) {
+		return findInCollectionById(itemEntities, "id", ids);
+	}
+
+	public CompletableFuture<List<SyncEntity>> findTagsById(Collection<String> ids) {
+		return findInCollectionById(tagEntities, "id", ids);
+	}
+
+	public CompletableFuture<List<JsonObject>> findDeletionsBySyncId(Collection<String> syncIds) {
+		return findInCollectionById(deletionsCollection, "sync_id", syncIds);
+	}
+
+	private <T> CompletableFuture<List<T>> findInCollectionById(MongoCollection<T> collection, String idField,
+			Collection<String> ids) {
+		if (ids == null || ids.isEmpty()) {
+			log.atFine().log("No ids to find in the collection %s", collection.getNamespace().getCollectionName());
+			return CompletableFuture.completedFuture(List.of());
+		}
+
+		return Publishers.toList(collection.find(in(idField, ids)));
+	}
+
+	/**
+	 * @see MongoRepository#currentChangeSequence()
+	 */
+	public CompletableFuture<Long> currentChangeSequence() {
+		return changeLog.currentSequence();
+	}
+
+	/**
+	 * @see MongoRepository#findChangedIdsSince(long, long)
+	 */
+	public CompletableFuture<Optional<ChangedIds>> findChangedIdsSince(long cursor, long upTo) {
+		return changeLog.findChangedIdsSince(cursor, upTo);
+	}
+
+	public CompletableFuture<JsonArray> findItemsNewerThan(long timestamp) {
+		return findInCollection(itemsCollection, newerThan(timestamp));
+	}
+
+	public CompletableFuture<JsonArray> findTagsNewerThan(long timestamp) {
+		return findInCollection(tagsCollection, newerThan(timestamp));
+	}
+
+	public CompletableFuture<JsonArray> findDeletionsNewerThan(long timestamp) {
+		return findInCollection(deletionsCollection, deletionsNewerThan(timestamp));
+	}
+
+	private CompletableFuture<JsonArray> findInCollection(MongoCollection<JsonObject> collection, Bson filter) {
+		return Publishers.toList(collection.find(filter))
+				.thenApply(jsonObjects -> {
+					var builder = Json.createArrayBuilder();
+					jsonObjects.forEach(builder::add);
+					return builder.build();
+				});
+	}
+
+	public CompletableFuture<Void> sync(ChangesDto changes) {
+		var writes = SyncWrites.of(changes, properties.getBulkWriteBatchSize(), updateMode);
+
+		// the three collections are independent, so their writes run at the same time
+		return CompletableFuture.allOf(
+				bulkWrite(itemEntities, writes.getItemWrites()),
+				bulkWrite(tagEntities, writes.getTagWrites()),
+				bulkWrite(deletionsCollection, writes.getDeletionWrites()))
+				.thenCompose(ignored -> changeLog.append(
+						writes.getChangedItemIds(), writes.getChangedTagIds(), writes.getChangedDeletionSyncIds()))
+				.thenRun(() -> dataChanged.fire(new DataChangedEvent()));
+	}
+
+	/**
+	 * Records the {@code last_sync_ts} that a device has acknowledged, that is, the one it sent in its last sync
+	 */
+	public CompletableFuture<Void> saveDeviceCursor(String deviceId, long lastSyncTs, long seenAt) {
+		return Publishers.completion(devicesCollection.replaceOne(eq("device_id", deviceId),
+				deviceCursor(deviceId, lastSyncTs, seenAt), new ReplaceOptions().upsert(true)));
+	}
+
+	private <T> CompletableFuture<Void> bulkWrite(MongoCollection<T> collection, List<WriteModel<T>> writes) {
+		var collectionName = collection.getNamespace().getCollectionName();
+		if (writes.isEmpty()) {
+			log.atFine().log("No elements to write in the collection %s", collectionName);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		// the batches of a collection are written one after another, like in the blocking repository
+		var written = CompletableFuture.<Void>completedFuture(null);
+		for (var batch : batches(writes, properties.getBulkWriteBatchSize())) {
+			written = written.thenCompose(ignored -> {
+				var start = System.nanoTime();
+				return Publishers.first(collection.bulkWrite(batch, new BulkWriteOptions().ordered(false)))
+						.thenAccept(result -> result.ifPresent(value -> logBulkWrite(collectionName, batch.size(), start, value)));
+			});
+		}
+		return written;
+	}
+}
@@ -0,0 +1,144 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Timer;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool where the blocking repository calls are run, instead of the common ForkJoinPool that is sized to the
+ * number of cores and shared with the rest of the JVM.
+ * <p>
+ * In the "virtual" mode, every call runs in its own virtual thread instead. Waiting for Mongo then doesn't hold a
+ * platform thread, and there is no pool size to tune. That mode needs a JVM with virtual threads: the server refuses
+ * to start with it otherwise, rather than silently running the pool it was configured to replace.
+ */
+@ApplicationScoped
+@Flogger
+public class RepositoryExecutor implements Executor {
+	private static final String NAME = "repository-io";
+
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final AtomicInteger tasksInFlight = new AtomicInteger();
+	private final Timer taskLatency;
+
+	public RepositoryExecutor(JsonSyncServerProperties properties, MetricRegistry metricRegistry) {
+		switch (properties.getRepositoryExecutorMode()) {
+			case "platform":
+				executor = threadPool(properties, metricRegistry);
+				break;
+			case "virtual":
+				executor = virtualThreadPerTaskExecutor();
+				log.atInfo().log("Repository executor with a virtual thread per task");
+				break;
+			default:
+				throw new IllegalArgumentException(
+						"Unknown mode for the repository executor: " + properties.getRepositoryExecutorMode());
+		}
+		virtualThreads = !(executor instanceof ThreadPoolExecutor);
+
+		metricRegistry.register(NAME + "_tasks_in_flight", (Gauge<Integer>) tasksInFlight::get);
+		taskLatency = metricRegistry.timer(NAME + "_task_latency");
+	}
+
+	private ThreadPoolExecutor threadPool(JsonSyncServerProperties properties, MetricRegistry metricRegistry) {
+		var threads = properties.getRepositoryExecutorThreads();
+		var executor = new ThreadPoolExecutor(
+				threads, threads,
+				1, TimeUnit.MINUTES,
+				new ArrayBlockingQueue<>(properties.getRepositoryExecutorQueueCapacity()),
+				threadFactory(),
+				rejectionPolicy(properties.getRepositoryExecutorRejectionPolicy()));
+		executor.allowCoreThreadTimeOut(true);
+
+		log.atInfo().log("Repository executor with %d threads and a queue of %d tasks",
+				threads, properties.getRepositoryExecutorQueueCapacity());
+
+		metricRegistry.register(NAME + "_queue_depth", (Gauge<Integer>) () -> executor.getQueue().size());
+		metricRegistry.register(NAME + "_active_threads", (Gauge<Integer>) executor::getActiveCount);
+		metricRegistry.register(NAME + "_pool_size", (Gauge<Integer>) executor::getPoolSize);
+		return executor;
+	}
+
+	/**
+	 * Looked up by reflection, so that the same build runs on the JVMs without virtual threads
+	 */
+	private static ExecutorService virtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("The \"virtual\" mode of the repository executor needs a JVM with virtual "
+					+ "threads, this one is " + Runtime.version(), e);
+		}
+	}
+
+	/**
+	 * Whether each task gets its own virtual thread, so that blocking in it costs nothing to the rest of the server
+	 */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	private ThreadFactory threadFactory() {
+		var counter = new AtomicInteger();
+		return runnable -> {
+			var thread = new Thread(runnable, NAME + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private RejectedExecutionHandler rejectionPolicy(String policy) {
+		switch (policy) {
+			case "abort":
+				return new ThreadPoolExecutor.AbortPolicy();
+			case "caller-runs":
+				return new ThreadPoolExecutor.CallerRunsPolicy();
+			default:
+				throw new IllegalArgumentException("Unknown rejection policy for the repository executor: " + policy);
+		}
+	}
+
+	/**
+	 * Runs the task in the pool. The latency recorded goes from the submission to the end of the task, so that it
+	 * includes the time spent waiting in the queue.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		var submitted = System.nanoTime();
+		tasksInFlight.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					task.run();
+				} finally {
+					tasksInFlight.decrementAndGet();
+					taskLatency.update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			tasksInFlight.decrementAndGet();
+			throw e;
+		}
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,88 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import javax.json.JsonValue;
+
+/**
+ * Reads and writes BSON documents straight from/to {@link SyncEntity}s of one schema. The integers are handed over as
+ * longs, so the timestamps of the schema never become JSON values. The rest of the values are read and written like
+ * {@link JsonObjectCodec} does, and the Mongo {@code _id} is dropped when decoding.
+ */
+public class SyncEntityCodec implements Codec<SyncEntity> {
+	private static final String MONGO_ID = "_id";
+
+	private final EntitySchema schema;
+	private final JsonObjectCodec jsonCodec = new JsonObjectCodec();
+
+	public SyncEntityCodec(EntitySchema schema) {
+		this.schema = schema;
+	}
+
+	/**
+	 * The registry of a collection of the given schema: this codec for the entities, and the given one for the rest
+	 */
+	static CodecRegistry registryOf(EntitySchema schema, CodecRegistry registry) {
+		return CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(new SyncEntityCodec(schema)), registry);
+	}
+
+	@Override
+	public SyncEntity decode(BsonReader reader, DecoderContext decoderContext) {
+		var builder = SyncEntity.builder(schema);
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			var name = reader.readName();
+			if (MONGO_ID.equals(name)) {
+				reader.skipValue();
+			} else if (reader.getCurrentBsonType() == BsonType.INT32) {
+				builder.set(name, reader.readInt32());
+			} else if (reader.getCurrentBsonType() == BsonType.INT64) {
+				builder.set(name, reader.readInt64());
+			} else {
+				builder.set(name, jsonCodec.readValue(reader));
+			}
+		}
+		reader.readEndDocument();
+
+		return builder.build();
+	}
+
+	@Override
+	public void encode(BsonWriter writer, SyncEntity entity, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		entity.accept(new SyncEntity.FieldVisitor() {
+			@Override
+			public void value(String key, JsonValue value) {
+				writer.writeName(key);
+				jsonCodec.writeValue(writer, value);
+			}
+
+			@Override
+			public void timestamp(String key, long timestamp) {
+				writer.writeName(key);
+				// same number types as the JsonObjectCodec
+				if (timestamp >= Integer.MIN_VALUE && timestamp <= Integer.MAX_VALUE) {
+					writer.writeInt32((int) timestamp);
+				} else {
+					writer.writeInt64(timestamp);
+				}
+			}
+		});
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public Class<SyncEntity> getEncoderClass() {
+		return SyncEntity.class;
+	}
+}
@@ -0,0 +1,139 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+
+/**
+ * Storage of the items, tags and deletions. The implementation in use is chosen by
+ * {@code application.storage}, see {@link SyncRepositoryProducer}
+ */
+public interface SyncRepository {
+
+	void forEachItem(Consumer<JsonObject> consumer);
+
+	void forEachTag(Consumer<JsonObject> consumer);
+
+	void forEachDeletion(Consumer<JsonObject> consumer);
+
+	/**
+	 * The items with the given ids, as the entities a sync merges with
+	 */
+	List<SyncEntity> findItemsById(Collection<String> ids);
+
+	List<SyncEntity> findTagsById(Collection<String> ids);
+
+	List<JsonObject> findDeletionsBySyncId(Collection<String> syncIds);
+
+	/**
+	 * Sequence number of the last change written. It can be handed to a client as its cursor for the next sync.
+	 */
+	long currentChangeSequence();
+
+	/**
+	 * Ids of the elements changed after the {@code cursor} sequence number and up to {@code upTo}, or an empty
+	 * optional if the cursor can't be used anymore and the client needs to fall back to timestamps.
+	 */
+	Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo);
+
+	/**
+	 * Same as {@link #findChangedIdsSince(long, long)}, looking at no more than {@code limit} changes
+	 */
+	Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo, int limit);
+
+	JsonArray findItemsNewerThan(long timestamp);
+
+	JsonArray findTagsNewerThan(long timestamp);
+
+	JsonArray findDeletionsNewerThan(long timestamp);
+
+	/**
+	 * Items newer than the timestamp, ordered by {@code changed_ts} and {@code id}, starting after the given ones
+	 * unless {@code afterId} is null. The elements without a {@code changed_ts} come first, and an empty
+	 * {@code afterChangedTs} continues after one of them
+	 */
+	List<JsonObject> findItemsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit);
+
+	List<JsonObject> findTagsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit);
+
+	/**
+	 * Deletions newer than the timestamp, ordered by {@code ts} and {@code sync_id}, starting after the given ones
+	 * unless {@code afterSyncId} is null
+	 */
+	List<JsonObject> findDeletionsPageNewerThan(long timestamp, OptionalLong afterTs, String afterSyncId, int limit);
+
+	void saveNewItems(List<JsonObject> items);
+
+	void saveNewTags(List<JsonObject> tags);
+
+	void saveNewDeletions(List<JsonObject> deletions);
+
+	/**
+	 * Writes all the changes of a sync, and records the ids they touch in the change log
+	 */
+	void sync(ChangesDto changes);
+
+	/**
+	 * Removes the deletions with a {@code ts} up to the given one, and returns how many were removed
+	 */
+	long deleteDeletionsUpTo(long timestamp);
+
+	/**
+	 * Records the {@code last_sync_ts} that a device has acknowledged, that is, the one it sent in its last sync
+	 */
+	void saveDeviceCursor(String deviceId, long lastSyncTs, long seenAt);
+
+	/**
+	 * The oldest cursor of the devices seen since the given time, if any was
+	 */
+	OptionalLong findOldestDeviceCursor(long seenSince);
+
+	void deleteAllItems();
+
+	void deleteAllTags();
+
+	void deleteAllDeletions();
+
+	/**
+	 * Invalidates every cursor handed out so far, after the whole data set was removed
+	 */
+	void resetChangeLog();
+
+	/**
+	 * Forgets the changes recorded in the change log before the given time, and returns how many were forgotten. The
+	 * clients with a cursor older than them fall back to the timestamps
+	 */
+	long deleteChangesRecordedBefore(long timestamp);
+
+	/**
+	 * Starts loading a whole new data set aside. The current data is not touched until {@link StagingLoad#commit()} is
+	 * invoked.
+	 */
+	StagingLoad startStagingLoad();
+
+	/**
+	 * A full data set being loaded aside, before replacing the current one. Closing it without committing it discards
+	 * everything loaded.
+	 */
+	interface StagingLoad extends AutoCloseable {
+
+		void saveNewItems(List<JsonObject> items);
+
+		void saveNewTags(List<JsonObject> tags);
+
+		void saveNewDeletions(List<JsonObject> deletions);
+
+		void commit();
+
+		@Override
+		void close();
+	}
+}
@@ -0,0 +1,42 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.repository.embedded.EmbeddedRepository;
+import lombok.extern.flogger.Flogger;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import javax.enterprise.inject.Instance;
+import javax.enterprise.inject.Produces;
+import javax.inject.Singleton;
+
+/**
+ * Chooses the {@link SyncRepository} by {@code application.storage}, and puts the entity cache in front of it unless
+ * disabled. The repository not chosen is never created
+ */
+@Singleton
+@Flogger
+public class SyncRepositoryProducer {
+
+	@Produces
+	@Singleton
+	public SyncRepository syncRepository(JsonSyncServerProperties properties, MetricRegistry metricRegistry,
+			Instance<MongoRepository> mongoRepository, Instance<EmbeddedRepository> embeddedRepository) {
+		var repository = storage(properties, mongoRepository, embeddedRepository);
+		return properties.getEntityCache()
+				? new CachingSyncRepository(repository, properties, metricRegistry)
+				: repository;
+	}
+
+	private SyncRepository storage(JsonSyncServerProperties properties,
+			Instance<MongoRepository> mongoRepository, Instance<EmbeddedRepository> embeddedRepository) {
+		log.atInfo().log("Using the %s storage", properties.getStorage());
+		switch (properties.getStorage()) {
+			case "mongo":
+				return mongoRepository.get();
+			case "embedded":
+				return embeddedRepository.get();
+			default:
+				throw new IllegalArgumentException("Unknown storage: " + properties.getStorage());
+		}
+	}
+}
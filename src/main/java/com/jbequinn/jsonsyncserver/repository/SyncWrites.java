@@ -0,0 +1,222 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import lombok.Getter;
+import lombok.extern.flogger.Flogger;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.BsonString;
+import org.bson.conversions.Bson;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Bulk write operations and change log entries of a sync, shared by the blocking and the reactive repositories
+ */
+@Getter
+@Flogger
+public final class SyncWrites {
+	private static final JsonObjectCodec CODEC = new JsonObjectCodec();
+
+	private final List<WriteModel<SyncEntity>> itemWrites = new ArrayList<>();
+	private final List<WriteModel<SyncEntity>> tagWrites = new ArrayList<>();
+	private final List<WriteModel<JsonObject>> deletionWrites = new ArrayList<>();
+
+	private final Set<String> changedItemIds;
+	private final Set<String> changedTagIds;
+	private final Set<String> changedDeletionSyncIds;
+
+	private final int batchSize;
+	private final UpdateMode updateMode;
+
+	private SyncWrites(ChangesDto changes, int batchSize, UpdateMode updateMode) {
+		this.batchSize = batchSize;
+		this.updateMode = updateMode;
+
+		// the writes of the elements also deleted are skipped, so that the deletion wins in an unordered bulk write
+		var itemIdsToDelete = Set.copyOf(changes.getItemsIdsToDelete());
+		addInsertModels(itemWrites, changes.getNewItemsToSave(), itemIdsToDelete);
+		addUpdateModels(itemWrites, changes.getItemsToUpdate(), changes.getStoredItems(), itemIdsToDelete);
+		addMergeModels(itemWrites, changes.getItemsToMerge(), itemIdsToDelete, MergePipelines::itemMerge);
+		addDeleteModels(itemWrites, changes.getItemsIdsToDelete());
+
+		var tagIdsToDelete = Set.copyOf(changes.getTagIdsToDelete());
+		addInsertModels(tagWrites, changes.getNewTagsToSave(), tagIdsToDelete);
+		addUpdateModels(tagWrites, changes.getTagsToUpdate(), changes.getStoredTags(), tagIdsToDelete);
+		addMergeModels(tagWrites, changes.getTagsToMerge(), tagIdsToDelete, MergePipelines::tagMerge);
+		addDeleteModels(tagWrites, changes.getTagIdsToDelete());
+
+		changes.getNewDeletions().forEach(deletion -> deletionWrites.add(new InsertOneModel<>(deletion)));
+
+		changedItemIds = changedIds(changes.getItemsIdsToDelete(),
+				changes.getNewItemsToSave(), changes.getItemsToUpdate(), changes.getItemsToMerge());
+		changedTagIds = changedIds(changes.getTagIdsToDelete(),
+				changes.getNewTagsToSave(), changes.getTagsToUpdate(), changes.getTagsToMerge());
+		changedDeletionSyncIds = changes.getNewDeletions().stream()
+				.map(deletion -> deletion.getString("sync_id"))
+				.collect(toSet());
+	}
+
+	public static SyncWrites of(ChangesDto changes, int batchSize, UpdateMode updateMode) {
+		return new SyncWrites(changes, batchSize, updateMode);
+	}
+
+	private Set<String> changedIds(List<String> deletedIds, List<SyncEntity> newObjects,
+			List<SyncEntity> updatedObjects, List<JsonObject> objectsToMerge) {
+		var ids = new HashSet<>(deletedIds);
+		newObjects.forEach(object -> ids.add(object.getId()));
+		updatedObjects.forEach(object -> ids.add(object.getId()));
+		objectsToMerge.forEach(object -> ids.add(object.getString("id")));
+		return ids;
+	}
+
+	private void addInsertModels(List<WriteModel<SyncEntity>> writes, List<SyncEntity> objects, Set<String> idsToSkip) {
+		objects.stream()
+				.filter(object -> idsToSkip.isEmpty() || !idsToSkip.contains(object.getId()))
+				.forEach(object -> writes.add(new InsertOneModel<>(object)));
+	}
+
+	private void addUpdateModels(List<WriteModel<SyncEntity>> writes, List<SyncEntity> objects,
+			Map<String, SyncEntity> storedObjects, Set<String> idsToSkip) {
+		objects.stream()
+				.filter(object -> idsToSkip.isEmpty() || !idsToSkip.contains(object.getId()))
+				.forEach(object -> {
+					var filter = eq("id", object.getId());
+					var storedObject = storedObjects.get(object.getId());
+					if (updateMode == UpdateMode.REPLACE || storedObject == null) {
+						writes.add(new ReplaceOneModel<>(filter, object));
+					} else {
+						diff(storedObject, object).ifPresent(update -> writes.add(new UpdateOneModel<>(filter, update)));
+					}
+				});
+	}
+
+	/**
+	 * The $set of the fields added or changed, and the $unset of the fields removed, or nothing if both objects are
+	 * the same
+	 */
+	private Optional<Bson> diff(SyncEntity storedObject, SyncEntity object) {
+		var changedKeys = object.keysDifferentFrom(storedObject);
+		if (changedKeys.isEmpty()) {
+			log.atFinest().log("Nothing to update in %s", object.getId());
+			return Optional.empty();
+		}
+
+		var fieldsToSet = Json.createObjectBuilder();
+		var fieldsToUnset = new BsonDocument();
+		for (var key : changedKeys) {
+			var value = object.get(key);
+			if (value == null) {
+				fieldsToUnset.append(key, new BsonString(""));
+			} else {
+				fieldsToSet.add(key, value);
+			}
+		}
+
+		var update = new BsonDocument();
+		var set = fieldsToSet.build();
+		if (!set.isEmpty()) {
+			update.append("$set", new BsonDocumentWrapper<>(set, CODEC));
+		}
+		if (!fieldsToUnset.isEmpty()) {
+			update.append("$unset", fieldsToUnset);
+		}
+		return Optional.of(update);
+	}
+
+	private void addMergeModels(List<WriteModel<SyncEntity>> writes, List<JsonObject> objects, Set<String> idsToSkip,
+			Function<JsonObject, List<Bson>> pipeline) {
+		objects.stream()
+				.filter(object -> idsToSkip.isEmpty() || !idsToSkip.contains(object.getString("id")))
+				.forEach(object -> writes.add(new UpdateOneModel<>(
+						eq("id", object.getString("id")),
+						pipeline.apply(object),
+						new UpdateOptions().upsert(true))));
+	}
+
+	private void addDeleteModels(List<WriteModel<SyncEntity>> writes, List<String> ids) {
+		batches(ids, batchSize).forEach(batch -> writes.add(new DeleteManyModel<>(in("id", batch))));
+	}
+
+	static <T> List<List<T>> batches(List<T> elements, int batchSize) {
+		var batches = new ArrayList<List<T>>();
+		for (int from = 0; from < elements.size(); from += batchSize) {
+			batches.add(elements.subList(from, Math.min(from + batchSize, elements.size())));
+		}
+		return batches;
+	}
+
+	static void logBulkWrite(String collectionName, int operations, long startNanos, BulkWriteResult result) {
+		var elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+		log.atFine().log(
+				"Bulk write of %d operations in the collection %s took %d ms (%d ops/s): %d inserted, %d matched, %d modified, %d deleted",
+				operations, collectionName, elapsedMillis, operations * 1000L / elapsedMillis,
+				result.getInsertedCount(), result.getMatchedCount(), result.getModifiedCount(), result.getDeletedCount());
+	}
+
+	/**
+	 * The document of a device, as kept by every storage
+	 */
+	public static JsonObject deviceCursor(String deviceId, long lastSyncTs, long seenAt) {
+		return Json.createObjectBuilder()
+				.add("device_id", deviceId)
+				.add("last_sync_ts", lastSyncTs)
+				.add("last_seen", seenAt)
+				.build();
+	}
+
+	static Bson newerThan(long timestamp) {
+		return or(
+				gt("changed_ts", timestamp),
+				gt("created_on", timestamp)
+		);
+	}
+
+	static Bson deletionsNewerThan(long timestamp) {
+		return gt("ts", timestamp);
+	}
+
+	/**
+	 * Elements after the given one, in the order of a timestamp and then an id. The elements without the timestamp
+	 * sort first, so after one of them come those without it and a greater id, and then all those with it
+	 */
+	static Bson after(String timestampField, OptionalLong timestamp, String idField, String id) {
+		if (timestamp.isEmpty()) {
+			return or(
+					and(eq(timestampField, null), gt(idField, id)),
+					ne(timestampField, null)
+			);
+		}
+		return or(
+				gt(timestampField, timestamp.getAsLong()),
+				and(eq(timestampField, timestamp.getAsLong()), gt(idField, id))
+		);
+	}
+}
@@ -0,0 +1,22 @@
+package com.jbequinn.jsonsyncserver.repository;
+
+/**
+ * How the items and tags merged in a sync are written, as set in {@code application.update-mode}
+ */
+public enum UpdateMode {
+	// the whole document is replaced
+	REPLACE,
+	// only the fields that changed are set or unset
+	DIFF;
+
+	public static UpdateMode of(String updateMode) {
+		switch (updateMode) {
+			case "replace":
+				return REPLACE;
+			case "diff":
+				return DIFF;
+			default:
+				throw new IllegalArgumentException("Unknown update mode: " + updateMode);
+		}
+	}
+}
@@ -0,0 +1,497 @@
+package com.jbequinn.jsonsyncserver.repository.embedded;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.DataChangedEvent;
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.repository.SyncRepository;
+import com.jbequinn.jsonsyncserver.repository.SyncWrites;
+import com.jbequinn.jsonsyncserver.service.JsonObjectMerger;
+import lombok.extern.flogger.Flogger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.inject.Typed;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static com.jbequinn.jsonsyncserver.repository.embedded.EntityKind.DELETION;
+import static com.jbequinn.jsonsyncserver.repository.embedded.EntityKind.DEVICE;
+import static com.jbequinn.jsonsyncserver.repository.embedded.EntityKind.ITEM;
+import static com.jbequinn.jsonsyncserver.repository.embedded.EntityKind.TAG;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Storage in a {@link SegmentLog} on the local disk, for the installs that don't want to run a Mongo database.
+ * <p>
+ * Writes are serialized, and the merges of the "database" merge mode are done here while holding the lock, so they
+ * are as atomic as the Mongo pipelines. Reads run concurrently, only excluded by writes and compactions.
+ */
+@ApplicationScoped
+@Typed(EmbeddedRepository.class)
+@Flogger
+public class EmbeddedRepository implements SyncRepository {
+	private final SegmentLog segmentLog;
+	private final JsonObjectMerger merger;
+	private final JsonSyncServerProperties properties;
+	private final Event<DataChangedEvent> dataChanged;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ScheduledExecutorService compactionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		var thread = new Thread(runnable, "embedded-compaction");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public EmbeddedRepository(JsonSyncServerProperties properties, JsonObjectMerger merger,
+			Event<DataChangedEvent> dataChanged) {
+		this.properties = properties;
+		this.merger = merger;
+		this.dataChanged = dataChanged;
+
+		segmentLog = SegmentLog.open(Path.of(properties.getEmbeddedStorageDirectory()), properties.getEmbeddedSegmentSize());
+
+		var interval = properties.getEmbeddedCompactionIntervalSeconds();
+		compactionScheduler.scheduleWithFixedDelay(this::compactIfWorthIt, interval, interval, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void forEachItem(Consumer<JsonObject> consumer) {
+		forEachOfKind(ITEM, consumer);
+	}
+
+	@Override
+	public void forEachTag(Consumer<JsonObject> consumer) {
+		forEachOfKind(TAG, consumer);
+	}
+
+	@Override
+	public void forEachDeletion(Consumer<JsonObject> consumer) {
+		forEachOfKind(DELETION, consumer);
+	}
+
+	private void forEachOfKind(EntityKind kind, Consumer<JsonObject> consumer) {
+		// the elements are decoded without the lock, the segments stay readable even if compacted in the meantime
+		findEntries(kind, entry -> true).forEach(entry -> consumer.accept(entry.read()));
+	}
+
+	@Override
+	public List<SyncEntity> findItemsById(Collection<String> ids) {
+		return toEntities(EntitySchema.ITEM, findById(ITEM, ids));
+	}
+
+	@Override
+	public List<SyncEntity> findTagsById(Collection<String> ids) {
+		return toEntities(EntitySchema.TAG, findById(TAG, ids));
+	}
+
+	private List<SyncEntity> toEntities(EntitySchema schema, List<JsonObject> objects) {
+		return objects.stream()
+				.map(object -> SyncEntity.of(schema, object))
+				.collect(toList());
+	}
+
+	@Override
+	public List<JsonObject> findDeletionsBySyncId(Collection<String> syncIds) {
+		return findById(DELETION, syncIds);
+	}
+
+	private List<JsonObject> findById(EntityKind kind, Collection<String> ids) {
+		if (ids == null || ids.isEmpty()) {
+			log.atFine().log("No ids of %s to find", kind);
+			return List.of();
+		}
+
+		var objects = new ArrayList<JsonObject>(ids.size());
+		lock.readLock().lock();
+		try {
+			for (var id : ids) {
+				var object = segmentLog.get(kind, id);
+				if (object != null) {
+					objects.add(object);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return objects;
+	}
+
+	@Override
+	public long currentChangeSequence() {
+		lock.readLock().lock();
+		try {
+			return segmentLog.getSequence();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo) {
+		return findChangedIdsSince(cursor, upTo, 0);
+	}
+
+	@Override
+	public Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo, int limit) {
+		lock.readLock().lock();
+		try {
+			if (cursor < segmentLog.getResetSequence() || cursor > upTo) {
+				log.atFine().log("The cursor %d is not valid anymore", cursor);
+				return Optional.empty();
+			}
+
+			var changedIds = new ChangedIds();
+			changedIds.setLastSequence(upTo);
+			var count = 0;
+			for (var entry : segmentLog.changesBetween(cursor, upTo)) {
+				switch (entry.getKind()) {
+					case ITEM:
+						changedIds.getItemIds().add(entry.getId());
+						break;
+					case TAG:
+						changedIds.getTagIds().add(entry.getId());
+						break;
+					default:
+						changedIds.getDeletionSyncIds().add(entry.getId());
+				}
+				if (++count == limit) {
+					changedIds.setLastSequence(entry.getSequence());
+					break;
+				}
+			}
+			return Optional.of(changedIds);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public JsonArray findItemsNewerThan(long timestamp) {
+		return findNewerThan(ITEM, timestamp);
+	}
+
+	@Override
+	public JsonArray findTagsNewerThan(long timestamp) {
+		return findNewerThan(TAG, timestamp);
+	}
+
+	@Override
+	public JsonArray findDeletionsNewerThan(long timestamp) {
+		return findNewerThan(DELETION, timestamp);
+	}
+
+	private JsonArray findNewerThan(EntityKind kind, long timestamp) {
+		var builder = Json.createArrayBuilder();
+		findEntries(kind, entry -> entry.getNewestTimestamp() > timestamp)
+				.forEach(entry -> builder.add(entry.read()));
+		return builder.build();
+	}
+
+	@Override
+	public List<JsonObject> findItemsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit) {
+		return findPageNewerThan(ITEM, timestamp, afterChangedTs, afterId, limit);
+	}
+
+	@Override
+	public List<JsonObject> findTagsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit) {
+		return findPageNewerThan(TAG, timestamp, afterChangedTs, afterId, limit);
+	}
+
+	@Override
+	public List<JsonObject> findDeletionsPageNewerThan(long timestamp, OptionalLong afterTs, String afterSyncId, int limit) {
+		return findPageNewerThan(DELETION, timestamp, afterTs, afterSyncId, limit);
+	}
+
+	private List<JsonObject> findPageNewerThan(EntityKind kind, long timestamp, OptionalLong afterTimestamp,
+			String afterId, int limit) {
+		// the entries without a timestamp have the smallest one, so they come first as in Mongo
+		var afterEntryTimestamp = afterTimestamp.orElse(Long.MIN_VALUE);
+		Predicate<SegmentLog.Entry> after = entry -> afterId == null
+				|| entry.getTimestamp() > afterEntryTimestamp
+				|| (entry.getTimestamp() == afterEntryTimestamp && entry.getId().compareTo(afterId) > 0);
+
+		return findEntries(kind, entry -> entry.getNewestTimestamp() > timestamp && after.test(entry)).stream()
+				.sorted(Comparator.comparingLong(SegmentLog.Entry::getTimestamp).thenComparing(SegmentLog.Entry::getId))
+				.limit(limit)
+				.map(SegmentLog.Entry::read)
+				.collect(toList());
+	}
+
+	private List<SegmentLog.Entry> findEntries(EntityKind kind, Predicate<SegmentLog.Entry> filter) {
+		lock.readLock().lock();
+		try {
+			return segmentLog.entries(kind).stream()
+					.filter(entry -> !entry.isRemoved() && filter.test(entry))
+					.collect(toList());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void saveNewItems(List<JsonObject> items) {
+		write(() -> putAll(ITEM, items, Set.of()));
+	}
+
+	@Override
+	public void saveNewTags(List<JsonObject> tags) {
+		write(() -> putAll(TAG, tags, Set.of()));
+	}
+
+	@Override
+	public void saveNewDeletions(List<JsonObject> deletions) {
+		write(() -> putAll(DELETION, deletions, Set.of()));
+	}
+
+	@Override
+	public void sync(ChangesDto changes) {
+		write(() -> {
+			// as with Mongo, the deletion of an element wins over its writes in the same sync
+			var itemIdsToDelete = Set.copyOf(changes.getItemsIdsToDelete());
+			putAllEntities(ITEM, changes.getNewItemsToSave(), itemIdsToDelete);
+			putAllEntities(ITEM, changes.getItemsToUpdate(), itemIdsToDelete);
+			mergeAll(ITEM, changes.getItemsToMerge(), itemIdsToDelete, this::mergeItem);
+			changes.getItemsIdsToDelete().forEach(id -> segmentLog.remove(ITEM, id, segmentLog.nextSequence()));
+
+			var tagIdsToDelete = Set.copyOf(changes.getTagIdsToDelete());
+			putAllEntities(TAG, changes.getNewTagsToSave(), tagIdsToDelete);
+			putAllEntities(TAG, changes.getTagsToUpdate(), tagIdsToDelete);
+			mergeAll(TAG, changes.getTagsToMerge(), tagIdsToDelete, this::mergeTag);
+			changes.getTagIdsToDelete().forEach(id -> segmentLog.remove(TAG, id, segmentLog.nextSequence()));
+
+			putAll(DELETION, changes.getNewDeletions(), Set.of());
+		});
+	}
+
+	private void putAll(EntityKind kind, List<JsonObject> objects, Set<String> idsToSkip) {
+		objects.stream()
+				.filter(object -> idsToSkip.isEmpty() || !idsToSkip.contains(kind.idOf(object)))
+				.forEach(object -> segmentLog.put(kind, object, segmentLog.nextSequence()));
+	}
+
+	private void putAllEntities(EntityKind kind, List<SyncEntity> entities, Set<String> idsToSkip) {
+		entities.stream()
+				.filter(entity -> idsToSkip.isEmpty() || !idsToSkip.contains(entity.getId()))
+				.forEach(entity -> segmentLog.put(kind, entity.toJsonObject(), segmentLog.nextSequence()));
+	}
+
+	/**
+	 * Writes the merges that change the stored elements, and only those, so that the others take no sequence number
+	 * and are not sent again to the clients
+	 */
+	private void mergeAll(EntityKind kind, List<JsonObject> objects, Set<String> idsToSkip,
+			BiFunction<JsonObject, JsonObject, Optional<JsonObject>> changedMerge) {
+		objects.stream()
+				.filter(object -> idsToSkip.isEmpty() || !idsToSkip.contains(kind.idOf(object)))
+				.forEach(object -> {
+					var stored = segmentLog.get(kind, kind.idOf(object));
+					var merged = stored == null ? Optional.of(object) : changedMerge.apply(object, stored);
+					merged.ifPresent(changed -> segmentLog.put(kind, changed, segmentLog.nextSequence()));
+				});
+	}
+
+	private Optional<JsonObject> mergeItem(JsonObject item, JsonObject stored) {
+		// a merged item is always a new object, whether it changed is told by its fields
+		var result = merger.merge(item, stored);
+		return result.isChanged() ? Optional.of(result.getMerged()) : Optional.empty();
+	}
+
+	private Optional<JsonObject> mergeTag(JsonObject tag, JsonObject stored) {
+		var merged = merger.mergeTag(tag, stored);
+		return merged == stored ? Optional.empty() : Optional.of(merged);
+	}
+
+	@Override
+	public long deleteDeletionsUpTo(long timestamp) {
+		if (findEntries(DELETION, entry -> entry.getTimestamp() <= timestamp).isEmpty()) {
+			return 0;
+		}
+
+		var removed = new AtomicLong();
+		write(() -> {
+			// looked up again with the lock held, in case they were written again in the meantime
+			var deletionsToRemove = findEntries(DELETION, entry -> entry.getTimestamp() <= timestamp);
+			// not a change for the clients, so it takes no sequence number
+			deletionsToRemove.forEach(entry -> segmentLog.remove(DELETION, entry.getId(), 0));
+			removed.set(deletionsToRemove.size());
+		});
+		return removed.get();
+	}
+
+	@Override
+	public void saveDeviceCursor(String deviceId, long lastSyncTs, long seenAt) {
+		var device = SyncWrites.deviceCursor(deviceId, lastSyncTs, seenAt);
+
+		lock.writeLock().lock();
+		try {
+			segmentLog.put(DEVICE, device, 0);
+			segmentLog.force();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public OptionalLong findOldestDeviceCursor(long seenSince) {
+		return findEntries(DEVICE, entry -> true).stream()
+				.map(SegmentLog.Entry::read)
+				.filter(device -> device.getJsonNumber("last_seen").longValue() >= seenSince)
+				.mapToLong(device -> device.getJsonNumber("last_sync_ts").longValue())
+				.min();
+	}
+
+	@Override
+	public void deleteAllItems() {
+		deleteAll(ITEM);
+	}
+
+	@Override
+	public void deleteAllTags() {
+		deleteAll(TAG);
+	}
+
+	@Override
+	public void deleteAllDeletions() {
+		deleteAll(DELETION);
+	}
+
+	private void deleteAll(EntityKind kind) {
+		write(() -> segmentLog.removeAll(kind));
+	}
+
+	@Override
+	public void resetChangeLog() {
+		write(segmentLog::reset);
+	}
+
+	/**
+	 * Nothing to forget: the segment log only indexes the last version of every element, so its changes never
+	 * outgrow the data
+	 */
+	@Override
+	public long deleteChangesRecordedBefore(long timestamp) {
+		return 0;
+	}
+
+	private void write(Runnable write) {
+		lock.writeLock().lock();
+		try {
+			write.run();
+			segmentLog.force();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		dataChanged.fire(new DataChangedEvent());
+	}
+
+	@Override
+	public StagingLoad startStagingLoad() {
+		return new EmbeddedStagingLoad(segmentLog.startGeneration());
+	}
+
+	/**
+	 * Segments written next to the live ones, swapped in as a whole on commit
+	 */
+	private class EmbeddedStagingLoad implements StagingLoad {
+		private final SegmentLog.Generation generation;
+		private boolean committed;
+
+		private EmbeddedStagingLoad(SegmentLog.Generation generation) {
+			this.generation = generation;
+		}
+
+		@Override
+		public void saveNewItems(List<JsonObject> items) {
+			// without a sequence number, a cursor from before the load can't see them, and it is reset anyway
+			items.forEach(item -> generation.put(ITEM, item, 0));
+		}
+
+		@Override
+		public void saveNewTags(List<JsonObject> tags) {
+			tags.forEach(tag -> generation.put(TAG, tag, 0));
+		}
+
+		@Override
+		public void saveNewDeletions(List<JsonObject> deletions) {
+			deletions.forEach(deletion -> generation.put(DELETION, deletion, 0));
+		}
+
+		@Override
+		public void commit() {
+			write(() -> {
+				// the devices are not part of the data set, they are kept as they are
+				segmentLog.carryOver(DEVICE, generation);
+				segmentLog.replaceWith(generation);
+				segmentLog.reset();
+			});
+			committed = true;
+		}
+
+		@Override
+		public void close() {
+			if (!committed) {
+				log.atWarning().log("Discarding the segments of an unfinished staging load");
+				try {
+					generation.delete();
+				} catch (IOException e) {
+					log.atWarning().withCause(e).log("Error when deleting the staging segments, they are deleted at the next start");
+				}
+			}
+		}
+	}
+
+	private void compactIfWorthIt() {
+		try {
+			lock.writeLock().lock();
+			try {
+				var garbageRatio = segmentLog.garbageRatio();
+				if (segmentLog.segmentCount() < 2 || garbageRatio < properties.getEmbeddedCompactionGarbageRatio()) {
+					log.atFine().log("No compaction needed, %.2f of garbage in %d segments",
+							garbageRatio, segmentLog.segmentCount());
+					return;
+				}
+				segmentLog.compact();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (RuntimeException e) {
+			log.atWarning().withCause(e).log("Error when compacting the segment log");
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		compactionScheduler.shutdownNow();
+		lock.writeLock().lock();
+		try {
+			segmentLog.close();
+		} catch (IOException e) {
+			log.atWarning().withCause(e).log("Error when closing the segment log");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.jbequinn.jsonsyncserver.repository.embedded;
+
+import lombok.Getter;
+
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+
+/**
+ * The kinds of elements kept in a {@link SegmentLog}, with the field identifying them and the timestamps they are
+ * looked up by
+ */
+@Getter
+public enum EntityKind {
+	ITEM("id", "changed_ts", "created_on"),
+	TAG("id", "changed_ts", "created_on"),
+	DELETION("sync_id", "ts"),
+	DEVICE("device_id", "last_sync_ts", "last_seen");
+
+	private final String idField;
+	// the first one orders the pages, and an element is newer than a timestamp if any of them is
+	private final String[] timestampFields;
+
+	EntityKind(String idField, String... timestampFields) {
+		this.idField = idField;
+		this.timestampFields = timestampFields;
+	}
+
+	String idOf(JsonObject object) {
+		return object.getString(idField);
+	}
+
+	long timestampOf(JsonObject object) {
+		return longOrMin(object, timestampFields[0]);
+	}
+
+	long newestTimestampOf(JsonObject object) {
+		var newest = Long.MIN_VALUE;
+		for (var field : timestampFields) {
+			newest = Math.max(newest, longOrMin(object, field));
+		}
+		return newest;
+	}
+
+	private static long longOrMin(JsonObject object, String key) {
+		// a missing timestamp is older than any other, as in a Mongo query
+		var value = object.get(key);
+		return value instanceof JsonNumber ? ((JsonNumber) value).longValue() : Long.MIN_VALUE;
+	}
+}
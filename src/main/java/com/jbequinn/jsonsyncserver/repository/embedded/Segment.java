@@ -0,0 +1,121 @@
+package com.jbequinn.jsonsyncserver.repository.embedded;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A file of records, mapped in memory whole. Records are only ever appended, at the current position.
+ * <p>
+ * The mapping outlives the file: a record can still be read from a segment that was closed and deleted by a
+ * compaction, which lets readers decode the elements they found without holding a lock.
+ */
+final class Segment implements Closeable {
+	@Getter
+	private final long id;
+	private final Path path;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	@Getter
+	private int position;
+
+	private Segment(long id, Path path, FileChannel channel) throws IOException {
+		this.id = id;
+		this.path = path;
+		this.channel = channel;
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+	}
+
+	static Segment create(Path directory, long id, int capacity) throws IOException {
+		var path = pathOf(directory, id);
+		var channel = FileChannel.open(path, CREATE_NEW, READ, WRITE);
+		// the file is extended with zeros, which mark where the records end
+		channel.write(ByteBuffer.allocate(1), capacity - 1);
+		return new Segment(id, path, channel);
+	}
+
+	static Segment open(Path directory, long id) throws IOException {
+		var path = pathOf(directory, id);
+		return new Segment(id, path, FileChannel.open(path, READ, WRITE));
+	}
+
+	static Path pathOf(Path directory, long id) {
+		return directory.resolve(String.format("segment-%016d.log", id));
+	}
+
+	/**
+	 * Appends a record and returns its offset, or -1 if it doesn't fit in what's left of the segment
+	 */
+	int append(SegmentRecord record) {
+		var bytes = record.getBytes();
+		if (position + bytes.length > buffer.capacity()) {
+			return -1;
+		}
+
+		var offset = position;
+		buffer.duplicate().position(offset).put(bytes);
+		position += bytes.length;
+		return offset;
+	}
+
+	/**
+	 * The record at the offset, or null if there isn't a whole one there
+	 */
+	SegmentRecord read(int offset) {
+		if (offset + Integer.BYTES > buffer.capacity()) {
+			return null;
+		}
+		var length = buffer.getInt(offset);
+		if (length < SegmentRecord.HEADER_SIZE - Integer.BYTES + SegmentRecord.CHECKSUM_SIZE
+				|| offset + Integer.BYTES + length > buffer.capacity()) {
+			return null;
+		}
+
+		var bytes = new byte[Integer.BYTES + length];
+		buffer.duplicate().position(offset).get(bytes);
+		return SegmentRecord.decode(bytes);
+	}
+
+	/**
+	 * Sets where the next record goes after reading the existing ones, clearing whatever was partially written after
+	 * the last of them
+	 */
+	boolean recover(int end) {
+		position = end;
+		var torn = false;
+		for (int i = end; i < buffer.capacity() && i < end + Integer.BYTES; i++) {
+			torn |= buffer.get(i) != 0;
+		}
+		if (torn) {
+			for (int i = end; i < buffer.capacity(); i++) {
+				buffer.put(i, (byte) 0);
+			}
+			buffer.force();
+		}
+		return torn;
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	void delete() throws IOException {
+		close();
+		Files.deleteIfExists(path);
+	}
+}
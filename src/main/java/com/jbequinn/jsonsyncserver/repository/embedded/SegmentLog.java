@@ -0,0 +1,419 @@
+package com.jbequinn.jsonsyncserver.repository.embedded;
+
+import lombok.Getter;
+import lombok.extern.flogger.Flogger;
+
+import javax.json.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Append-only log of elements in memory-mapped segment files, with an index in memory of where the last version of
+ * every element is. Writing an element appends it to the last segment; removing it appends a removal record.
+ * <p>
+ * Overwritten and removed elements are only dropped by a compaction, which copies the live elements to new segments.
+ * Which segments make up the log is recorded in a manifest, replaced atomically, so that a crash in the middle of a
+ * compaction leaves either the old segments or the new ones, never a mix of both. The sequence numbers of the changes
+ * are kept there too.
+ * <p>
+ * Not thread safe: the {@link EmbeddedRepository} guards it with a read-write lock.
+ */
+@Flogger
+public class SegmentLog implements Closeable {
+	private static final String MANIFEST = "MANIFEST";
+
+	private final Path directory;
+	private final int segmentSize;
+	private final AtomicLong lastSegmentId = new AtomicLong();
+
+	private Generation current;
+	@Getter
+	private long sequence;
+	@Getter
+	private long resetSequence;
+
+	private SegmentLog(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Opens the log in the directory, creating it if needed, and reads all its segments to build the index
+	 */
+	public static SegmentLog open(Path directory, int segmentSize) {
+		try {
+			Files.createDirectories(directory);
+			var segmentLog = new SegmentLog(directory, segmentSize);
+			segmentLog.recover();
+			return segmentLog;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error when opening the segment log in " + directory, e);
+		}
+	}
+
+	private void recover() throws IOException {
+		var manifest = new Properties();
+		var manifestPath = directory.resolve(MANIFEST);
+		if (Files.exists(manifestPath)) {
+			try (var reader = Files.newBufferedReader(manifestPath)) {
+				manifest.load(reader);
+			}
+		}
+		sequence = Long.parseLong(manifest.getProperty("sequence", "0"));
+		resetSequence = Long.parseLong(manifest.getProperty("reset-sequence", "0"));
+
+		var segmentIds = new ArrayList<Long>();
+		for (var id : manifest.getProperty("segments", "").split(",")) {
+			if (!id.isBlank()) {
+				segmentIds.add(Long.parseLong(id.trim()));
+			}
+		}
+
+		current = new Generation();
+		for (var segmentId : segmentIds) {
+			var segment = Segment.open(directory, segmentId);
+			current.replay(segment);
+			lastSegmentId.set(Math.max(lastSegmentId.get(), segmentId));
+		}
+		current.active = current.segments.isEmpty() ? null : current.segments.get(current.segments.size() - 1);
+
+		deleteUnlistedSegments(new HashSet<>(segmentIds));
+
+		log.atInfo().log("Segment log in %s opened: %d segments, %d live bytes of %d, sequence %d",
+				directory, current.segments.size(), current.liveBytes, current.totalBytes(), sequence);
+	}
+
+	private void deleteUnlistedSegments(Collection<Long> segmentIds) throws IOException {
+		// left behind by a compaction or a staging load that didn't finish
+		try (var files = Files.newDirectoryStream(directory, "segment-*.log")) {
+			for (var file : files) {
+				var name = file.getFileName().toString();
+				var id = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+				lastSegmentId.set(Math.max(lastSegmentId.get(), id));
+				if (!segmentIds.contains(id)) {
+					log.atWarning().log("Deleting the unused segment %s", file);
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The last version of an element, or null if there isn't any or it was removed
+	 */
+	public JsonObject get(EntityKind kind, String id) {
+		var entry = current.index.get(kind).get(id);
+		return entry == null || entry.isRemoved() ? null : entry.read();
+	}
+
+	/**
+	 * The index entries of the elements of a kind, including the removed ones
+	 */
+	Collection<Entry> entries(EntityKind kind) {
+		return current.index.get(kind).values();
+	}
+
+	/**
+	 * The index entries changed after a sequence number and up to another one, in order
+	 */
+	Collection<Entry> changesBetween(long after, long upTo) {
+		return current.bySequence.subMap(after, false, upTo, true).values();
+	}
+
+	public void put(EntityKind kind, JsonObject object, long sequence) {
+		current.put(kind, object, sequence);
+	}
+
+	public void remove(EntityKind kind, String id, long sequence) {
+		current.remove(kind, id, sequence);
+	}
+
+	public long nextSequence() {
+		return ++sequence;
+	}
+
+	/**
+	 * Invalidates the sequence numbers handed out so far, as the {@code ChangeLog} of Mongo does
+	 */
+	public void reset() {
+		resetSequence = nextSequence();
+		writeManifest();
+	}
+
+	/**
+	 * Writes to disk everything appended so far
+	 */
+	public void force() {
+		current.force();
+	}
+
+	/**
+	 * A new set of segments, loaded aside and then swapped in with {@link #replaceWith(Generation)}
+	 */
+	Generation startGeneration() {
+		return new Generation();
+	}
+
+	void replaceWith(Generation generation) {
+		generation.force();
+		var previous = current;
+		current = generation;
+		writeManifest();
+
+		try {
+			previous.delete();
+		} catch (IOException e) {
+			log.atWarning().withCause(e).log("Error when deleting the replaced segments, they are deleted at the next start");
+		}
+	}
+
+	/**
+	 * Copies the live elements of a kind to a generation that is going to replace the current one
+	 */
+	void carryOver(EntityKind kind, Generation generation) {
+		current.index.get(kind).values().stream()
+				.filter(entry -> !entry.isRemoved())
+				.forEach(generation::copy);
+	}
+
+	/**
+	 * Copies the live elements to new segments, and then drops the old ones
+	 */
+	public void compact() {
+		retainOnly(kind -> true);
+	}
+
+	/**
+	 * Drops all the elements of a kind, compacting the rest
+	 */
+	public void removeAll(EntityKind kind) {
+		retainOnly(other -> other != kind);
+	}
+
+	private void retainOnly(Predicate<EntityKind> kinds) {
+		var start = System.nanoTime();
+		var totalBytes = current.totalBytes();
+
+		var generation = startGeneration();
+		for (var kind : EntityKind.values()) {
+			if (kinds.test(kind)) {
+				carryOver(kind, generation);
+			}
+		}
+		replaceWith(generation);
+
+		log.atInfo().log("Segment log compacted from %d to %d bytes in %d ms",
+				totalBytes, generation.totalBytes(), (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Fraction of the segments taken by overwritten or removed elements
+	 */
+	public double garbageRatio() {
+		var totalBytes = current.totalBytes();
+		return totalBytes == 0 ? 0 : 1 - (double) current.liveBytes / totalBytes;
+	}
+
+	public int segmentCount() {
+		return current.segments.size();
+	}
+
+	private void writeManifest() {
+		var manifest = new Properties();
+		manifest.setProperty("segments", current.segments.stream()
+				.map(segment -> Long.toString(segment.getId()))
+				.collect(joining(",")));
+		manifest.setProperty("sequence", Long.toString(sequence));
+		manifest.setProperty("reset-sequence", Long.toString(resetSequence));
+
+		try {
+			var bytes = new ByteArrayOutputStream();
+			manifest.store(bytes, null);
+
+			var temporary = directory.resolve(MANIFEST + ".tmp");
+			try (var channel = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+				channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+				channel.force(true);
+			}
+			Files.move(temporary, directory.resolve(MANIFEST), ATOMIC_MOVE, REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error when writing the manifest of the segment log", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		current.force();
+		for (var segment : current.segments) {
+			segment.close();
+		}
+	}
+
+	/**
+	 * Location and metadata of the last version of an element
+	 */
+	@Getter
+	static final class Entry {
+		private final EntityKind kind;
+		private final String id;
+		private final long sequence;
+		private final boolean removed;
+		private final long timestamp;
+		private final long newestTimestamp;
+		private final Segment segment;
+		private final int offset;
+		private final int size;
+
+		private Entry(SegmentRecord record, long timestamp, long newestTimestamp, Segment segment, int offset) {
+			this.kind = record.getKind();
+			this.id = record.getId();
+			this.sequence = record.getSequence();
+			this.removed = record.isRemoved();
+			this.timestamp = timestamp;
+			this.newestTimestamp = newestTimestamp;
+			this.segment = segment;
+			this.offset = offset;
+			this.size = record.size();
+		}
+
+		JsonObject read() {
+			return segment.read(offset).toJsonObject();
+		}
+	}
+
+	/**
+	 * A set of segments and their index
+	 */
+	final class Generation {
+		private final List<Segment> segments = new ArrayList<>();
+		private final Map<EntityKind, Map<String, Entry>> index = new EnumMap<>(EntityKind.class);
+		// only the changes with a sequence number, those loaded by a staging load have none
+		private final NavigableMap<Long, Entry> bySequence = new TreeMap<>();
+		private final Set<Segment> unforced = new LinkedHashSet<>();
+		private Segment active;
+		private long liveBytes;
+
+		private Generation() {
+			for (var kind : EntityKind.values()) {
+				index.put(kind, new HashMap<>());
+			}
+		}
+
+		void put(EntityKind kind, JsonObject object, long sequence) {
+			var record = SegmentRecord.of(kind, kind.idOf(object), sequence, object);
+			append(record, kind.timestampOf(object), kind.newestTimestampOf(object));
+		}
+
+		void remove(EntityKind kind, String id, long sequence) {
+			append(SegmentRecord.removal(kind, id, sequence), Long.MIN_VALUE, Long.MIN_VALUE);
+		}
+
+		private void copy(Entry entry) {
+			append(entry.getSegment().read(entry.getOffset()), entry.getTimestamp(), entry.getNewestTimestamp());
+		}
+
+		private void append(SegmentRecord record, long timestamp, long newestTimestamp) {
+			var offset = active == null ? -1 : active.append(record);
+			if (offset < 0) {
+				roll(record.size());
+				offset = active.append(record);
+			}
+			unforced.add(active);
+			index(new Entry(record, timestamp, newestTimestamp, active, offset));
+		}
+
+		private void roll(int recordSize) {
+			try {
+				active = Segment.create(directory, lastSegmentId.incrementAndGet(), Math.max(segmentSize, recordSize));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Error when creating a new segment in " + directory, e);
+			}
+			segments.add(active);
+
+			// the new segment has to be listed before anything is written to it
+			if (this == current) {
+				writeManifest();
+			}
+		}
+
+		private void index(Entry entry) {
+			var previous = index.get(entry.getKind()).put(entry.getId(), entry);
+			if (previous != null) {
+				liveBytes -= previous.getSize();
+				bySequence.remove(previous.getSequence(), previous);
+			}
+			liveBytes += entry.getSize();
+			if (entry.getSequence() > 0) {
+				bySequence.put(entry.getSequence(), entry);
+			}
+		}
+
+		private void replay(Segment segment) {
+			segments.add(segment);
+
+			int offset = 0;
+			SegmentRecord record;
+			while ((record = segment.read(offset)) != null) {
+				if (record.isRemoved()) {
+					index(new Entry(record, Long.MIN_VALUE, Long.MIN_VALUE, segment, offset));
+				} else {
+					var object = record.toJsonObject();
+					var kind = record.getKind();
+					index(new Entry(record, kind.timestampOf(object), kind.newestTimestampOf(object), segment, offset));
+				}
+				sequence = Math.max(sequence, record.getSequence());
+				offset += record.size();
+			}
+
+			if (segment.recover(offset)) {
+				log.atWarning().log("Dropped a partially written record at the offset %d of the segment %d",
+						offset, segment.getId());
+			}
+		}
+
+		long totalBytes() {
+			return segments.stream().mapToLong(Segment::getPosition).sum();
+		}
+
+		void force() {
+			unforced.forEach(Segment::force);
+			unforced.clear();
+		}
+
+		/**
+		 * Deletes the segments of a generation that won't be used, either replaced or never swapped in
+		 */
+		void delete() throws IOException {
+			for (var segment : segments) {
+				segment.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.jbequinn.jsonsyncserver.repository.embedded;
+
+import lombok.Getter;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReaderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An element written to a segment, or the removal of one. On disk it is:
+ * <pre>
+ * int length of what follows | byte kind | byte removed | long sequence | int id length | int body length |
+ * id in UTF-8 | body as JSON in UTF-8 | int CRC32 of everything after the length
+ * </pre>
+ * A length of 0 marks the end of the records of a segment, which is zero filled when created.
+ */
+@Getter
+final class SegmentRecord {
+	static final int HEADER_SIZE = Integer.BYTES + 2 + Long.BYTES + 2 * Integer.BYTES;
+	static final int CHECKSUM_SIZE = Integer.BYTES;
+
+	private static final JsonReaderFactory JSON = Json.createReaderFactory(Map.of());
+
+	private final EntityKind kind;
+	private final boolean removed;
+	private final long sequence;
+	private final String id;
+	// the whole record, as it is on disk
+	private final byte[] bytes;
+
+	private SegmentRecord(EntityKind kind, boolean removed, long sequence, String id, byte[] bytes) {
+		this.kind = kind;
+		this.removed = removed;
+		this.sequence = sequence;
+		this.id = id;
+		this.bytes = bytes;
+	}
+
+	static SegmentRecord of(EntityKind kind, String id, long sequence, JsonObject object) {
+		return encode(kind, false, sequence, id, object.toString().getBytes(UTF_8));
+	}
+
+	static SegmentRecord removal(EntityKind kind, String id, long sequence) {
+		return encode(kind, true, sequence, id, new byte[0]);
+	}
+
+	private static SegmentRecord encode(EntityKind kind, boolean removed, long sequence, String id, byte[] body) {
+		var idBytes = id.getBytes(UTF_8);
+		var buffer = ByteBuffer.allocate(HEADER_SIZE + idBytes.length + body.length + CHECKSUM_SIZE);
+		buffer.putInt(buffer.capacity() - Integer.BYTES)
+				.put((byte) kind.ordinal())
+				.put((byte) (removed ? 1 : 0))
+				.putLong(sequence)
+				.putInt(idBytes.length)
+				.putInt(body.length)
+				.put(idBytes)
+				.put(body)
+				.putInt(checksum(buffer.array()));
+
+		return new SegmentRecord(kind, removed, sequence, id, buffer.array());
+	}
+
+	/**
+	 * Decodes a whole record, or returns null if its checksum doesn't match, e.g. because it was only partially written
+	 */
+	static SegmentRecord decode(byte[] bytes) {
+		var buffer = ByteBuffer.wrap(bytes);
+		if (buffer.getInt(bytes.length - CHECKSUM_SIZE) != checksum(bytes)) {
+			return null;
+		}
+
+		buffer.position(Integer.BYTES);
+		var kind = buffer.get();
+		var removed = buffer.get() == 1;
+		var sequence = buffer.getLong();
+		var idLength = buffer.getInt();
+		var bodyLength = buffer.getInt();
+		if (kind < 0 || kind >= EntityKind.values().length
+				|| HEADER_SIZE + idLength + bodyLength + CHECKSUM_SIZE != bytes.length) {
+			return null;
+		}
+
+		var id = new String(bytes, HEADER_SIZE, idLength, UTF_8);
+		return new SegmentRecord(EntityKind.values()[kind], removed, sequence, id, bytes);
+	}
+
+	private static int checksum(byte[] bytes) {
+		var crc = new CRC32();
+		crc.update(bytes, Integer.BYTES, bytes.length - Integer.BYTES - CHECKSUM_SIZE);
+		return (int) crc.getValue();
+	}
+
+	int size() {
+		return bytes.length;
+	}
+
+	JsonObject toJsonObject() {
+		var idLength = ByteBuffer.wrap(bytes).getInt(HEADER_SIZE - 2 * Integer.BYTES);
+		var bodyOffset = HEADER_SIZE + idLength;
+		var body = new ByteArrayInputStream(bytes, bodyOffset, bytes.length - bodyOffset - CHECKSUM_SIZE);
+		try (var reader = JSON.createReader(body, UTF_8)) {
+			return reader.readObject();
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.repository.SyncRepository;
+import io.quarkus.runtime.StartupEvent;
+import lombok.extern.flogger.Flogger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes periodically the changes older than the retention period from the change log, which otherwise grows with
+ * every sync. The clients whose cursor is older than that fall back to the timestamps, as after a push.
+ */
+@ApplicationScoped
+@Flogger
+public class ChangeLogTrimmer {
+	private final SyncRepository repository;
+	private final JsonSyncServerProperties properties;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		var thread = new Thread(runnable, "change-log-trimmer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public ChangeLogTrimmer(SyncRepository repository, JsonSyncServerProperties properties) {
+		this.repository = repository;
+		this.properties = properties;
+	}
+
+	void onStart(@Observes StartupEvent event) {
+		var interval = properties.getChangeLogTrimIntervalMinutes();
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				trim();
+			} catch (RuntimeException e) {
+				log.atWarning().withCause(e).log("Error when trimming the change log");
+			}
+		}, interval, interval, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Removes the changes older than the retention period, and returns how many were removed
+	 */
+	public long trim() {
+		var retentionStart = Instant.now().getEpochSecond() - TimeUnit.DAYS.toSeconds(properties.getChangeLogRetentionDays());
+		var removed = repository.deleteChangesRecordedBefore(retentionStart);
+		log.atInfo().log("Removed %d changes recorded before %s", removed, Instant.ofEpochSecond(retentionStart));
+		return removed;
+	}
+
+	@PreDestroy
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,108 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.json.JsonObject;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.jbequinn.jsonsyncserver.model.EntitySchema.ITEM;
+import static com.jbequinn.jsonsyncserver.model.EntitySchema.TAG;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Works out what has to be written for a sync request, given the elements already stored
+ */
+@ApplicationScoped
+public class ChangesAssembler {
+	private final JsonObjectMerger merger;
+
+	public ChangesAssembler(JsonObjectMerger merger) {
+		this.merger = merger;
+	}
+
+	public ChangesDto newChanges(SyncRequest request) {
+		var changes = new ChangesDto();
+
+		changes.setNewDeletions(request.getDeletions());
+
+		changes.setItemsIdsToDelete(request.getDeletions().stream()
+				.filter(element -> "i".equals(element.getString("entity_type")))
+				.map(element -> element.getString("sync_id"))
+				.collect(toList()));
+
+		changes.setTagIdsToDelete(request.getDeletions().stream()
+				.filter(element -> "t".equals(element.getString("entity_type")))
+				.map(element -> element.getString("sync_id"))
+				.collect(toList()));
+
+		return changes;
+	}
+
+	public void addTags(ChangesDto changes, List<JsonObject> tags, List<SyncEntity> existingTags) {
+		var existingTagsById = byId(existingTags);
+		var changedTagIds = new LinkedHashSet<String>();
+		tags.forEach(tagObject -> {
+					var tag = SyncEntity.of(TAG, tagObject);
+					var tagId = tag.getId();
+					var existingTag = existingTagsById.get(tagId);
+					if (existingTag == null) {
+						changes.getNewTagsToSave().add(tag);
+						return;
+					}
+
+					var mergedTag = merger.mergeTag(tag, existingTag);
+					// the stored tag winning means that there is nothing to write
+					if (mergedTag != existingTag) {
+						changes.getStoredTags().putIfAbsent(tagId, existingTag);
+						existingTagsById.put(tagId, mergedTag);
+						changedTagIds.add(tagId);
+					}
+				}
+		);
+
+		changedTagIds.forEach(tagId -> changes.getTagsToUpdate().add(existingTagsById.get(tagId)));
+	}
+
+	public void addItems(ChangesDto changes, List<JsonObject> items, List<SyncEntity> existingItems) {
+		var existingItemsById = byId(existingItems);
+		var changedItemIds = new LinkedHashSet<String>();
+		items.forEach(itemObject -> {
+					var item = SyncEntity.of(ITEM, itemObject);
+					var itemId = item.getId();
+					var existingItem = existingItemsById.get(itemId);
+					if (existingItem == null) {
+						changes.getNewItemsToSave().add(item);
+						return;
+					}
+
+					var result = merger.merge(item, existingItem);
+					if (result.isChanged()) {
+						changes.getStoredItems().putIfAbsent(itemId, existingItem);
+						existingItemsById.put(itemId, result.getEntity());
+						changedItemIds.add(itemId);
+					}
+				}
+		);
+
+		changedItemIds.forEach(itemId -> changes.getItemsToUpdate().add(existingItemsById.get(itemId)));
+	}
+
+	/**
+	 * Leaves the merge of all the items and tags sent to Mongo, instead of merging them with the stored ones here
+	 */
+	public void addToMergeInDatabase(ChangesDto changes, SyncRequest request) {
+		changes.getItemsToMerge().addAll(request.getItems());
+		changes.getTagsToMerge().addAll(request.getTags());
+	}
+
+	private Map<String, SyncEntity> byId(List<SyncEntity> elements) {
+		return elements.stream()
+				.collect(toMap(SyncEntity::getId, identity()));
+	}
+}
@@ -8,8 +8,11 @@ public class JsonAccessor {
 	private JsonAccessor(){}
 
 	public static long getLongValueOrZero(JsonObject jsonObject, String key) {
+		return getLongValueOrZero(jsonObject.get(key));
+	}
+
+	public static long getLongValueOrZero(JsonValue jsonValue) {
 		var value = 0L;
-		var jsonValue = jsonObject.get(key);
 		if (jsonValue != null && jsonValue.getValueType() == JsonValue.ValueType.NUMBER) {
 			value = ((JsonNumber)jsonValue).longValue();
 		}
@@ -1,76 +1,168 @@
 package com.jbequinn.jsonsyncserver.service;
 
+import com.jbequinn.jsonsyncserver.model.MergePlan;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
 import lombok.extern.flogger.Flogger;
 
 import javax.enterprise.context.ApplicationScoped;
-import javax.json.Json;
 import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import java.util.Arrays;
+import javax.json.JsonValue;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.flogger.LazyArgs.lazy;
+import static com.jbequinn.jsonsyncserver.model.EntitySchema.ITEM;
 import static com.jbequinn.jsonsyncserver.service.JsonAccessor.getLongValueOrZero;
 
 @ApplicationScoped
 @Flogger
 public class JsonObjectMerger {
+	// the fields unknown to the schema only come in a handful of sets. The limit is there in case a client sends
+	// arbitrary keys
+	private static final int MAX_PLANS = 256;
 
-	private static final String[][] PROPERTIES = new String[][]{
-			// there are probably more fields that can be merged
-			{"title", "title_ts"},
-			{"completed_on", "completed_on_ts"},
-			{"due_date", "due_date_ts"},
-			{"note", "note_ts"},
-			{"start_date", "start_date_ts"},
-			{"tags", "tags_changed_ts"},
-	};
+	private final Map<Set<String>, MergePlan> plans = new ConcurrentHashMap<>();
 
 	public JsonObject mergeItem(JsonObject one, JsonObject another) {
+		return merge(one, another).getMerged();
+	}
+
+	public SyncEntity mergeItem(SyncEntity one, SyncEntity another) {
+		return merge(one, another).getEntity();
+	}
+
+	/**
+	 * Same as {@link #merge(SyncEntity, SyncEntity)}, for items that are still JSON
+	 */
+	public MergeResult merge(JsonObject one, JsonObject another) {
+		return merge(SyncEntity.of(ITEM, one), SyncEntity.of(ITEM, another));
+	}
+
+	/**
+	 * Merges two items, taking the newest value of every field with a timestamp. The rest of the fields are taken from
+	 * the most recently changed item. On equal timestamps, {@code another} wins. The changed fields reported are those
+	 * that differ from {@code another}, which is then expected to be the stored item
+	 */
+	public MergeResult merge(SyncEntity one, SyncEntity another) {
 		log.atFinest()
 				.log("Merging item: %s", lazy(() -> one));
 		log.atFinest()
 				.log("With the other item: %s", lazy(() -> another));
 
+		var schema = another.getSchema();
 		var base = getMostRecentOf(one, another);
+		var merged = SyncEntity.builder(schema)
+				.copyFields(base);
+
+		for (int pair = 0; pair < schema.pairCount(); pair++) {
+			// a value without a timestamp on either side is like any other field
+			if (!one.hasTimestamp(pair) && !another.hasTimestamp(pair)) {
+				merged.copyValue(pair, base);
+				continue;
+			}
+
+			var newest = getNewestOf(one, another, pair);
+			merged.copyValue(pair, newest.hasValue(pair) ? newest : base);
+			merged.copyTimestamp(pair, newest);
+		}
 
-		var builder = Json.createObjectBuilder();
-		base.forEach(builder::add);
-
-		Arrays.stream(PROPERTIES)
-				.filter(property -> one.get(property[0]) != null || another.get(property[0]) != null)
-				.forEach(property -> updatePropertyInBuilder(builder, one, another, property[0], property[1]));
+		if (!one.getOverflow().isEmpty() || !another.getOverflow().isEmpty()) {
+			merged.overflow(mergeOverflow(one.getOverflow(), another.getOverflow(), base.getOverflow()));
+		}
 
-		return builder.build();
+		var entity = merged.build();
+		return new MergeResult(entity, entity.keysDifferentFrom(another));
 	}
 
 	public JsonObject mergeTag(JsonObject one, JsonObject another) {
+		return getLongValueOrZero(one, "changed_ts") > getLongValueOrZero(another, "changed_ts") ? one : another;
+	}
+
+	public SyncEntity mergeTag(SyncEntity one, SyncEntity another) {
 		return getMostRecentOf(one, another);
 	}
 
-	private void updatePropertyInBuilder(JsonObjectBuilder builder, JsonObject one, JsonObject another, String key, String timestampKey) {
-		if (!one.containsKey(timestampKey)) {
-			builder.add(key, another.get(key));
-			builder.add(timestampKey, another.get(timestampKey));
-			return;
+	/**
+	 * Merges the fields unknown to the schema the same way, finding their pairs by their keys
+	 */
+	private Map<String, JsonValue> mergeOverflow(Map<String, JsonValue> one, Map<String, JsonValue> another,
+			Map<String, JsonValue> base) {
+		var planOne = planOf(one.keySet());
+		var planAnother = planOf(another.keySet());
+
+		var merged = new LinkedHashMap<String, JsonValue>();
+		base.forEach((key, value) -> {
+			if (!planOne.isPairKey(key) && !planAnother.isPairKey(key)) {
+				merged.put(key, value);
+			}
+		});
+
+		mergePairs(merged, planOne, null, one, another, base);
+		if (planAnother != planOne) {
+			mergePairs(merged, planAnother, planOne, one, another, base);
 		}
+		return merged;
+	}
 
-		if (!another.containsKey(timestampKey)) {
-			builder.add(key, one.get(key));
-			builder.add(timestampKey, one.get(timestampKey));
-			return;
+	private MergePlan planOf(Set<String> keys) {
+		var plan = plans.get(keys);
+		if (plan == null) {
+			plan = MergePlan.from(keys);
+			if (plans.size() < MAX_PLANS) {
+				plans.putIfAbsent(Set.copyOf(keys), plan);
+			}
 		}
+		return plan;
+	}
 
-		var timestampOne = getLongValueOrZero(one, timestampKey);
-		var timestampAnother = getLongValueOrZero(another, timestampKey);
+	/**
+	 * Adds the newest value of each pair of the plan, skipping those already merged with another plan
+	 */
+	private void mergePairs(Map<String, JsonValue> merged, MergePlan plan, MergePlan alreadyMerged,
+			Map<String, JsonValue> one, Map<String, JsonValue> another, Map<String, JsonValue> base) {
+		for (int pair = 0; pair < plan.size(); pair++) {
+			var valueKey = plan.valueKey(pair);
+			var timestampKey = plan.timestampKey(pair);
+			if (alreadyMerged != null && alreadyMerged.isPairKey(timestampKey)) {
+				continue;
+			}
+
+			var newest = getNewestOf(one, another, timestampKey);
+			var value = newest.containsKey(valueKey) ? newest.get(valueKey) : base.get(valueKey);
+			var timestamp = newest.containsKey(timestampKey) ? newest.get(timestampKey) : base.get(timestampKey);
+			if (value != null) {
+				merged.put(valueKey, value);
+			}
+			if (timestamp != null) {
+				merged.put(timestampKey, timestamp);
+			}
+		}
+	}
 
-		builder.add(key, timestampOne > timestampAnother ? one.get(key) : another.get(key));
-		builder.add(timestampKey, Math.max(timestampOne, timestampAnother));
+	private Map<String, JsonValue> getNewestOf(Map<String, JsonValue> one, Map<String, JsonValue> another,
+			String timestampKey) {
+		if (!one.containsKey(timestampKey)) {
+			return another;
+		}
+		if (!another.containsKey(timestampKey)) {
+			return one;
+		}
+		return getLongValueOrZero(one.get(timestampKey)) > getLongValueOrZero(another.get(timestampKey)) ? one : another;
 	}
 
-	private JsonObject getMostRecentOf(JsonObject one, JsonObject another) {
-		var timestampOne = getLongValueOrZero(one, "changed_ts");
-		var timestampAnother = getLongValueOrZero(another, "changed_ts");
+	private SyncEntity getNewestOf(SyncEntity one, SyncEntity another, int pair) {
+		if (!one.hasTimestamp(pair)) {
+			return another;
+		}
+		if (!another.hasTimestamp(pair)) {
+			return one;
+		}
+		return one.timestamp(pair) > another.timestamp(pair) ? one : another;
+	}
 
-		return timestampOne > timestampAnother ? one : another;
+	private SyncEntity getMostRecentOf(SyncEntity one, SyncEntity another) {
+		return one.getChangedTs() > another.getChangedTs() ? one : another;
 	}
 }
@@ -1,186 +1,433 @@
 package com.jbequinn.jsonsyncserver.service;
 
-import com.jbequinn.jsonsyncserver.model.ChangesDto;
-import com.jbequinn.jsonsyncserver.repository.MongoRepository;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.model.SyncResponse;
+import com.jbequinn.jsonsyncserver.repository.SyncRepository;
+import com.jbequinn.jsonsyncserver.repository.RepositoryExecutor;
 import lombok.extern.flogger.Flogger;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
-import javax.json.JsonValue;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static com.google.common.flogger.LazyArgs.lazy;
-import static com.jbequinn.jsonsyncserver.service.JsonAccessor.getLongValueOrZero;
 import static java.util.concurrent.CompletableFuture.allOf;
-import static java.util.function.Function.identity;
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
-import static javax.json.Json.createObjectBuilder;
 
 @ApplicationScoped
 @Flogger
 public class JsonSyncServerService {
-	private final MongoRepository repository;
-	private final JsonObjectMerger merger;
-
-	public JsonSyncServerService(MongoRepository repository, JsonObjectMerger merger) {
+	private static final long SYNC_TIMEOUT_MINUTES = 2;
+
+	private final SyncRepository repository;
+	private final ChangesAssembler changesAssembler;
+	private final SyncWriteCoalescer writeCoalescer;
+	private final JsonSyncServerProperties properties;
+	private final MergeMode mergeMode;
+	private final RepositoryExecutor executor;
+	private final PushGuard pushGuard;
+
+	public JsonSyncServerService(SyncRepository repository, ChangesAssembler changesAssembler,
+			SyncWriteCoalescer writeCoalescer, JsonSyncServerProperties properties, RepositoryExecutor executor,
+			PushGuard pushGuard) {
 		this.repository = repository;
-		this.merger = merger;
+		this.changesAssembler = changesAssembler;
+		this.writeCoalescer = writeCoalescer;
+		this.properties = properties;
+		this.mergeMode = MergeMode.of(properties.getMergeMode());
+		this.executor = executor;
+		this.pushGuard = pushGuard;
 	}
 
-	public JsonObject sync(JsonObject jsonObject) throws ExecutionException, InterruptedException, TimeoutException {
+	public SyncResponse sync(JsonObject jsonObject) throws ExecutionException, InterruptedException, TimeoutException {
 		log.atFinest()
 				.log("Request body: %s", lazy(() -> jsonObject));
 
-		var lastSync = getLongValueOrZero(jsonObject, "last_sync_ts");
+		var request = SyncRequest.from(jsonObject);
 
 		var updatedTimestamp = Instant.now().getEpochSecond();
 
-		var tags = jsonObject.get("changes").asJsonObject().getJsonArray("tags").getValuesAs(JsonObject.class);
-		var items = jsonObject.get("changes").asJsonObject().getJsonArray("items").getValuesAs(JsonObject.class);
-		var deletions = jsonObject.get("changes").asJsonObject().getJsonArray("deletions");
-
-		var changes = new ChangesDto();
-
-		changes.setNewDeletions(jsonObject.get("changes")
-				.asJsonObject()
-				.getJsonArray("deletions")
-				.stream()
-				.map(JsonValue::asJsonObject)
-				.collect(toList()));
-
-		changes.setItemsIdsToDelete(deletions.stream()
-				.map(JsonValue::asJsonObject)
-				.filter(element -> "i".equals(element.getString("entity_type")))
-				.map(element -> element.getString("sync_id"))
-				.collect(toList()));
-
-		changes.setTagIdsToDelete(deletions.stream()
-				.map(JsonValue::asJsonObject)
-				.filter(jsonObject1 -> "t".equals(jsonObject1.getString("entity_type")))
-				.map(element -> element.getString("sync_id"))
-				.collect(toList()));
-
-		CompletableFuture<Void> processTags = CompletableFuture
-				.supplyAsync(() -> getExistingTags(tags))
-				.thenAccept(existingTagsById -> addTagsToDto(tags, existingTagsById, changes));
-		CompletableFuture<Void> processItems = CompletableFuture
-				.supplyAsync(() -> getExistingItems(items))
-				.thenAccept(existingItemsById -> addItemsToDto(items, existingItemsById, changes));
-
-		allOf(processTags, processItems).get(2, TimeUnit.MINUTES);
-
-		repository.sync(changes);
-
-		// optimization: don't include in the response those elements sent
-		var responseBuilder = createObjectBuilder()
-				.add("sync_ts", updatedTimestamp)
-				.add("success", true)
-				.add("time_delta_ms", getLongValueOrZero(jsonObject, "time_delta_ms"));
-
-		CompletableFuture<Void> findItemsNewer = CompletableFuture
-				.supplyAsync(() -> repository.findItemsNewerThan(lastSync))
-				.thenAccept(itemsNewer -> responseBuilder.add("items", itemsNewer));
-		CompletableFuture<Void> findTagsNewer = CompletableFuture
-				.supplyAsync(() -> repository.findTagsNewerThan(lastSync))
-				.thenAccept(tagsNewer -> responseBuilder.add("tags", tagsNewer));
-		CompletableFuture<Void> findDeletionsNewer = CompletableFuture
-				.supplyAsync(() -> repository.findDeletionsNewerThan(lastSync))
-				.thenAccept(deletionsNewer -> responseBuilder.add("deletions_to_add", deletionsNewer));
-
-		allOf(findItemsNewer, findTagsNewer, findDeletionsNewer).get(2, TimeUnit.MINUTES);
-
-		var response = responseBuilder.build();
+		// nothing is written while a push replaces the whole data set, it would be lost
+		pushGuard.startSync();
+		try {
+			writeChanges(request);
+		} finally {
+			pushGuard.endSync();
+		}
 
-		log.atFinest()
-				.log("Response body: %s", lazy(() -> response));
+		request.getDeviceId()
+				.ifPresent(deviceId -> repository.saveDeviceCursor(deviceId, request.getLastSyncTs(), updatedTimestamp));
+		var syncCursor = repository.currentChangeSequence();
+
+		var response = request.getPageSize().isPresent() || request.getPageToken().isPresent()
+				? findChangesPage(request, updatedTimestamp, syncCursor)
+				: findChanges(request, updatedTimestamp, syncCursor);
+
+		response.completion()
+				.thenRun(() -> log.atFinest().log("Response body: %s", lazy(response::toJsonObject)));
+
+		if (!properties.getStreamSyncResponse()) {
+			// waiting here makes any error fail the request before anything of the response is written
+			response.completion().get(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+		}
 
 		return response;
 	}
 
-	private Map<String, JsonObject> getExistingTags(List<JsonObject> tags) {
-		var tagIds = tags.stream()
-				.map(JsonValue::asJsonObject)
-				.map(jsonObject -> jsonObject.getString("id"))
-				.collect(toList());
+	private void writeChanges(SyncRequest request) throws ExecutionException, InterruptedException, TimeoutException {
+		var changes = changesAssembler.newChanges(request);
+
+		switch (mergeMode) {
+			case APPLICATION:
+				CompletableFuture<Void> processTags = CompletableFuture
+						.supplyAsync(() -> repository.findTagsById(request.getTagIds()), executor)
+						.thenAccept(existingTags -> changesAssembler.addTags(changes, request.getTags(), existingTags));
+				CompletableFuture<Void> processItems = CompletableFuture
+						.supplyAsync(() -> repository.findItemsById(request.getItemIds()), executor)
+						.thenAccept(existingItems -> changesAssembler.addItems(changes, request.getItems(), existingItems));
+
+				allOf(processTags, processItems).get(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+				break;
+			case DATABASE:
+				changesAssembler.addToMergeInDatabase(changes, request);
+				break;
+		}
+
+		writeCoalescer.write(changes).get(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+	}
+
+	private SyncResponse findChanges(SyncRequest request, long updatedTimestamp, long syncCursor) {
+		var lastSync = request.getLastSyncTs();
+
+		Supplier<JsonArray> itemsNewerSupplier = () -> repository.findItemsNewerThan(lastSync);
+		Supplier<JsonArray> tagsNewerSupplier = () -> repository.findTagsNewerThan(lastSync);
+		Supplier<JsonArray> deletionsNewerSupplier = () -> repository.findDeletionsNewerThan(lastSync);
+
+		// clients that send the cursor of their last sync get the changes from the change log. Older clients, or
+		// those with a cursor invalidated by a push or a wipe, fall back to the timestamps
+		var changedIds = request.getSyncCursor().isPresent()
+				? repository.findChangedIdsSince(request.getSyncCursor().getAsLong(), syncCursor)
+				: Optional.<ChangedIds>empty();
+		if (changedIds.isPresent()) {
+			var ids = changedIds.get();
+			itemsNewerSupplier = () -> entitiesToJsonArray(repository.findItemsById(ids.getItemIds()));
+			tagsNewerSupplier = () -> entitiesToJsonArray(repository.findTagsById(ids.getTagIds()));
+			deletionsNewerSupplier = () -> toJsonArray(repository.findDeletionsBySyncId(ids.getDeletionSyncIds()));
+		}
+
+		// optimization: don't include in the response those elements sent, unless they were merged into something
+		// different from what the client already has
+		return new SyncResponse(
+				updatedTimestamp,
+				syncCursor,
+				request.getTimeDeltaMs(),
+				CompletableFuture
+						.supplyAsync(itemsNewerSupplier, executor)
+						.thenApply(request::withoutSentItems),
+				CompletableFuture
+						.supplyAsync(tagsNewerSupplier, executor)
+						.thenApply(request::withoutSentTags),
+				CompletableFuture
+						.supplyAsync(deletionsNewerSupplier, executor)
+						.thenApply(request::withoutSentDeletions));
+	}
+
+	/**
+	 * A page of the changes. The first page is found like the whole changes, and the next ones continue from the
+	 * token of the previous page, with the sync timestamp and cursor of the first one.
+	 * <p>
+	 * Only the first page leaves out the elements that the client sent itself. The requests of the next pages have no
+	 * changes, so those pages can return some of them, as they are stored after the merge. The clients merge them like
+	 * any other element.
+	 */
+	private SyncResponse findChangesPage(SyncRequest request, long updatedTimestamp, long syncCursor)
+			throws ExecutionException, InterruptedException, TimeoutException {
+		var token = request.getPageToken().map(PageToken::decode);
+		var pageSize = Math.max(1, Math.min(
+				request.getPageSize().orElseGet(() -> token.map(PageToken::getPageSize).orElse(properties.getMaxSyncPageSize())),
+				properties.getMaxSyncPageSize()));
+		var page = token.orElseGet(() -> request.getSyncCursor().isPresent()
+				? PageToken.afterSequence(updatedTimestamp, syncCursor, request.getLastSyncTs(), pageSize, request.getSyncCursor().getAsLong())
+				: PageToken.first(updatedTimestamp, syncCursor, request.getLastSyncTs(), pageSize));
+
+		if (page.getSequence().isPresent()) {
+			var changedIds = repository.findChangedIdsSince(page.getSequence().getAsLong(), page.getSyncCursor(), pageSize);
+			if (changedIds.isPresent()) {
+				var ids = changedIds.get();
+				var nextPage = ids.getLastSequence() < page.getSyncCursor()
+						? PageToken.afterSequence(page.getSyncTs(), page.getSyncCursor(), page.getLastSyncTs(), pageSize, ids.getLastSequence())
+						: null;
+				return pageResponse(request, page, nextPage,
+						CompletableFuture.supplyAsync(() -> entitiesToJsonArray(repository.findItemsById(ids.getItemIds())), executor),
+						CompletableFuture.supplyAsync(() -> entitiesToJsonArray(repository.findTagsById(ids.getTagIds())), executor),
+						CompletableFuture.supplyAsync(() -> toJsonArray(repository.findDeletionsBySyncId(ids.getDeletionSyncIds())), executor));
+			}
+
+			// the change log was reset after the first page, so the rest comes from the timestamps
+			page = PageToken.first(page.getSyncTs(), page.getSyncCursor(), page.getLastSyncTs(), pageSize);
+		}
+
+		// one more element than the page size is looked up, to know whether there is a next page
+		var since = page.getLastSyncTs();
+		var items = findPage(page.getItems(), (afterTs, afterId) -> repository.findItemsPageNewerThan(since, afterTs, afterId, pageSize + 1));
+		var tags = findPage(page.getTags(), (afterTs, afterId) -> repository.findTagsPageNewerThan(since, afterTs, afterId, pageSize + 1));
+		var deletions = findPage(page.getDeletions(), (afterTs, afterId) -> repository.findDeletionsPageNewerThan(since, afterTs, afterId, pageSize + 1));
+		allOf(items, tags, deletions).get(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+
+		var nextItems = nextPosition(items.join(), pageSize, "changed_ts", "id");
+		var nextTags = nextPosition(tags.join(), pageSize, "changed_ts", "id");
+		var nextDeletions = nextPosition(deletions.join(), pageSize, "ts", "sync_id");
+		var nextPage = nextItems == null && nextTags == null && nextDeletions == null
+				? null
+				: PageToken.afterPositions(page.getSyncTs(), page.getSyncCursor(), since, pageSize, nextItems, nextTags, nextDeletions);
+
+		return pageResponse(request, page, nextPage,
+				CompletableFuture.completedFuture(toJsonArray(limit(items.join(), pageSize))),
+				CompletableFuture.completedFuture(toJsonArray(limit(tags.join(), pageSize))),
+				CompletableFuture.completedFuture(toJsonArray(limit(deletions.join(), pageSize))));
+	}
+
+	private CompletableFuture<List<JsonObject>> findPage(PageToken.Position position,
+			BiFunction<OptionalLong, String, List<JsonObject>> lookup) {
+		// a section already sent completely
+		if (position == null) {
+			return CompletableFuture.completedFuture(List.of());
+		}
+		return CompletableFuture.supplyAsync(() -> lookup.apply(position.getTimestamp(), position.getId()), executor);
+	}
+
+	private PageToken.Position nextPosition(List<JsonObject> page, int pageSize, String timestampField, String idField) {
+		if (page.size() <= pageSize) {
+			return null;
+		}
+		var last = page.get(pageSize - 1);
+		// an element without a timestamp is sorted before the others, the token has to tell it apart from a 0
+		var timestamp = last.get(timestampField);
+		return new PageToken.Position(
+				timestamp instanceof JsonNumber ? OptionalLong.of(((JsonNumber) timestamp).longValue()) : OptionalLong.empty(),
+				last.getString(idField));
+	}
 
-		return repository.findTagsById(tagIds).stream()
-				.map(JsonValue::asJsonObject)
-				.collect(toMap(object -> object.getString("id"), identity()));
+	private List<JsonObject> limit(List<JsonObject> page, int pageSize) {
+		return page.size() > pageSize ? page.subList(0, pageSize) : page;
 	}
 
-	private void addTagsToDto(List<JsonObject> tags, Map<String, JsonObject> existingTagsById, ChangesDto changes) {
-		tags.stream()
-				.map(JsonValue::asJsonObject)
-				.forEach(tag -> {
-							var tagId = tag.getString("id");
-							if (existingTagsById.containsKey(tagId)) {
-								existingTagsById.put(tagId, merger.mergeTag(tag, existingTagsById.get(tagId)));
-							} else {
-								changes.getNewTagsToSave().add(tag);
-							}
-						}
-				);
+	private SyncResponse pageResponse(SyncRequest request, PageToken page, PageToken nextPage,
+			CompletableFuture<JsonArray> items, CompletableFuture<JsonArray> tags, CompletableFuture<JsonArray> deletions) {
+		return new SyncResponse(
+				page.getSyncTs(),
+				page.getSyncCursor(),
+				request.getTimeDeltaMs(),
+				items.thenApply(request::withoutSentItems),
+				tags.thenApply(request::withoutSentTags),
+				deletions.thenApply(request::withoutSentDeletions),
+				nextPage == null ? null : nextPage.encode());
+	}
 
-		changes.getTagsToUpdate().addAll(existingTagsById.values());
+	/**
+	 * Whether {@link #syncOnVirtualThread(JsonObject)} can be used
+	 */
+	public boolean runsOnVirtualThreads() {
+		return executor.usesVirtualThreads();
 	}
 
-	private Map<String, JsonObject> getExistingItems(List<JsonObject> items) {
-		var itemIds = items.stream()
-				.map(JsonValue::asJsonObject)
-				.map(jsonObject -> jsonObject.getString("id"))
-				.collect(toList());
+	/**
+	 * Runs the whole sync in a virtual thread of its own, releasing the request thread while it blocks
+	 */
+	public CompletableFuture<SyncResponse> syncOnVirtualThread(JsonObject jsonObject) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return sync(jsonObject);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CompletionException(e);
+			} catch (ExecutionException | TimeoutException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
 
-		return repository.findItemsById(itemIds).stream()
-				.map(JsonValue::asJsonObject)
-				.collect(toMap(object -> object.getString("id"), identity()));
+	static JsonArray toJsonArray(List<JsonObject> jsonObjects) {
+		var builder = Json.createArrayBuilder();
+		jsonObjects.forEach(builder::add);
+		return builder.build();
 	}
 
-	private void addItemsToDto(List<JsonObject> items, Map<String, JsonObject> existingItemsById, ChangesDto changes) {
-		items.stream()
-				.map(JsonValue::asJsonObject)
-				.forEach(item -> {
-							var itemId = item.getString("id");
-							if (existingItemsById.containsKey(itemId)) {
-								existingItemsById.put(itemId, merger.mergeItem(item, existingItemsById.get(itemId)));
-							} else {
-								changes.getNewItemsToSave().add(item);
-							}
-						}
-				);
+	static JsonArray entitiesToJsonArray(List<SyncEntity> entities) {
+		var builder = Json.createArrayBuilder();
+		entities.forEach(entity -> builder.add(entity.toJsonObject()));
+		return builder.build();
+	}
 
-		changes.getItemsToUpdate().addAll(existingItemsById.values());
+	/**
+	 * Writes the response of a sync, each of its arrays as soon as it is found
+	 */
+	public void writeSyncResponse(SyncResponse response, JsonGenerator generator) throws IOException {
+		generator.writeStartObject();
+		generator.writeNumberField("sync_ts", response.getSyncTs());
+		generator.writeNumberField("sync_cursor", response.getSyncCursor());
+		generator.writeBooleanField("success", true);
+		generator.writeNumberField("time_delta_ms", response.getTimeDeltaMs());
+		if (response.isPaginated()) {
+			generator.writeBooleanField("has_more", response.getNextPageToken() != null);
+			if (response.getNextPageToken() != null) {
+				generator.writeStringField("page_token", response.getNextPageToken());
+			}
+		}
+
+		var pendingSections = new LinkedHashMap<>(response.getSections());
+		while (!pendingSections.isEmpty()) {
+			try {
+				CompletableFuture.anyOf(pendingSections.values().toArray(new CompletableFuture[0]))
+						.get(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the sync response", e);
+			} catch (ExecutionException | TimeoutException e) {
+				throw new IOException("Error when finding the elements of the sync response", e);
+			}
+
+			var iterator = pendingSections.entrySet().iterator();
+			while (iterator.hasNext()) {
+				var section = iterator.next();
+				if (section.getValue().isDone()) {
+					generator.writeFieldName(section.getKey());
+					generator.writeObject(section.getValue().join());
+					generator.flush();
+					iterator.remove();
+				}
+			}
+		}
+
+		generator.writeEndObject();
+		generator.flush();
 	}
 
-	public JsonObject findAllItemsTagsAndDeletions() {
-		return createObjectBuilder()
-				.add("items", repository.findAllItems())
-				.add("tags", repository.findAllTags())
-				.add("deletions", repository.findAllDeletions())
-				.build();
+	public void writeAllItemsTagsAndDeletions(JsonGenerator generator) throws IOException {
+		generator.writeStartObject();
+		writeArray(generator, "items", repository::forEachItem);
+		writeArray(generator, "tags", repository::forEachTag);
+		writeArray(generator, "deletions", repository::forEachDeletion);
+		generator.writeEndObject();
+		generator.flush();
 	}
 
-	public void saveAllItemsTagsAndDeletions(JsonObject jsonObject) {
-		var items = Objects.requireNonNull(jsonObject.getJsonArray("items").getValuesAs(JsonObject.class));
-		var tags = Objects.requireNonNull(jsonObject.getJsonArray("tags").getValuesAs(JsonObject.class));
-		var deletions = Objects.requireNonNull(jsonObject.getJsonArray("deletions").getValuesAs(JsonObject.class));
+	private void writeArray(JsonGenerator generator, String fieldName, Consumer<Consumer<JsonObject>> source) throws IOException {
+		generator.writeArrayFieldStart(fieldName);
+		try {
+			source.accept(jsonObject -> {
+				try {
+					generator.writeObject(jsonObject);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		generator.writeEndArray();
+	}
+
+	public void saveAllItemsTagsAndDeletions(JsonParser parser) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException(parser, "The body of a push must be a JSON object");
+		}
+
+		try {
+			pushGuard.startPush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the syncs in progress");
+		}
+
+		// everything is loaded aside, and only replaces the current data once the whole body has been read
+		try (var stagingLoad = repository.startStagingLoad()) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				var fieldName = parser.getCurrentName();
+				parser.nextToken();
+				switch (fieldName) {
+					case "items":
+						saveArray(parser, stagingLoad::saveNewItems);
+						break;
+					case "tags":
+						saveArray(parser, stagingLoad::saveNewTags);
+						break;
+					case "deletions":
+						saveArray(parser, stagingLoad::saveNewDeletions);
+						break;
+					default:
+						log.atFine().log("Skipping unknown field %s", fieldName);
+						parser.skipChildren();
+				}
+			}
+
+			stagingLoad.commit();
+		} finally {
+			pushGuard.endPush();
+		}
+	}
+
+	private void saveArray(JsonParser parser, Consumer<List<JsonObject>> saver) throws IOException {
+		if (parser.currentToken() != JsonToken.START_ARRAY) {
+			throw new JsonParseException(parser, "Expected an array of elements");
+		}
+
+		// at most one batch is being inserted while the next one is parsed
+		var batchSize = properties.getPushBatchSize();
+		var batch = new ArrayList<JsonObject>(batchSize);
+		CompletableFuture<Void> pendingInsert = CompletableFuture.completedFuture(null);
+
+		try {
+			while (parser.nextToken() != JsonToken.END_ARRAY) {
+				batch.add(parser.readValueAs(JsonObject.class));
+				if (batch.size() == batchSize) {
+					pendingInsert = insertAfter(pendingInsert, batch, saver);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// the staging load is discarded right after, so the batch still being inserted must be done by then
+			pendingInsert.handle((result, throwable) -> null).join();
+			throw e;
+		}
+
+		insertAfter(pendingInsert, batch, saver).join();
+	}
 
-		deleteAllItemsTagsAndDeletions();
-		repository.saveNewItems(items);
-		repository.saveNewTags(tags);
-		repository.saveNewDeletions(deletions);
+	private CompletableFuture<Void> insertAfter(CompletableFuture<Void> pendingInsert, List<JsonObject> batch, Consumer<List<JsonObject>> saver) {
+		pendingInsert.join();
+		return CompletableFuture.runAsync(() -> saver.accept(batch), executor);
 	}
 
 	public void deleteAllItemsTagsAndDeletions() {
 		repository.deleteAllItems();
 		repository.deleteAllTags();
 		repository.deleteAllDeletions();
+		// once for the three, after the data is gone, so that a cursor handed out in the meantime is not valid either
+		repository.resetChangeLog();
 	}
 }
@@ -0,0 +1,22 @@
+package com.jbequinn.jsonsyncserver.service;
+
+/**
+ * Where the items and tags of a sync are merged with the stored ones, as set in {@code application.merge-mode}
+ */
+public enum MergeMode {
+	// read and merged in the application
+	APPLICATION,
+	// merged by Mongo, with pipeline updates
+	DATABASE;
+
+	public static MergeMode of(String mergeMode) {
+		switch (mergeMode) {
+			case "application":
+				return APPLICATION;
+			case "database":
+				return DATABASE;
+			default:
+				throw new IllegalArgumentException("Unknown merge mode: " + mergeMode);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import lombok.Getter;
+
+import javax.json.JsonObject;
+import java.util.Set;
+
+/**
+ * A merged item, along with the fields where it differs from the item it was merged into
+ */
+@Getter
+public class MergeResult {
+	private final SyncEntity entity;
+	private final Set<String> changedFields;
+
+	MergeResult(SyncEntity entity, Set<String> changedFields) {
+		this.entity = entity;
+		this.changedFields = changedFields;
+	}
+
+	/**
+	 * The merged item as JSON, built on every call
+	 */
+	public JsonObject getMerged() {
+		return entity.toJsonObject();
+	}
+
+	/**
+	 * Whether anything differs from the item it was merged into, i.e. whether it has to be written
+	 */
+	public boolean isChanged() {
+		return !changedFields.isEmpty();
+	}
+}
@@ -0,0 +1,140 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import lombok.Getter;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.ws.rs.BadRequestException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.OptionalLong;
+
+import static com.jbequinn.jsonsyncserver.service.JsonAccessor.getLongValueOrZero;
+
+/**
+ * Where the next page of a paginated sync starts. It is handed to the client as an opaque string, and also carries
+ * what the first page was based on, so that every page of a sync is consistent with the first one
+ */
+@Getter
+class PageToken {
+	private final long syncTs;
+	private final long syncCursor;
+	private final long lastSyncTs;
+	private final int pageSize;
+
+	// the change log sequence to continue after, when the pages come from the change log
+	private final OptionalLong sequence;
+
+	// where each section continues, when the pages come from the timestamps. Null when it's complete
+	private final Position items;
+	private final Position tags;
+	private final Position deletions;
+
+	private PageToken(long syncTs, long syncCursor, long lastSyncTs, int pageSize, OptionalLong sequence,
+			Position items, Position tags, Position deletions) {
+		this.syncTs = syncTs;
+		this.syncCursor = syncCursor;
+		this.lastSyncTs = lastSyncTs;
+		this.pageSize = pageSize;
+		this.sequence = sequence;
+		this.items = items;
+		this.tags = tags;
+		this.deletions = deletions;
+	}
+
+	static PageToken afterSequence(long syncTs, long syncCursor, long lastSyncTs, int pageSize, long sequence) {
+		return new PageToken(syncTs, syncCursor, lastSyncTs, pageSize, OptionalLong.of(sequence), null, null, null);
+	}
+
+	static PageToken afterPositions(long syncTs, long syncCursor, long lastSyncTs, int pageSize,
+			Position items, Position tags, Position deletions) {
+		return new PageToken(syncTs, syncCursor, lastSyncTs, pageSize, OptionalLong.empty(), items, tags, deletions);
+	}
+
+	/**
+	 * The first page from the timestamps, with every section starting from the beginning
+	 */
+	static PageToken first(long syncTs, long syncCursor, long lastSyncTs, int pageSize) {
+		return afterPositions(syncTs, syncCursor, lastSyncTs, pageSize, Position.START, Position.START, Position.START);
+	}
+
+	String encode() {
+		var builder = Json.createObjectBuilder()
+				.add("ts", syncTs)
+				.add("cursor", syncCursor)
+				.add("since", lastSyncTs)
+				.add("size", pageSize);
+		if (sequence.isPresent()) {
+			builder.add("seq", sequence.getAsLong());
+		} else {
+			addPosition(builder, "items", items);
+			addPosition(builder, "tags", tags);
+			addPosition(builder, "deletions", deletions);
+		}
+
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(builder.build().toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void addPosition(JsonObjectBuilder builder, String section, Position position) {
+		if (position == null) {
+			builder.add(section, JsonValue.NULL);
+		} else {
+			var timestamp = position.getTimestamp();
+			builder.add(section, Json.createObjectBuilder()
+					.add("ts", timestamp.isPresent() ? Json.createValue(timestamp.getAsLong()) : JsonValue.NULL)
+					.add("id", position.getId() == null ? JsonValue.NULL : Json.createValue(position.getId())));
+		}
+	}
+
+	static PageToken decode(String token) {
+		try (var reader = Json.createReader(new StringReader(
+				new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)))) {
+			var json = reader.readObject();
+			var syncTs = getLongValueOrZero(json, "ts");
+			var syncCursor = getLongValueOrZero(json, "cursor");
+			var lastSyncTs = getLongValueOrZero(json, "since");
+			var pageSize = (int) getLongValueOrZero(json, "size");
+			if (json.containsKey("seq")) {
+				return afterSequence(syncTs, syncCursor, lastSyncTs, pageSize, getLongValueOrZero(json, "seq"));
+			}
+			return afterPositions(syncTs, syncCursor, lastSyncTs, pageSize,
+					readPosition(json, "items"), readPosition(json, "tags"), readPosition(json, "deletions"));
+		} catch (IllegalArgumentException | JsonException | ClassCastException e) {
+			throw new BadRequestException("Invalid page token", e);
+		}
+	}
+
+	private static Position readPosition(JsonObject json, String section) {
+		var position = json.get(section);
+		if (position == null || position.getValueType() != JsonValue.ValueType.OBJECT) {
+			return null;
+		}
+		var timestamp = position.asJsonObject().get("ts");
+		return new Position(
+				timestamp instanceof JsonNumber ? OptionalLong.of(((JsonNumber) timestamp).longValue()) : OptionalLong.empty(),
+				position.asJsonObject().getString("id", null));
+	}
+
+	/**
+	 * The timestamp and id of the last element of a section sent, or no id for a section not started yet. The
+	 * timestamp is empty when that element had none
+	 */
+	@Getter
+	static class Position {
+		static final Position START = new Position(OptionalLong.empty(), null);
+
+		private final OptionalLong timestamp;
+		private final String id;
+
+		Position(OptionalLong timestamp, String id) {
+			this.timestamp = timestamp;
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import lombok.Getter;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The whole body of a /pull, already gzipped. Written as an entity, it is decompressed, unless the
+ * {@code PrecompressedWriterInterceptor} finds that the response is gzipped anyway and writes it as it is
+ */
+@Getter
+public class PullSnapshot implements StreamingOutput {
+	private final long generation;
+	private final EntityTag entityTag;
+	private final byte[] gzippedBody;
+
+	PullSnapshot(long generation, EntityTag entityTag, byte[] gzippedBody) {
+		this.generation = generation;
+		this.entityTag = entityTag;
+		this.gzippedBody = gzippedBody;
+	}
+
+	@Override
+	public void write(OutputStream outputStream) throws IOException {
+		try (var body = new GZIPInputStream(new ByteArrayInputStream(gzippedBody))) {
+			body.transferTo(outputStream);
+		}
+	}
+
+	public void writeGzipped(OutputStream outputStream) throws IOException {
+		outputStream.write(gzippedBody);
+	}
+
+	/**
+	 * Whether the value of an If-None-Match header matches this snapshot. The comparison is the weak one, so the tag
+	 * matches with or without its W/ prefix
+	 */
+	public boolean matches(String ifNoneMatch) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		var opaqueTag = "\"" + entityTag.getValue() + "\"";
+		for (var entityTagValue : ifNoneMatch.split(",")) {
+			var value = entityTagValue.trim();
+			if (value.startsWith("W/")) {
+				value = value.substring(2);
+			}
+			if (value.equals("*") || value.equals(opaqueTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,101 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.model.DataChangedEvent;
+import com.jbequinn.jsonsyncserver.repository.RepositoryExecutor;
+import lombok.extern.flogger.Flogger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.ws.rs.core.EntityTag;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the body of a /pull gzipped in memory, along with an entity tag, until something is written. It is then
+ * rebuilt in the background, so that the next pull usually finds it ready. The entity tag is weak, as the same one is
+ * served for the gzipped and the identity encodings of the body.
+ * <p>
+ * Only the writes of this instance are seen, so it assumes that it is the only one using the database.
+ */
+@ApplicationScoped
+@Flogger
+public class PullSnapshotCache {
+	private final JsonSyncServerService service;
+	private final ObjectMapper objectMapper;
+	private final RepositoryExecutor executor;
+	private final JsonSyncServerProperties properties;
+
+	// makes the entity tags of an instance different from those of the previous one
+	private final long bootTime = System.currentTimeMillis();
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+	private volatile PullSnapshot snapshot;
+
+	public PullSnapshotCache(JsonSyncServerService service, ObjectMapper objectMapper, RepositoryExecutor executor,
+			JsonSyncServerProperties properties) {
+		this.service = service;
+		this.objectMapper = objectMapper;
+		this.executor = executor;
+		this.properties = properties;
+	}
+
+	/**
+	 * Returns the current snapshot, building it first if anything was written since the last one
+	 */
+	public PullSnapshot get() throws IOException {
+		var current = snapshot;
+		if (current != null && current.getGeneration() == generation.get()) {
+			return current;
+		}
+
+		synchronized (this) {
+			current = snapshot;
+			// read before the data, so that a write during the build makes the snapshot stale rather than wrong
+			var currentGeneration = generation.get();
+			if (current == null || current.getGeneration() != currentGeneration) {
+				current = build(currentGeneration);
+				snapshot = current;
+			}
+			return current;
+		}
+	}
+
+	private PullSnapshot build(long generation) throws IOException {
+		var start = System.nanoTime();
+		var body = new ByteArrayOutputStream();
+		try (var gzip = new GZIPOutputStream(body);
+				var generator = objectMapper.getFactory().createGenerator(gzip)) {
+			service.writeAllItemsTagsAndDeletions(generator);
+		}
+
+		log.atFine().log("Pull snapshot %d built in %d ms: %d bytes",
+				generation, (System.nanoTime() - start) / 1_000_000, body.size());
+		return new PullSnapshot(generation, new EntityTag(bootTime + "-" + generation, true), body.toByteArray());
+	}
+
+	void onDataChanged(@Observes DataChangedEvent event) {
+		// with the cache disabled, nothing would ever read the rebuilt snapshot
+		if (!properties.getPullSnapshotCache()) {
+			return;
+		}
+		generation.incrementAndGet();
+
+		// the writes coming in a row only trigger one rebuild
+		if (rebuildScheduled.compareAndSet(false, true)) {
+			executor.execute(() -> {
+				rebuildScheduled.set(false);
+				try {
+					get();
+				} catch (IOException | RuntimeException e) {
+					log.atWarning().withCause(e).log("Error when rebuilding the pull snapshot");
+				}
+			});
+		}
+	}
+}
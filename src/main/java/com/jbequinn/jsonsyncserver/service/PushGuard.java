@@ -0,0 +1,62 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import lombok.extern.flogger.Flogger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.ServiceUnavailableException;
+
+/**
+ * Keeps the syncs from writing while a push replaces the whole data set. What a sync wrote in the middle of a push
+ * would be lost when the staging collections replace the live ones, so the syncs arriving during a push are refused
+ * with a 503 and a Retry-After instead, and a push waits for the syncs already writing to finish before it starts.
+ * Two pushes don't run at the same time either.
+ */
+@ApplicationScoped
+@Flogger
+public class PushGuard {
+	private static final long RETRY_AFTER_SECONDS = 5;
+
+	private int syncsInFlight;
+	private int pushesWaiting;
+	private boolean pushing;
+
+	/**
+	 * Lets a sync write, or refuses it while a push is running. Every call must be followed by
+	 * {@link #endSync()} once the writes of the sync are done
+	 */
+	public synchronized void startSync() {
+		if (pushing || pushesWaiting > 0) {
+			log.atFine().log("Refusing a sync while a push is running");
+			throw new ServiceUnavailableException(RETRY_AFTER_SECONDS);
+		}
+		syncsInFlight++;
+	}
+
+	public synchronized void endSync() {
+		syncsInFlight--;
+		if (syncsInFlight == 0) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits for the syncs that are writing and for any other push, then keeps the new syncs out until
+	 * {@link #endPush()}. The new syncs are already refused while waiting, so that they can't hold off the push
+	 */
+	public synchronized void startPush() throws InterruptedException {
+		pushesWaiting++;
+		try {
+			while (pushing || syncsInFlight > 0) {
+				wait();
+			}
+		} finally {
+			pushesWaiting--;
+		}
+		pushing = true;
+	}
+
+	public synchronized void endPush() {
+		pushing = false;
+		notifyAll();
+	}
+}
@@ -0,0 +1,124 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.SyncResponse;
+import com.jbequinn.jsonsyncserver.repository.ReactiveMongoRepository;
+import lombok.extern.flogger.Flogger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.flogger.LazyArgs.lazy;
+import static java.util.concurrent.CompletableFuture.allOf;
+
+/**
+ * The same sync as {@link JsonSyncServerService#sync(JsonObject)}, but without blocking any thread while Mongo
+ * answers. Each step is chained to the completion of the previous one instead
+ */
+@ApplicationScoped
+@Flogger
+public class ReactiveJsonSyncServerService {
+	private static final long SYNC_TIMEOUT_MINUTES = 2;
+
+	private final ReactiveMongoRepository repository;
+	private final ChangesAssembler changesAssembler;
+	private final MergeMode mergeMode;
+	private final PushGuard pushGuard;
+
+	public ReactiveJsonSyncServerService(ReactiveMongoRepository repository, ChangesAssembler changesAssembler,
+			JsonSyncServerProperties properties, PushGuard pushGuard) {
+		this.repository = repository;
+		this.changesAssembler = changesAssembler;
+		this.mergeMode = MergeMode.of(properties.getMergeMode());
+		this.pushGuard = pushGuard;
+	}
+
+	/**
+	 * Returns a response with all its elements already found, so that writing it never waits
+	 */
+	public CompletableFuture<SyncResponse> sync(JsonObject jsonObject) {
+		log.atFinest()
+				.log("Request body: %s", lazy(() -> jsonObject));
+
+		var request = SyncRequest.from(jsonObject);
+		var updatedTimestamp = Instant.now().getEpochSecond();
+
+		var changes = changesAssembler.newChanges(request);
+
+		try {
+			pushGuard.startSync();
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+
+		return mergeWithStored(request, changes)
+				.thenCompose(ignored -> repository.sync(changes))
+				.whenComplete((result, throwable) -> pushGuard.endSync())
+				.thenCompose(ignored -> request.getDeviceId()
+						.map(deviceId -> repository.saveDeviceCursor(deviceId, request.getLastSyncTs(), updatedTimestamp))
+						.orElseGet(() -> CompletableFuture.completedFuture(null)))
+				.thenCompose(ignored -> repository.currentChangeSequence())
+				.thenCompose(syncCursor -> findChanges(request, updatedTimestamp, syncCursor))
+				.thenCompose(response -> response.completion()
+						.thenApply(ignored -> {
+							log.atFinest().log("Response body: %s", lazy(response::toJsonObject));
+							return response;
+						}))
+				.orTimeout(SYNC_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+	}
+
+	private CompletableFuture<Void> mergeWithStored(SyncRequest request, ChangesDto changes) {
+		switch (mergeMode) {
+			case APPLICATION:
+				var processTags = repository.findTagsById(request.getTagIds())
+						.thenAccept(existingTags -> changesAssembler.addTags(changes, request.getTags(), existingTags));
+				var processItems = repository.findItemsById(request.getItemIds())
+						.thenAccept(existingItems -> changesAssembler.addItems(changes, request.getItems(), existingItems));
+				return allOf(processTags, processItems);
+			case DATABASE:
+				changesAssembler.addToMergeInDatabase(changes, request);
+				return CompletableFuture.completedFuture(null);
+			default:
+				throw new IllegalStateException("Unknown merge mode: " + mergeMode);
+		}
+	}
+
+	private CompletableFuture<SyncResponse> findChanges(SyncRequest request, long updatedTimestamp, long syncCursor) {
+		var lastSync = request.getLastSyncTs();
+
+		// see JsonSyncServerService: the change log is used when the client sends a cursor that is still valid
+		var changedIds = request.getSyncCursor().isPresent()
+				? repository.findChangedIdsSince(request.getSyncCursor().getAsLong(), syncCursor)
+				: CompletableFuture.completedFuture(Optional.<ChangedIds>empty());
+
+		return changedIds.thenApply(ids -> {
+			CompletableFuture<JsonArray> items;
+			CompletableFuture<JsonArray> tags;
+			CompletableFuture<JsonArray> deletions;
+			if (ids.isPresent()) {
+				items = repository.findItemsById(ids.get().getItemIds()).thenApply(JsonSyncServerService::entitiesToJsonArray);
+				tags = repository.findTagsById(ids.get().getTagIds()).thenApply(JsonSyncServerService::entitiesToJsonArray);
+				deletions = repository.findDeletionsBySyncId(ids.get().getDeletionSyncIds()).thenApply(JsonSyncServerService::toJsonArray);
+			} else {
+				items = repository.findItemsNewerThan(lastSync);
+				tags = repository.findTagsNewerThan(lastSync);
+				deletions = repository.findDeletionsNewerThan(lastSync);
+			}
+
+			return new SyncResponse(
+					updatedTimestamp,
+					syncCursor,
+					request.getTimeDeltaMs(),
+					items.thenApply(request::withoutSentItems),
+					tags.thenApply(request::withoutSentTags),
+					deletions.thenApply(request::withoutSentDeletions));
+		});
+	}
+}
@@ -0,0 +1,127 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import lombok.Getter;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+
+import static com.jbequinn.jsonsyncserver.service.JsonAccessor.getLongValueOrZero;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Body of a /sync request
+ */
+@Getter
+public class SyncRequest {
+	private final JsonObject body;
+	private final long lastSyncTs;
+	private final OptionalLong syncCursor;
+	private final long timeDeltaMs;
+	private final OptionalInt pageSize;
+	private final Optional<String> pageToken;
+	// identifies the client, so that the server knows how far it is, see TombstoneCompactor
+	private final Optional<String> deviceId;
+
+	private final List<JsonObject> items;
+	private final List<JsonObject> tags;
+	private final List<JsonObject> deletions;
+
+	private SyncRequest(JsonObject body) {
+		this.body = body;
+
+		lastSyncTs = getLongValueOrZero(body, "last_sync_ts");
+		var cursor = body.get("sync_cursor");
+		syncCursor = cursor != null && cursor.getValueType() == JsonValue.ValueType.NUMBER
+				? OptionalLong.of(getLongValueOrZero(body, "sync_cursor"))
+				: OptionalLong.empty();
+		timeDeltaMs = getLongValueOrZero(body, "time_delta_ms");
+		var size = body.get("page_size");
+		pageSize = size != null && size.getValueType() == JsonValue.ValueType.NUMBER
+				? OptionalInt.of((int) getLongValueOrZero(body, "page_size"))
+				: OptionalInt.empty();
+		pageToken = body.get("page_token") instanceof JsonString
+				? Optional.of(body.getString("page_token"))
+				: Optional.empty();
+
+		deviceId = body.get("device_id") instanceof JsonString
+				? Optional.of(body.getString("device_id"))
+				: Optional.empty();
+
+		// the next pages of a paginated sync have nothing to send
+		var changes = body.get("changes") instanceof JsonObject
+				? body.getJsonObject("changes")
+				: JsonValue.EMPTY_JSON_OBJECT;
+		items = elements(changes, "items");
+		tags = elements(changes, "tags");
+		deletions = elements(changes, "deletions");
+	}
+
+	private static List<JsonObject> elements(JsonObject changes, String key) {
+		return changes.get(key) instanceof JsonArray
+				? changes.getJsonArray(key).getValuesAs(JsonObject.class)
+				: List.of();
+	}
+
+	public static SyncRequest from(JsonObject body) {
+		return new SyncRequest(body);
+	}
+
+	public List<String> getItemIds() {
+		return ids(items);
+	}
+
+	public List<String> getTagIds() {
+		return ids(tags);
+	}
+
+	private List<String> ids(List<JsonObject> elements) {
+		return elements.stream()
+				.map(element -> element.getString("id"))
+				.collect(toList());
+	}
+
+	/**
+	 * Removes the items that are exactly as the client sent them
+	 */
+	public JsonArray withoutSentItems(JsonArray found) {
+		return withoutSent(found, items, "id");
+	}
+
+	public JsonArray withoutSentTags(JsonArray found) {
+		return withoutSent(found, tags, "id");
+	}
+
+	public JsonArray withoutSentDeletions(JsonArray found) {
+		return withoutSent(found, deletions, "sync_id");
+	}
+
+	private JsonArray withoutSent(JsonArray found, List<JsonObject> sent, String key) {
+		if (sent.isEmpty()) {
+			return found;
+		}
+
+		var sentByKey = byKey(sent, key);
+		var builder = Json.createArrayBuilder();
+		found.stream()
+				.map(JsonValue::asJsonObject)
+				.filter(element -> !element.equals(sentByKey.get(element.getString(key, ""))))
+				.forEach(builder::add);
+		return builder.build();
+	}
+
+	private Map<String, JsonObject> byKey(List<JsonObject> jsonObjects, String key) {
+		return jsonObjects.stream()
+				.filter(jsonObject -> jsonObject.get(key) instanceof JsonString)
+				.collect(toMap(jsonObject -> jsonObject.getString(key), identity(), (one, another) -> another));
+	}
+}
@@ -0,0 +1,240 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.repository.SyncRepository;
+import com.jbequinn.jsonsyncserver.repository.RepositoryExecutor;
+import lombok.extern.flogger.Flogger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+
+/**
+ * Gathers the writes of the syncs arriving within a short window, and sends them to Mongo as a single sync. Writes of
+ * the same element are merged first, the later one winning on equal timestamps, as if they had been written one after
+ * another. A write of an element that an earlier sync of the batch deleted is sent after that deletion, in a sync of
+ * its own. When the coalescing is disabled, every write is sent right away.
+ */
+@ApplicationScoped
+@Flogger
+public class SyncWriteCoalescer {
+	private final SyncRepository repository;
+	private final JsonObjectMerger merger;
+	private final RepositoryExecutor executor;
+	private final JsonSyncServerProperties properties;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		var thread = new Thread(runnable, "sync-write-coalescer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Object lock = new Object();
+	private List<PendingWrite> pendingWrites = new ArrayList<>();
+	private ScheduledFuture<?> scheduledFlush;
+
+	public SyncWriteCoalescer(SyncRepository repository, JsonObjectMerger merger, RepositoryExecutor executor,
+			JsonSyncServerProperties properties) {
+		this.repository = repository;
+		this.merger = merger;
+		this.executor = executor;
+		this.properties = properties;
+	}
+
+	/**
+	 * Returns a future completed once the changes are written, or failed if the flush that included them failed
+	 */
+	public CompletableFuture<Void> write(ChangesDto changes) {
+		var write = new PendingWrite(changes);
+		if (!properties.getSyncWriteCoalescing()) {
+			flush(List.of(write));
+			return write.future;
+		}
+
+		List<PendingWrite> fullBatch = null;
+		synchronized (lock) {
+			pendingWrites.add(write);
+			if (pendingWrites.size() >= properties.getSyncWriteCoalescingMaxBatch()) {
+				fullBatch = takePendingWrites();
+			} else if (scheduledFlush == null) {
+				scheduledFlush = scheduler.schedule(this::scheduleFlush,
+						properties.getSyncWriteCoalescingWindowMillis(), TimeUnit.MILLISECONDS);
+			}
+		}
+
+		// the caller of a full batch waits for it anyway, so it writes it itself
+		if (fullBatch != null) {
+			flush(fullBatch);
+		}
+		return write.future;
+	}
+
+	private List<PendingWrite> takePendingWrites() {
+		var batch = pendingWrites;
+		pendingWrites = new ArrayList<>();
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		return batch;
+	}
+
+	/**
+	 * Flushes in the repository executor, or right here if it refuses the task, so that the pending writes are never
+	 * left waiting for the next batch
+	 */
+	private void scheduleFlush() {
+		try {
+			executor.execute(this::flushPendingWrites);
+		} catch (RejectedExecutionException e) {
+			log.atWarning().log("The repository executor refused the flush of the pending writes, flushing them here");
+			flushPendingWrites();
+		}
+	}
+
+	private void flushPendingWrites() {
+		List<PendingWrite> batch;
+		synchronized (lock) {
+			batch = takePendingWrites();
+		}
+		if (!batch.isEmpty()) {
+			flush(batch);
+		}
+	}
+
+	private void flush(List<PendingWrite> batch) {
+		inOrderGroups(batch).forEach(this::flushGroup);
+	}
+
+	/**
+	 * Splits the batch before every write that touches an element deleted by an earlier write of the same group.
+	 * Within a group, a deletion beats any other write of the element
+	 */
+	private List<List<PendingWrite>> inOrderGroups(List<PendingWrite> batch) {
+		var groups = new ArrayList<List<PendingWrite>>();
+		var group = new ArrayList<PendingWrite>();
+		var deletedItemIds = new HashSet<String>();
+		var deletedTagIds = new HashSet<String>();
+		for (var write : batch) {
+			var changes = write.changes;
+			if (touchesAny(deletedItemIds, changes.getNewItemsToSave(), changes.getItemsToUpdate(), changes.getItemsToMerge())
+					|| touchesAny(deletedTagIds, changes.getNewTagsToSave(), changes.getTagsToUpdate(), changes.getTagsToMerge())) {
+				groups.add(group);
+				group = new ArrayList<>();
+				deletedItemIds.clear();
+				deletedTagIds.clear();
+			}
+			group.add(write);
+			deletedItemIds.addAll(changes.getItemsIdsToDelete());
+			deletedTagIds.addAll(changes.getTagIdsToDelete());
+		}
+		groups.add(group);
+		return groups;
+	}
+
+	private boolean touchesAny(Set<String> ids, List<SyncEntity> newObjects, List<SyncEntity> updatedObjects,
+			List<JsonObject> objectsToMerge) {
+		return !ids.isEmpty()
+				&& (newObjects.stream().anyMatch(object -> ids.contains(object.getId()))
+				|| updatedObjects.stream().anyMatch(object -> ids.contains(object.getId()))
+				|| objectsToMerge.stream().anyMatch(object -> ids.contains(object.getString("id"))));
+	}
+
+	private void flushGroup(List<PendingWrite> batch) {
+		try {
+			var changes = batch.size() == 1 ? batch.get(0).changes : coalesce(batch);
+			repository.sync(changes);
+			log.atFine().log("Flushed the writes of %d syncs", batch.size());
+			batch.forEach(write -> write.future.complete(null));
+		} catch (RuntimeException e) {
+			log.atWarning().withCause(e).log("Error when flushing the writes of %d syncs", batch.size());
+			batch.forEach(write -> write.future.completeExceptionally(e));
+		}
+	}
+
+	private ChangesDto coalesce(List<PendingWrite> batch) {
+		var newItems = new LinkedHashMap<String, SyncEntity>();
+		var updatedItems = new LinkedHashMap<String, SyncEntity>();
+		var newTags = new LinkedHashMap<String, SyncEntity>();
+		var updatedTags = new LinkedHashMap<String, SyncEntity>();
+		var itemIdsToDelete = new LinkedHashSet<String>();
+		var tagIdsToDelete = new LinkedHashSet<String>();
+
+		var coalesced = new ChangesDto();
+		for (var write : batch) {
+			var changes = write.changes;
+			addAll(newItems, changes.getNewItemsToSave(), merger::mergeItem);
+			addAll(updatedItems, changes.getItemsToUpdate(), merger::mergeItem);
+			addAll(newTags, changes.getNewTagsToSave(), merger::mergeTag);
+			addAll(updatedTags, changes.getTagsToUpdate(), merger::mergeTag);
+			changes.getStoredItems().forEach(coalesced.getStoredItems()::putIfAbsent);
+			changes.getStoredTags().forEach(coalesced.getStoredTags()::putIfAbsent);
+
+			coalesced.getItemsToMerge().addAll(changes.getItemsToMerge());
+			coalesced.getTagsToMerge().addAll(changes.getTagsToMerge());
+			coalesced.getNewDeletions().addAll(changes.getNewDeletions());
+			itemIdsToDelete.addAll(changes.getItemsIdsToDelete());
+			tagIdsToDelete.addAll(changes.getTagIdsToDelete());
+		}
+
+		// an element that a sync found stored can't be inserted by another one
+		moveUpdated(newItems, updatedItems, merger::mergeItem);
+		moveUpdated(newTags, updatedTags, merger::mergeTag);
+
+		coalesced.getNewItemsToSave().addAll(newItems.values());
+		coalesced.getItemsToUpdate().addAll(updatedItems.values());
+		coalesced.getNewTagsToSave().addAll(newTags.values());
+		coalesced.getTagsToUpdate().addAll(updatedTags.values());
+		coalesced.getItemsIdsToDelete().addAll(itemIdsToDelete);
+		coalesced.getTagIdsToDelete().addAll(tagIdsToDelete);
+		return coalesced;
+	}
+
+	private void addAll(Map<String, SyncEntity> objectsById, List<SyncEntity> objects, BinaryOperator<SyncEntity> merge) {
+		// the later write is the second argument of the merge, so that it wins on equal timestamps
+		objects.forEach(object -> objectsById.merge(object.getId(), object, merge));
+	}
+
+	private void moveUpdated(Map<String, SyncEntity> newObjects, Map<String, SyncEntity> updatedObjects,
+			BinaryOperator<SyncEntity> merge) {
+		var iterator = newObjects.entrySet().iterator();
+		while (iterator.hasNext()) {
+			var newObject = iterator.next();
+			if (updatedObjects.containsKey(newObject.getKey())) {
+				updatedObjects.merge(newObject.getKey(), newObject.getValue(), merge);
+				iterator.remove();
+			}
+		}
+	}
+
+	@PreDestroy
+	void shutdown() {
+		flushPendingWrites();
+		scheduler.shutdown();
+	}
+
+	private static final class PendingWrite {
+		private final ChangesDto changes;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		private PendingWrite(ChangesDto changes) {
+			this.changes = changes;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.jbequinn.jsonsyncserver.service;
+
+/**
+ * Which deletions the {@link TombstoneCompactor} removes, as set in {@code application.tombstone-compaction}
+ */
+public enum TombstoneCompaction {
+	// every deletion is kept
+	OFF,
+	// those older than the retention period
+	RETENTION,
+	// also those that every device seen within the retention period has received
+	DEVICE_CURSORS;
+
+	public static TombstoneCompaction of(String tombstoneCompaction) {
+		switch (tombstoneCompaction) {
+			case "off":
+				return OFF;
+			case "retention":
+				return RETENTION;
+			case "device-cursors":
+				return DEVICE_CURSORS;
+			default:
+				throw new IllegalArgumentException("Unknown tombstone compaction: " + tombstoneCompaction);
+		}
+	}
+}
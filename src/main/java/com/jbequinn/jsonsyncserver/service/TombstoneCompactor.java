@@ -0,0 +1,88 @@
+package com.jbequinn.jsonsyncserver.service;
+
+import com.jbequinn.jsonsyncserver.JsonSyncServerProperties;
+import com.jbequinn.jsonsyncserver.repository.SyncRepository;
+import io.quarkus.runtime.StartupEvent;
+import lombok.extern.flogger.Flogger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes periodically the deletions that no client needs anymore, so that /pull and the syncs by timestamp don't
+ * send every deletion ever made.
+ * <p>
+ * In the "retention" mode, the deletions older than the retention period are removed. In the "device-cursors" mode,
+ * also those that every device seen within the retention period has already received, as told by the
+ * {@code last_sync_ts} it sent in its last sync. The clients that don't send a {@code device_id} are only covered by
+ * the retention period, and a device that comes back after it may get back elements deleted elsewhere.
+ */
+@ApplicationScoped
+@Flogger
+public class TombstoneCompactor {
+	private final SyncRepository repository;
+	private final JsonSyncServerProperties properties;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		var thread = new Thread(runnable, "tombstone-compactor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public TombstoneCompactor(SyncRepository repository, JsonSyncServerProperties properties) {
+		this.repository = repository;
+		this.properties = properties;
+	}
+
+	void onStart(@Observes StartupEvent event) {
+		// parsed here so that a typo stops the server rather than failing every compaction
+		if (TombstoneCompaction.of(properties.getTombstoneCompaction()) == TombstoneCompaction.OFF) {
+			log.atFine().log("The compaction of the deletions is off");
+			return;
+		}
+
+		var interval = properties.getTombstoneCompactionIntervalMinutes();
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				compact();
+			} catch (RuntimeException e) {
+				log.atWarning().withCause(e).log("Error when removing the old deletions");
+			}
+		}, interval, interval, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Removes the deletions that no client needs anymore, and returns how many were removed
+	 */
+	public long compact() {
+		var retentionStart = Instant.now().getEpochSecond() - TimeUnit.DAYS.toSeconds(properties.getTombstoneRetentionDays());
+
+		long upTo;
+		switch (TombstoneCompaction.of(properties.getTombstoneCompaction())) {
+			case RETENTION:
+				upTo = retentionStart;
+				break;
+			case DEVICE_CURSORS:
+				// the devices not seen within the retention period are not waited for
+				upTo = Math.max(retentionStart, repository.findOldestDeviceCursor(retentionStart).orElse(retentionStart));
+				break;
+			default:
+				log.atFine().log("The compaction of the deletions is off, nothing removed");
+				return 0;
+		}
+
+		var removed = repository.deleteDeletionsUpTo(upTo);
+		log.atInfo().log("Removed %d deletions up to %s", removed, Instant.ofEpochSecond(upTo));
+		return removed;
+	}
+
+	@PreDestroy
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+}
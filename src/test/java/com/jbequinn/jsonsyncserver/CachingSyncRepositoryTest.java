@@ -0,0 +1,174 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.repository.CachingSyncRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CachingSyncRepositoryTest {
+	private static final String ID = "B4E6A8C0D2F44B6D8F0A2C4E6B8D0F2A";
+	private static final String OTHER_ID = "C1E3A5B7D9F14C3E5A7B9D1F3A5C7E9B";
+	private static final String THIRD_ID = "D2F4B6C8E0A24D4F6B8C0E2A4B6D8F0C";
+
+	private JsonSyncServerProperties properties;
+	private FakeSyncRepository repository;
+
+	@BeforeEach
+	void setUp() {
+		properties = new JsonSyncServerProperties();
+		repository = new FakeSyncRepository();
+	}
+
+	@Test
+	void secondLookupIsServedFromTheCache() {
+		// GIVEN a stored item
+		var cachingRepository = cachingRepository();
+		repository.saveNewItems(List.of(item(ID, "title")));
+
+		// WHEN it is looked up twice
+		cachingRepository.findItemsById(List.of(ID));
+		var found = cachingRepository.findItemsById(List.of(ID));
+
+		// THEN the database is only read once
+		assertThat(repository.itemLookups()).isEqualTo(1);
+		assertThat(found).extracting(SyncEntity::getId).containsExactly(ID);
+	}
+
+	@Test
+	void leastRecentlyUsedItemIsEvicted() {
+		// GIVEN a cache of two items, holding two of them
+		properties.setEntityCacheMaxSize(2);
+		var cachingRepository = cachingRepository();
+		repository.saveNewItems(List.of(item(ID, "title"), item(OTHER_ID, "title"), item(THIRD_ID, "title")));
+		cachingRepository.findItemsById(List.of(ID, OTHER_ID));
+
+		// WHEN the first one is used again, and a third one is loaded
+		cachingRepository.findItemsById(List.of(ID));
+		cachingRepository.findItemsById(List.of(THIRD_ID));
+		var lookups = repository.itemLookups();
+
+		// THEN the first one is still cached
+		cachingRepository.findItemsById(List.of(ID));
+		assertThat(repository.itemLookups()).isEqualTo(lookups);
+		// AND the second one, the least recently used, has to be read again
+		cachingRepository.findItemsById(List.of(OTHER_ID));
+		assertThat(repository.itemLookups()).isEqualTo(lookups + 1);
+	}
+
+	@Test
+	void expiredItemIsReadAgain() throws Exception {
+		// GIVEN a cached item, with a time to live of a second
+		properties.setEntityCacheTimeToLiveSeconds(1L);
+		var cachingRepository = cachingRepository();
+		repository.saveNewItems(List.of(item(ID, "title")));
+		cachingRepository.findItemsById(List.of(ID));
+
+		// WHEN it is looked up again after its time to live, though it was read in between
+		cachingRepository.findItemsById(List.of(ID));
+		TimeUnit.MILLISECONDS.sleep(1100);
+		cachingRepository.findItemsById(List.of(ID));
+
+		// THEN it is read again from the database
+		assertThat(repository.itemLookups()).isEqualTo(2);
+	}
+
+	@Test
+	void readOverwrittenDuringTheLookupIsNotCached() {
+		// GIVEN a stored item
+		var cachingRepository = cachingRepository();
+		repository.saveNewItems(List.of(item(ID, "old title")));
+
+		// WHEN a sync updates it while its old version is being read
+		repository.afterItemLookup(once(() -> cachingRepository.sync(updated(ID, "new title"))));
+		var read = cachingRepository.findItemsById(List.of(ID));
+
+		// THEN the lookup returns what it read
+		assertThat(title(read)).isEqualTo("old title");
+		// AND the next lookup gets the update, not the old version
+		assertThat(title(cachingRepository.findItemsById(List.of(ID)))).isEqualTo("new title");
+	}
+
+	@Test
+	void writeOvertakenByAnotherWriteIsNotCached() {
+		// GIVEN a stored item
+		var cachingRepository = cachingRepository();
+		repository.saveNewItems(List.of(item(ID, "title")));
+
+		// WHEN a sync updates it, and another sync updates it again before the first one caches its write
+		repository.afterSync(once(changes -> cachingRepository.sync(updated(ID, "second title"))));
+		cachingRepository.sync(updated(ID, "first title"));
+
+		// THEN the item is read again from the database
+		var lookups = repository.itemLookups();
+		var found = cachingRepository.findItemsById(List.of(ID));
+		assertThat(repository.itemLookups()).isEqualTo(lookups + 1);
+		// AND it is the last version written
+		assertThat(title(found)).isEqualTo("second title");
+	}
+
+	@Test
+	void writtenItemIsCached() {
+		// GIVEN a stored item
+		var cachingRepository = cachingRepository();
+		repository.saveNewItems(List.of(item(ID, "title")));
+
+		// WHEN a sync updates it
+		cachingRepository.sync(updated(ID, "new title"));
+
+		// THEN the update is found without reading the database
+		assertThat(title(cachingRepository.findItemsById(List.of(ID)))).isEqualTo("new title");
+		assertThat(repository.itemLookups()).isZero();
+	}
+
+	private CachingSyncRepository cachingRepository() {
+		return new CachingSyncRepository(repository, properties, TestMetrics.registry());
+	}
+
+	private static Runnable once(Runnable runnable) {
+		var done = new AtomicBoolean();
+		return () -> {
+			if (done.compareAndSet(false, true)) {
+				runnable.run();
+			}
+		};
+	}
+
+	private static <T> Consumer<T> once(Consumer<T> consumer) {
+		var done = new AtomicBoolean();
+		return value -> {
+			if (done.compareAndSet(false, true)) {
+				consumer.accept(value);
+			}
+		};
+	}
+
+	private static String title(List<SyncEntity> items) {
+		assertThat(items).hasSize(1);
+		return items.get(0).toJsonObject().getString("title");
+	}
+
+	private static ChangesDto updated(String id, String title) {
+		var changes = new ChangesDto();
+		changes.getItemsToUpdate().add(SyncEntity.of(EntitySchema.ITEM, item(id, title)));
+		return changes;
+	}
+
+	private static JsonObject item(String id, String title) {
+		return Json.createObjectBuilder()
+				.add("id", id)
+				.add("changed_ts", 1L)
+				.add("title", title)
+				.build();
+	}
+}
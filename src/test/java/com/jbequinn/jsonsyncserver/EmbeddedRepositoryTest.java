@@ -0,0 +1,172 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.DataChangedEvent;
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.repository.embedded.EmbeddedRepository;
+import com.jbequinn.jsonsyncserver.service.JsonObjectMerger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.OptionalLong;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EmbeddedRepositoryTest {
+	private static final String ID = "3C9A1E5B7D2F4A6C8E0B1D3F5A7C9E1B";
+	private static final String OTHER_ID = "8E2D4F6A1C3B5D7F9A0C2E4B6D8F1A3C";
+	// small enough for a few items to fill a segment
+	private static final int SEGMENT_SIZE = 4096;
+
+	@TempDir
+	Path directory;
+
+	private JsonSyncServerProperties properties;
+	private RecordingEvent<DataChangedEvent> dataChanged;
+	private EmbeddedRepository repository;
+
+	@BeforeEach
+	void setUp() {
+		properties = new JsonSyncServerProperties();
+		properties.setStorage("embedded");
+		properties.setEmbeddedStorageDirectory(directory.toString());
+		properties.setEmbeddedSegmentSize(SEGMENT_SIZE);
+		dataChanged = new RecordingEvent<>();
+		repository = new EmbeddedRepository(properties, new JsonObjectMerger(), dataChanged);
+	}
+
+	@AfterEach
+	void tearDown() {
+		repository.close();
+	}
+
+	@Test
+	void syncWritesTheChangesAndTheDeletionsWin() {
+		// GIVEN a stored item
+		repository.saveNewItems(List.of(item(ID).add("title", "stored").build()));
+
+		// WHEN a sync deletes it while updating it, and creates another one with its deletion record
+		var changes = new ChangesDto();
+		changes.getItemsToUpdate().add(SyncEntity.of(EntitySchema.ITEM, item(ID).add("title", "updated").build()));
+		changes.getItemsIdsToDelete().add(ID);
+		changes.getNewItemsToSave().add(SyncEntity.of(EntitySchema.ITEM, item(OTHER_ID).add("title", "new").build()));
+		changes.getNewDeletions().add(Json.createObjectBuilder().add("sync_id", ID).add("ts", 2L).build());
+		repository.sync(changes);
+
+		// THEN the deleted item is gone
+		assertThat(repository.findItemsById(List.of(ID))).isEmpty();
+		// AND the new item and the deletion record are stored
+		assertThat(repository.findItemsById(List.of(OTHER_ID))).extracting(SyncEntity::getId).containsExactly(OTHER_ID);
+		assertThat(repository.findDeletionsBySyncId(List.of(ID))).hasSize(1);
+		// AND the clients are told about both writes
+		assertThat(dataChanged.fired()).hasSize(2);
+	}
+
+	@Test
+	void mergeWritesOnlyTheItemsItChanges() {
+		// GIVEN a stored item with a recent title
+		repository.saveNewItems(List.of(item(ID).add("title", "newest").add("title_ts", 2L).build()));
+		var sequence = repository.currentChangeSequence();
+
+		// WHEN an older title is merged in the "database" merge mode
+		repository.sync(merge(item(ID).add("title", "older").add("title_ts", 1L).build()));
+
+		// THEN the stored item is kept
+		assertThat(title(ID)).isEqualTo("newest");
+		// AND nothing was written, so the clients won't get the item again
+		assertThat(repository.currentChangeSequence()).isEqualTo(sequence);
+
+		// WHEN a newer note is merged
+		repository.sync(merge(item(ID).add("title", "older").add("title_ts", 1L)
+				.add("note", "note").add("note_ts", 3L).build()));
+
+		// THEN the item has both the newest title and the note
+		var merged = repository.findItemsById(List.of(ID)).get(0).toJsonObject();
+		assertThat(merged.getString("title")).isEqualTo("newest");
+		assertThat(merged.getString("note")).isEqualTo("note");
+		// AND it was written once
+		assertThat(repository.currentChangeSequence()).isEqualTo(sequence + 1);
+	}
+
+	@Test
+	void committedStagingLoadReplacesTheDataAndKeepsTheDevices() {
+		// GIVEN a stored item, and a device that synced
+		repository.saveNewItems(List.of(item(ID).add("title", "stored").build()));
+		repository.saveDeviceCursor("device", 5L, 10L);
+
+		// WHEN a staging load of another item is committed
+		try (var load = repository.startStagingLoad()) {
+			load.saveNewItems(List.of(item(OTHER_ID).add("title", "loaded").build()));
+			load.commit();
+		}
+
+		// THEN only the loaded item is left
+		assertThat(ids(repository.findItemsNewerThan(0))).containsExactly(OTHER_ID);
+		// AND the device is still known
+		assertThat(repository.findOldestDeviceCursor(0)).hasValue(5L);
+	}
+
+	@Test
+	void unfinishedStagingLoadLeavesTheDataAsItWas() {
+		// GIVEN a stored item
+		repository.saveNewItems(List.of(item(ID).add("title", "stored").build()));
+
+		// WHEN a staging load is closed without being committed
+		try (var load = repository.startStagingLoad()) {
+			load.saveNewItems(List.of(item(OTHER_ID).add("title", "loaded").build()));
+		}
+
+		// THEN the stored item is still the only one
+		assertThat(ids(repository.findItemsNewerThan(0))).containsExactly(ID);
+	}
+
+	@Test
+	void pagesStartWithTheItemsWithoutChangedTimestamp() {
+		// GIVEN an item without a changed timestamp, and one with it
+		repository.saveNewItems(List.of(
+				Json.createObjectBuilder().add("id", OTHER_ID).add("changed_ts", 5L).build(),
+				Json.createObjectBuilder().add("id", ID).add("created_on", 1L).build()));
+
+		// WHEN they are read one page of one item at a time
+		var firstPage = repository.findItemsPageNewerThan(0, OptionalLong.empty(), null, 1);
+		var secondPage = repository.findItemsPageNewerThan(0, OptionalLong.empty(), ID, 1);
+		var thirdPage = repository.findItemsPageNewerThan(0, OptionalLong.of(5L), OTHER_ID, 1);
+
+		// THEN the item without a changed timestamp comes first
+		assertThat(firstPage).extracting(item -> item.getString("id")).containsExactly(ID);
+		// AND the other one is on the next page
+		assertThat(secondPage).extracting(item -> item.getString("id")).containsExactly(OTHER_ID);
+		// AND nothing is left after it
+		assertThat(thirdPage).isEmpty();
+	}
+
+	private String title(String id) {
+		return repository.findItemsById(List.of(id)).get(0).toJsonObject().getString("title");
+	}
+
+	private static ChangesDto merge(JsonObject item) {
+		var changes = new ChangesDto();
+		changes.getItemsToMerge().add(item);
+		return changes;
+	}
+
+	private static List<String> ids(JsonArray items) {
+		return items.getValuesAs(JsonObject.class).stream().map(item -> item.getString("id")).collect(toList());
+	}
+
+	private static JsonObjectBuilder item(String id) {
+		return Json.createObjectBuilder()
+				.add("id", id)
+				.add("changed_ts", 1L);
+	}
+}
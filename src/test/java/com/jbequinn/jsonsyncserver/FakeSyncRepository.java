@@ -0,0 +1,287 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.model.ChangedIds;
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.repository.SyncRepository;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.jbequinn.jsonsyncserver.service.JsonAccessor.getLongValueOrZero;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Repository in memory for the tests of the beans built without Quarkus. It records the syncs it receives, counts the
+ * lookups by id, and can run hooks around the syncs and the item lookups, e.g. to make them fail, wait or race
+ */
+public class FakeSyncRepository implements SyncRepository {
+	private final Map<String, JsonObject> items = new ConcurrentHashMap<>();
+	private final Map<String, JsonObject> tags = new ConcurrentHashMap<>();
+	private final Map<String, JsonObject> deletions = new ConcurrentHashMap<>();
+	private final Map<String, JsonObject> deviceCursors = new ConcurrentHashMap<>();
+
+	private final List<ChangesDto> syncs = new CopyOnWriteArrayList<>();
+	private final AtomicInteger itemLookups = new AtomicInteger();
+	private final AtomicInteger tagLookups = new AtomicInteger();
+	private volatile Consumer<ChangesDto> beforeSync = changes -> {
+	};
+	private volatile Consumer<ChangesDto> afterSync = changes -> {
+	};
+	private volatile Runnable afterItemLookup = () -> {
+	};
+
+	/**
+	 * The changes of every sync received, in order
+	 */
+	public List<ChangesDto> syncs() {
+		return syncs;
+	}
+
+	public int itemLookups() {
+		return itemLookups.get();
+	}
+
+	public int tagLookups() {
+		return tagLookups.get();
+	}
+
+	public Optional<JsonObject> item(String id) {
+		return Optional.ofNullable(items.get(id));
+	}
+
+	public Optional<JsonObject> tag(String id) {
+		return Optional.ofNullable(tags.get(id));
+	}
+
+	public Collection<JsonObject> deletions() {
+		return deletions.values();
+	}
+
+	public void beforeSync(Consumer<ChangesDto> hook) {
+		beforeSync = hook;
+	}
+
+	/**
+	 * Run once the changes are stored, before the sync returns
+	 */
+	public void afterSync(Consumer<ChangesDto> hook) {
+		afterSync = hook;
+	}
+
+	/**
+	 * Run once the items are read, before they are returned
+	 */
+	public void afterItemLookup(Runnable hook) {
+		afterItemLookup = hook;
+	}
+
+	@Override
+	public void forEachItem(Consumer<JsonObject> consumer) {
+		items.values().forEach(consumer);
+	}
+
+	@Override
+	public void forEachTag(Consumer<JsonObject> consumer) {
+		tags.values().forEach(consumer);
+	}
+
+	@Override
+	public void forEachDeletion(Consumer<JsonObject> consumer) {
+		deletions.values().forEach(consumer);
+	}
+
+	@Override
+	public List<SyncEntity> findItemsById(Collection<String> ids) {
+		itemLookups.incrementAndGet();
+		var found = ids.stream()
+				.map(items::get)
+				.filter(Objects::nonNull)
+				.map(item -> SyncEntity.of(EntitySchema.ITEM, item))
+				.collect(toList());
+		afterItemLookup.run();
+		return found;
+	}
+
+	@Override
+	public List<SyncEntity> findTagsById(Collection<String> ids) {
+		tagLookups.incrementAndGet();
+		return ids.stream()
+				.map(tags::get)
+				.filter(Objects::nonNull)
+				.map(tag -> SyncEntity.of(EntitySchema.TAG, tag))
+				.collect(toList());
+	}
+
+	@Override
+	public List<JsonObject> findDeletionsBySyncId(Collection<String> syncIds) {
+		return syncIds.stream()
+				.map(deletions::get)
+				.filter(Objects::nonNull)
+				.collect(toList());
+	}
+
+	@Override
+	public long currentChangeSequence() {
+		return syncs.size();
+	}
+
+	@Override
+	public Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo) {
+		return Optional.empty();
+	}
+
+	@Override
+	public Optional<ChangedIds> findChangedIdsSince(long cursor, long upTo, int limit) {
+		return Optional.empty();
+	}
+
+	@Override
+	public JsonArray findItemsNewerThan(long timestamp) {
+		return newerThan(items.values(), timestamp);
+	}
+
+	@Override
+	public JsonArray findTagsNewerThan(long timestamp) {
+		return newerThan(tags.values(), timestamp);
+	}
+
+	@Override
+	public JsonArray findDeletionsNewerThan(long timestamp) {
+		var builder = Json.createArrayBuilder();
+		deletions.values().stream()
+				.filter(deletion -> getLongValueOrZero(deletion, "ts") > timestamp)
+				.forEach(builder::add);
+		return builder.build();
+	}
+
+	private JsonArray newerThan(Collection<JsonObject> elements, long timestamp) {
+		var builder = Json.createArrayBuilder();
+		elements.stream()
+				.filter(element -> getLongValueOrZero(element, "changed_ts") > timestamp
+						|| getLongValueOrZero(element, "created_on") > timestamp)
+				.forEach(builder::add);
+		return builder.build();
+	}
+
+	@Override
+	public List<JsonObject> findItemsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<JsonObject> findTagsPageNewerThan(long timestamp, OptionalLong afterChangedTs, String afterId, int limit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public List<JsonObject> findDeletionsPageNewerThan(long timestamp, OptionalLong afterTs, String afterSyncId, int limit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void saveNewItems(List<JsonObject> items) {
+		items.forEach(item -> this.items.put(item.getString("id"), item));
+	}
+
+	@Override
+	public void saveNewTags(List<JsonObject> tags) {
+		tags.forEach(tag -> this.tags.put(tag.getString("id"), tag));
+	}
+
+	@Override
+	public void saveNewDeletions(List<JsonObject> deletions) {
+		deletions.forEach(deletion -> this.deletions.put(deletion.getString("sync_id"), deletion));
+	}
+
+	/**
+	 * Applies the changes like the real repositories do: the deletions of elements win over their other writes.
+	 * The elements to merge in the database are simply saved
+	 */
+	@Override
+	public void sync(ChangesDto changes) {
+		beforeSync.accept(changes);
+		syncs.add(changes);
+
+		changes.getNewItemsToSave().forEach(item -> items.put(item.getId(), item.toJsonObject()));
+		changes.getItemsToUpdate().forEach(item -> items.put(item.getId(), item.toJsonObject()));
+		saveNewItems(changes.getItemsToMerge());
+		changes.getItemsIdsToDelete().forEach(items::remove);
+
+		changes.getNewTagsToSave().forEach(tag -> tags.put(tag.getId(), tag.toJsonObject()));
+		changes.getTagsToUpdate().forEach(tag -> tags.put(tag.getId(), tag.toJsonObject()));
+		saveNewTags(changes.getTagsToMerge());
+		changes.getTagIdsToDelete().forEach(tags::remove);
+
+		saveNewDeletions(changes.getNewDeletions());
+		afterSync.accept(changes);
+	}
+
+	@Override
+	public long deleteDeletionsUpTo(long timestamp) {
+		var toRemove = deletions.values().stream()
+				.filter(deletion -> getLongValueOrZero(deletion, "ts") <= timestamp)
+				.map(deletion -> deletion.getString("sync_id"))
+				.collect(toList());
+		toRemove.forEach(deletions::remove);
+		return toRemove.size();
+	}
+
+	@Override
+	public void saveDeviceCursor(String deviceId, long lastSyncTs, long seenAt) {
+		deviceCursors.put(deviceId, Json.createObjectBuilder()
+				.add("device_id", deviceId)
+				.add("last_sync_ts", lastSyncTs)
+				.add("last_seen", seenAt)
+				.build());
+	}
+
+	@Override
+	public OptionalLong findOldestDeviceCursor(long seenSince) {
+		return deviceCursors.values().stream()
+				.filter(cursor -> getLongValueOrZero(cursor, "last_seen") >= seenSince)
+				.mapToLong(cursor -> getLongValueOrZero(cursor, "last_sync_ts"))
+				.min();
+	}
+
+	@Override
+	public void deleteAllItems() {
+		items.clear();
+	}
+
+	@Override
+	public void deleteAllTags() {
+		tags.clear();
+	}
+
+	@Override
+	public void deleteAllDeletions() {
+		deletions.clear();
+	}
+
+	@Override
+	public void resetChangeLog() {
+	}
+
+	@Override
+	public long deleteChangesRecordedBefore(long timestamp) {
+		return 0;
+	}
+
+	@Override
+	public StagingLoad startStagingLoad() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,76 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.repository.IndexRegistry;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.IndexModel;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexRegistryTest {
+
+	@Test
+	void everyCollectionWithHotQueriesHasIndexes() {
+		// GIVEN the queries run on every sync
+		var hotQueries = IndexRegistry.hotQueries();
+
+		// WHEN the indexes of their collections are looked up
+		// THEN every one of them has some
+		assertThat(hotQueries).isNotEmpty();
+		hotQueries.keySet().forEach(collectionName ->
+				assertThat(IndexRegistry.indexes().get(collectionName)).as(collectionName).isNotEmpty());
+	}
+
+	@Test
+	void changeLogSequenceIsUnique() {
+		// GIVEN the indexes of the change log
+		var indexes = IndexRegistry.indexes().get("changelog");
+
+		// WHEN the one on the sequence is looked up
+		var sequenceIndex = indexes.stream()
+				.filter(index -> keys(index).equals(new BsonDocument("seq", new BsonInt32(1))))
+				.findFirst();
+
+		// THEN it is unique, so that no sequence number is ever handed out twice
+		assertThat(sequenceIndex).hasValueSatisfying(index -> assertThat(index.getOptions().isUnique()).isTrue());
+	}
+
+	@Test
+	void pageSortsHaveIndexesThatAreNotPartial() {
+		// GIVEN the sorts of the pages of a sync
+		var sorts = Map.of(
+				"items", new BsonDocument("changed_ts", new BsonInt32(1)).append("id", new BsonInt32(1)),
+				"tags", new BsonDocument("changed_ts", new BsonInt32(1)).append("id", new BsonInt32(1)),
+				"deletions", new BsonDocument("ts", new BsonInt32(1)).append("sync_id", new BsonInt32(1)));
+
+		sorts.forEach((collectionName, sort) -> {
+			// WHEN the index with their keys is looked up
+			var sortIndex = IndexRegistry.indexes().get(collectionName).stream()
+					.filter(index -> keys(index).equals(sort))
+					.findFirst();
+
+			// THEN it exists, and it is not partial, as the first pages are of the elements without the timestamp
+			assertThat(sortIndex).as(collectionName).hasValueSatisfying(index ->
+					assertThat(index.getOptions().getPartialFilterExpression()).as(collectionName).isNull());
+		});
+	}
+
+	@Test
+	void indexesUseTheDefaultBuild() {
+		// GIVEN all the declared indexes
+		var indexes = IndexRegistry.indexes().values();
+
+		// WHEN their options are looked at
+		// THEN none asks for the background build, deprecated since Mongo 4.2
+		indexes.forEach(collectionIndexes -> collectionIndexes.forEach(index ->
+				assertThat(index.getOptions().isBackground()).as(keys(index).toJson()).isFalse()));
+	}
+
+	private BsonDocument keys(IndexModel index) {
+		return index.getKeys().toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+	}
+}
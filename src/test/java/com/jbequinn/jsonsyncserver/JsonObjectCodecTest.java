@@ -0,0 +1,112 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.repository.JsonObjectCodec;
+import com.jbequinn.jsonsyncserver.repository.SyncEntityCodec;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import javax.json.Json;
+import javax.json.JsonValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@TestMethodOrder(MethodOrderer.Random.class)
+public class JsonObjectCodecTest {
+	private JsonObjectCodec codec;
+
+	@BeforeEach
+	void setUp() {
+		codec = new JsonObjectCodec();
+	}
+
+	@Test
+	void roundTrip() {
+		// GIVEN an item with every kind of JSON value
+		var item = Json.createObjectBuilder()
+				.add("id", "801244036F944E7D808F5F157EED93B0")
+				.add("changed_ts", 1525138953)
+				.add("created_on", 15251389530001L)
+				.add("position", 1.5)
+				.add("is_focus", true)
+				.add("is_archived", false)
+				.add("note", JsonValue.NULL)
+				.add("tags", Json.createArrayBuilder()
+						.add(Json.createObjectBuilder().add("title", "tag1").build())
+						.add("tag2")
+						.build())
+				.build();
+
+		// WHEN it is written as a BSON document and read back
+		var document = new BsonDocument();
+		codec.encode(new BsonDocumentWriter(document), item, EncoderContext.builder().build());
+		var result = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+
+		// THEN the numbers have the same BSON types Document.parse would have chosen
+		assertThat(document.get("changed_ts")).isInstanceOf(BsonInt32.class);
+		assertThat(document.get("created_on")).isInstanceOf(BsonInt64.class);
+
+		// AND the item is unchanged
+		assertThat(result).isEqualTo(item);
+	}
+
+	@Test
+	void entityRoundTrip() {
+		// GIVEN an item with known and unknown fields
+		var item = Json.createObjectBuilder()
+				.add("id", "801244036F944E7D808F5F157EED93B0")
+				.add("changed_ts", 1525138953)
+				.add("created_on", 15251389530001L)
+				.add("title", "title")
+				.add("title_ts", JsonValue.NULL)
+				.add("position", 1.5)
+				.add("tags", Json.createArrayBuilder().add("tag1").build())
+				.add("tags_changed_ts", 15251389530001L)
+				.build();
+		var entityCodec = new SyncEntityCodec(EntitySchema.ITEM);
+
+		// WHEN it is written as a BSON document by the JSON codec, and read back as an entity
+		var document = new BsonDocument();
+		codec.encode(new BsonDocumentWriter(document), item, EncoderContext.builder().build());
+		document.append("_id", new BsonObjectId());
+		var entity = entityCodec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+
+		// THEN the entity has the same fields, without the Mongo id
+		assertThat(entity.toJsonObject()).isEqualTo(item);
+
+		// AND it is written back with the same BSON types
+		var written = new BsonDocument();
+		entityCodec.encode(new BsonDocumentWriter(written), entity, EncoderContext.builder().build());
+		document.remove("_id");
+		assertThat(written).isEqualTo(document);
+	}
+
+	@Test
+	void decodeDropsMongoId() {
+		// GIVEN a document as stored by Mongo
+		var document = new BsonDocument()
+				.append("_id", new BsonObjectId())
+				.append("id", new BsonString("801244036F944E7D808F5F157EED93B0"))
+				.append("sub", new BsonDocument("_id", new BsonString("nested")));
+
+		// WHEN it is decoded
+		var result = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+
+		// THEN only the top level _id is dropped
+		assertThat(result.containsKey("_id")).isFalse();
+		assertThat(result.getString("id")).isEqualTo("801244036F944E7D808F5F157EED93B0");
+		assertThat(result.getJsonObject("sub").getString("_id")).isEqualTo("nested");
+	}
+}
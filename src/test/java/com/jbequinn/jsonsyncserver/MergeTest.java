@@ -1,5 +1,8 @@
 package com.jbequinn.jsonsyncserver;
 
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.MergePlan;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
 import com.jbequinn.jsonsyncserver.service.JsonObjectMerger;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.MethodOrderer;
@@ -7,6 +10,8 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
 
 import javax.json.Json;
+import javax.json.JsonValue;
+import java.math.BigInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -83,6 +88,156 @@ public class MergeTest {
 		assertThat(result.getJsonNumber("tags_changed_ts").longValue()).isEqualTo(3L);
 	}
 
+	@Test
+	void mergeItemEveryTimestampedField() {
+		// GIVEN two items with fields that are not merged one by one
+		var one = Json.createObjectBuilder()
+				.add("changed_ts", 1L)
+				.add("list", "a")
+				.add("list_ts", 2L)
+				.add("energy", 1)
+				.add("energy_ts", 1L)
+				.add("parent_id", JsonValue.NULL)
+				.add("parent_id_ts", JsonValue.NULL)
+				.build();
+		var two = Json.createObjectBuilder()
+				.add("changed_ts", 2L)
+				.add("list", "i")
+				.add("list_ts", 1L)
+				.add("energy", 3)
+				.add("energy_ts", 2L)
+				.add("parent_id", "5D1204D188F6489799876DAB2053978E")
+				.add("parent_id_ts", 1L)
+				.build();
+
+		// WHEN those items are merged
+		var result = merger.merge(one, two);
+
+		// THEN the newest value of each one is taken
+		assertThat(result.getMerged().getString("list")).isEqualTo("a");
+		assertThat(result.getMerged().getJsonNumber("list_ts").longValue()).isEqualTo(2L);
+		assertThat(result.getMerged().getInt("energy")).isEqualTo(3);
+		assertThat(result.getMerged().getString("parent_id")).isEqualTo("5D1204D188F6489799876DAB2053978E");
+
+		// AND only the fields that differ from the second item are reported as changed
+		assertThat(result.getChangedFields()).containsExactlyInAnyOrder("list", "list_ts");
+	}
+
+	@Test
+	void mergeSameItemReportsNoChanges() {
+		// GIVEN an item that is sent again without changes
+		var item = Json.createObjectBuilder()
+				.add("changed_ts", 1L)
+				.add("title", "title")
+				.add("title_ts", 1L)
+				.add("time", JsonValue.NULL)
+				.add("time_ts", JsonValue.NULL)
+				.build();
+
+		// WHEN it is merged with its stored copy
+		var result = merger.merge(Json.createObjectBuilder(item).build(), item);
+
+		// THEN there is nothing to write
+		assertThat(result.isChanged()).isFalse();
+		assertThat(result.getMerged()).isEqualTo(item);
+	}
+
+	@Test
+	void mergeItemWithUnknownFields() {
+		// GIVEN two items with fields that are not part of the schema, one of them with a decimal timestamp
+		var one = Json.createObjectBuilder()
+				.add("changed_ts", 2L)
+				.add("title", "title one")
+				.add("title_ts", 2.5)
+				.add("color", "red")
+				.add("color_ts", 2L)
+				.add("extra", "one")
+				.build();
+		var two = Json.createObjectBuilder()
+				.add("changed_ts", 1L)
+				.add("title", "title two")
+				.add("title_ts", 1L)
+				.add("color", "blue")
+				.add("color_ts", 1L)
+				.add("other_extra", "two")
+				.build();
+
+		// WHEN those items are merged
+		var result = merger.merge(one, two).getMerged();
+
+		// THEN the unknown pairs are merged like the known ones
+		assertThat(result.getString("title")).isEqualTo("title one");
+		assertThat(result.get("title_ts")).isEqualTo(Json.createValue(2.5));
+		assertThat(result.getString("color")).isEqualTo("red");
+		assertThat(result.getJsonNumber("color_ts").longValue()).isEqualTo(2L);
+
+		// AND the rest of the fields come from the most recent item
+		assertThat(result.getString("extra")).isEqualTo("one");
+		assertThat(result.get("other_extra")).isNull();
+	}
+
+	@Test
+	void mergeItemWithBothTimestampsOfTheSameField() {
+		// GIVEN two items with a field that has both a _ts and a _changed_ts timestamp
+		var one = Json.createObjectBuilder()
+				.add("changed_ts", 2L)
+				.add("foo", "foo one")
+				.add("foo_ts", 2L)
+				.add("foo_changed_ts", 1L)
+				.build();
+		var two = Json.createObjectBuilder()
+				.add("changed_ts", 1L)
+				.add("foo", "foo two")
+				.add("foo_ts", 1L)
+				.add("foo_changed_ts", 2L)
+				.build();
+
+		// WHEN the pairs of those items are found
+		var plan = MergePlan.from(one.keySet());
+
+		// THEN foo is paired with foo_ts only
+		assertThat(plan.size()).isEqualTo(2);
+		assertThat(plan.valueKey(0)).isEqualTo("foo");
+		assertThat(plan.timestampKey(0)).isEqualTo("foo_ts");
+		assertThat(plan.valueKey(1)).isEqualTo("foo_changed");
+		assertThat(plan.timestampKey(1)).isEqualTo("foo_changed_ts");
+
+		// AND merging them takes foo from the newest foo_ts, and each timestamp from its own newest side
+		var result = merger.merge(one, two).getMerged();
+		assertThat(result.getString("foo")).isEqualTo("foo one");
+		assertThat(result.getJsonNumber("foo_ts").longValue()).isEqualTo(2L);
+		assertThat(result.getJsonNumber("foo_changed_ts").longValue()).isEqualTo(2L);
+		assertThat(result.get("foo_changed")).isNull();
+	}
+
+	@Test
+	void itemEntityRoundTrip() {
+		// GIVEN an item with known fields, unknown fields and timestamps that are not longs
+		var item = Json.createObjectBuilder()
+				.add("id", "801244036F944E7D808F5F157EED93B0")
+				.add("changed_ts", 1525138953L)
+				.add("created_on", JsonValue.NULL)
+				.add("title", "title")
+				.add("title_ts", 1525138953L)
+				.add("note_ts", JsonValue.NULL)
+				.add("time_ts", "not a number")
+				.add("due_date_ts", new BigInteger("123456789012345678901234567890"))
+				.add("tags", JsonValue.EMPTY_JSON_ARRAY)
+				.add("tags_changed_ts", Long.MIN_VALUE)
+				.add("unknown", Json.createObjectBuilder().add("nested", 1).build())
+				.build();
+
+		// WHEN it is turned into an entity and back
+		var entity = SyncEntity.of(EntitySchema.ITEM, item);
+
+		// THEN nothing is lost
+		assertThat(entity.getId()).isEqualTo("801244036F944E7D808F5F157EED93B0");
+		assertThat(entity.getChangedTs()).isEqualTo(1525138953L);
+		assertThat(entity.getOverflow()).containsOnlyKeys("unknown");
+		assertThat(entity.toJsonObject()).isEqualTo(item);
+		assertThat(entity.keysDifferentFrom(SyncEntity.of(EntitySchema.ITEM, item))).isEmpty();
+	}
+
 	@Test
 	void mergeTag() {
 		// GIVEN two tags
@@ -0,0 +1,52 @@
+package com.jbequinn.jsonsyncserver;
+
+import javax.enterprise.event.Event;
+import javax.enterprise.event.NotificationOptions;
+import javax.enterprise.util.TypeLiteral;
+import java.lang.annotation.Annotation;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Event that only keeps what is fired, for the beans built without CDI
+ */
+public class RecordingEvent<T> implements Event<T> {
+	private final List<T> fired = new CopyOnWriteArrayList<>();
+
+	public List<T> fired() {
+		return fired;
+	}
+
+	@Override
+	public void fire(T event) {
+		fired.add(event);
+	}
+
+	@Override
+	public <U extends T> CompletionStage<U> fireAsync(U event) {
+		fired.add(event);
+		return CompletableFuture.completedFuture(event);
+	}
+
+	@Override
+	public <U extends T> CompletionStage<U> fireAsync(U event, NotificationOptions options) {
+		return fireAsync(event);
+	}
+
+	@Override
+	public Event<T> select(Annotation... qualifiers) {
+		return this;
+	}
+
+	@Override
+	public <U extends T> Event<U> select(Class<U> subtype, Annotation... qualifiers) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <U extends T> Event<U> select(TypeLiteral<U> subtype, Annotation... qualifiers) {
+		throw new UnsupportedOperationException();
+	}
+}
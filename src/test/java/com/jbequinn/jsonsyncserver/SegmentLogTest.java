@@ -0,0 +1,100 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.repository.embedded.SegmentLog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.nio.file.Path;
+
+import static com.jbequinn.jsonsyncserver.repository.embedded.EntityKind.DELETION;
+import static com.jbequinn.jsonsyncserver.repository.embedded.EntityKind.ITEM;
+import static com.jbequinn.jsonsyncserver.repository.embedded.EntityKind.TAG;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SegmentLogTest {
+	// small enough for a few items to fill a segment
+	private static final int SEGMENT_SIZE = 4096;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void lastVersionIsFoundAfterReopening() throws Exception {
+		// GIVEN an item written twice, a removed tag and a deletion
+		try (var segmentLog = SegmentLog.open(directory, SEGMENT_SIZE)) {
+			segmentLog.put(ITEM, item("A", "first", 1), segmentLog.nextSequence());
+			segmentLog.put(ITEM, item("A", "second", 2), segmentLog.nextSequence());
+			segmentLog.put(TAG, Json.createObjectBuilder().add("id", "T").build(), segmentLog.nextSequence());
+			segmentLog.remove(TAG, "T", segmentLog.nextSequence());
+			segmentLog.put(DELETION, Json.createObjectBuilder().add("sync_id", "D").add("ts", 3).build(), segmentLog.nextSequence());
+			segmentLog.force();
+		}
+
+		// WHEN the log is opened again
+		try (var segmentLog = SegmentLog.open(directory, SEGMENT_SIZE)) {
+			// THEN only the last version of every element is found
+			assertThat(segmentLog.get(ITEM, "A").getString("title")).isEqualTo("second");
+			assertThat(segmentLog.get(TAG, "T")).isNull();
+			assertThat(segmentLog.get(DELETION, "D").getInt("ts")).isEqualTo(3);
+
+			// AND the sequence goes on from where it was
+			assertThat(segmentLog.getSequence()).isEqualTo(5);
+		}
+	}
+
+	@Test
+	void compactionKeepsOnlyTheLiveElements() throws Exception {
+		try (var segmentLog = SegmentLog.open(directory, SEGMENT_SIZE)) {
+			// GIVEN many versions of the same items, spread over several segments
+			for (int version = 0; version < 50; version++) {
+				for (int i = 0; i < 5; i++) {
+					segmentLog.put(ITEM, item("item-" + i, "version " + version, version), segmentLog.nextSequence());
+				}
+			}
+			assertThat(segmentLog.segmentCount()).isGreaterThan(1);
+			assertThat(segmentLog.garbageRatio()).isGreaterThan(0.9);
+
+			// WHEN it is compacted
+			segmentLog.compact();
+
+			// THEN only the last versions are left
+			assertThat(segmentLog.segmentCount()).isEqualTo(1);
+			assertThat(segmentLog.garbageRatio()).isZero();
+			assertThat(segmentLog.get(ITEM, "item-3").getString("title")).isEqualTo("version 49");
+		}
+
+		// AND they are still there after reopening
+		try (var segmentLog = SegmentLog.open(directory, SEGMENT_SIZE)) {
+			assertThat(segmentLog.get(ITEM, "item-3").getString("title")).isEqualTo("version 49");
+			assertThat(segmentLog.getSequence()).isEqualTo(250);
+		}
+	}
+
+	@Test
+	void removeAllDropsOnlyOneKind() throws Exception {
+		try (var segmentLog = SegmentLog.open(directory, SEGMENT_SIZE)) {
+			// GIVEN an item and a tag
+			segmentLog.put(ITEM, item("A", "item", 1), segmentLog.nextSequence());
+			segmentLog.put(TAG, Json.createObjectBuilder().add("id", "T").build(), segmentLog.nextSequence());
+
+			// WHEN all the items are removed
+			segmentLog.removeAll(ITEM);
+			segmentLog.reset();
+
+			// THEN the tag is still there
+			assertThat(segmentLog.get(ITEM, "A")).isNull();
+			assertThat(segmentLog.get(TAG, "T")).isNotNull();
+			assertThat(segmentLog.getResetSequence()).isEqualTo(3);
+		}
+	}
+
+	private JsonObject item(String id, String title, long changedTs) {
+		return Json.createObjectBuilder()
+				.add("id", id)
+				.add("title", title)
+				.add("changed_ts", changedTs)
+				.build();
+	}
+}
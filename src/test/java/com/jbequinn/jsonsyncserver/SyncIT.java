@@ -1,5 +1,16 @@
 package com.jbequinn.jsonsyncserver;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr353.JSR353Module;
+import com.jbequinn.jsonsyncserver.model.SyncResponse;
+import com.jbequinn.jsonsyncserver.repository.IndexManager;
+import com.jbequinn.jsonsyncserver.repository.MergePipelines;
+import com.jbequinn.jsonsyncserver.repository.SyncRepository;
+import com.jbequinn.jsonsyncserver.service.JsonObjectMerger;
+import com.jbequinn.jsonsyncserver.service.ReactiveJsonSyncServerService;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOptions;
 import io.quarkus.test.junit.QuarkusTest;
 import io.restassured.RestAssured;
 import io.restassured.builder.RequestSpecBuilder;
@@ -8,12 +19,14 @@ import io.restassured.filter.log.ResponseLoggingFilter;
 import io.restassured.http.ContentType;
 import io.restassured.specification.RequestSpecification;
 import org.assertj.core.api.SoftAssertions;
+import org.bson.Document;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import javax.inject.Inject;
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonValue;
 import java.io.BufferedReader;
@@ -21,12 +34,20 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static com.mongodb.client.model.Filters.eq;
 import static io.restassured.RestAssured.given;
 import static io.restassured.config.LogConfig.logConfig;
 import static io.restassured.config.RestAssuredConfig.config;
 import static io.restassured.config.SSLConfig.sslConfig;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
 import static java.util.stream.Collectors.toList;
@@ -34,6 +55,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 @QuarkusTest
 public class SyncIT {
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
 	private final RequestSpecification spec = new RequestSpecBuilder()
 			.setBaseUri("https://0.0.0.0")
 			.setPort(8444)
@@ -41,6 +64,21 @@ public class SyncIT {
 			.setContentType(ContentType.JSON)
 			.build();
 
+	@Inject
+	SyncRepository repository;
+
+	@Inject
+	IndexManager indexManager;
+
+	@Inject
+	MongoDatabase database;
+
+	@Inject
+	ReactiveJsonSyncServerService reactiveService;
+
+	@Inject
+	JsonSyncServerProperties properties;
+
 	@BeforeAll
 	static void beforeAll() {
 		RestAssured.config = config()
@@ -102,6 +140,49 @@ public class SyncIT {
 		assertThat(time).isBetween(before, Instant.now().toEpochMilli());
 	}
 
+	@Test
+	void pullIsNotModifiedUntilSomethingIsWritten() {
+		// GIVEN a client that pulled everything
+		String entityTag = given()
+				.spec(spec)
+				.when()
+				.post("/pull")
+				.then().assertThat()
+				.statusCode(HTTP_OK)
+				.header("Vary", "Accept-Encoding")
+				.extract().header("ETag");
+		// AND the entity tag is weak, as it is the same for every encoding
+		assertThat(entityTag).startsWith("W/");
+
+		// WHEN it pulls again with that entity tag
+		// THEN nothing was modified
+		given()
+				.spec(spec)
+				.header("If-None-Match", entityTag)
+				.when()
+				.post("/pull")
+				.then().assertThat()
+				.statusCode(HTTP_NOT_MODIFIED)
+				.header("Vary", "Accept-Encoding");
+
+		// WHEN something is written
+		given()
+				.spec(spec)
+				.when()
+				.post("/wipe")
+				.then().assertThat()
+				.statusCode(HTTP_OK);
+
+		// THEN the next pull with that entity tag returns the new data
+		given()
+				.spec(spec)
+				.header("If-None-Match", entityTag)
+				.when()
+				.post("/pull")
+				.then().assertThat()
+				.statusCode(HTTP_OK);
+	}
+
 	@Test
 	void pullEndpoint() {
 		String responseString = given()
@@ -304,14 +385,14 @@ public class SyncIT {
 			// THEN the request was successful
 			softly.assertThat(response.get("success").toString()).isEqualTo("true");
 
-			// AND all the previously existing items are returned in the response
+			// AND all the previously existing items are returned in the response, but not the one just sent
 			var itemIds = response.getJsonArray("items").stream()
 					.map(JsonValue::asJsonObject)
 					.map(jsonObject -> jsonObject.getString("id"))
 					.collect(toList());
 			softly.assertThat(itemIds)
 					.containsExactlyInAnyOrder(
-							"CE18D30F61E44C2FA6C1F6FA8024E407", "12B7DA5E9EC146B493056384EA89E55D", "AA56D30F61E44C2FA6C1F6FA8024A001"
+							"CE18D30F61E44C2FA6C1F6FA8024E407", "12B7DA5E9EC146B493056384EA89E55D"
 					);
 
 			// AND all the previously existing tags are returned in the response
@@ -464,4 +545,555 @@ public class SyncIT {
 					);
 		});
 	}
+
+	@Test
+	void sentItemMergedIntoSomethingElseIsReturned() {
+		// GIVEN an item of the server
+		JsonObject stored;
+		try (var jsonReader = Json.createReader(ClassLoader.getSystemResourceAsStream("file-simple.json"))) {
+			stored = jsonReader.readObject().getJsonArray("items").stream()
+					.map(JsonValue::asJsonObject)
+					.filter(item -> item.getString("id").equals("CE18D30F61E44C2FA6C1F6FA8024E407"))
+					.findFirst()
+					.orElseThrow();
+		}
+
+		// AND a client that sends it with a newer title, but an older note
+		var sent = Json.createObjectBuilder(stored)
+				.add("title", "test task 02 renamed")
+				.add("title_ts", 1600000000L)
+				.add("note", "- older notes")
+				.add("note_ts", 1500000000L)
+				.add("changed_ts", 1600000000L)
+				.build();
+
+		// WHEN it synchronizes
+		var response = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 1590000000L)
+				.add("changes", Json.createObjectBuilder()
+						.add("items", Json.createArrayBuilder().add(sent).build())
+						.add("tags", JsonValue.EMPTY_JSON_ARRAY)
+						.add("deletions", JsonValue.EMPTY_JSON_ARRAY)
+						.build())
+				.build());
+
+		SoftAssertions.assertSoftly(softly -> {
+			// THEN the item is returned, even if the client sent it, since the server has something else
+			softly.assertThat(ids(response.getJsonArray("items"), "id")).containsExactly("CE18D30F61E44C2FA6C1F6FA8024E407");
+			var merged = response.getJsonArray("items").getJsonObject(0);
+
+			// AND it has the title of the client and the note of the server
+			softly.assertThat(merged.getString("title")).isEqualTo("test task 02 renamed");
+			softly.assertThat(merged.getString("note")).isEqualTo("- some notes");
+		});
+	}
+
+	@Test
+	void syncWithCursorReturnsChangesSinceCursor() {
+		// GIVEN a client that has already synchronized and got a cursor
+		var cursor = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 2000000000L)
+				.add("changes", emptyChanges())
+				.build())
+				.getJsonNumber("sync_cursor").longValue();
+
+		// AND another client that adds an item afterwards
+		sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 2000000000L)
+				.add("changes", Json.createObjectBuilder()
+						.add("items", Json.createArrayBuilder()
+								.add(Json.createObjectBuilder()
+										.add("id", "AA56D30F61E44C2FA6C1F6FA8024A001")
+										.add("changed_ts", 1525138953)
+										.add("created_on", 1525117953)
+										.build())
+								.build())
+						.add("tags", JsonValue.EMPTY_JSON_ARRAY)
+						.add("deletions", JsonValue.EMPTY_JSON_ARRAY)
+						.build())
+				.build());
+
+		// WHEN the first client synchronizes with its cursor
+		var response = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("sync_cursor", cursor)
+				.add("changes", emptyChanges())
+				.build());
+
+		SoftAssertions.assertSoftly(softly -> {
+			// THEN only the item changed since the cursor is returned, regardless of the timestamps
+			var itemIds = response.getJsonArray("items").stream()
+					.map(JsonValue::asJsonObject)
+					.map(jsonObject -> jsonObject.getString("id"))
+					.collect(toList());
+			softly.assertThat(itemIds).containsExactly("AA56D30F61E44C2FA6C1F6FA8024A001");
+			softly.assertThat(response.getJsonArray("tags")).isEmpty();
+			softly.assertThat(response.getJsonArray("deletions_to_add")).isEmpty();
+
+			// AND the cursor moved forward
+			softly.assertThat(response.getJsonNumber("sync_cursor").longValue()).isGreaterThan(cursor);
+		});
+	}
+
+	@Test
+	void syncWithATrimmedCursorFallsBackToTimestamps() {
+		// GIVEN a client that has already synchronized and got a cursor
+		var cursor = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 2000000000L)
+				.add("changes", emptyChanges())
+				.build())
+				.getJsonNumber("sync_cursor").longValue();
+
+		// AND another client that adds an item afterwards
+		sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 2000000000L)
+				.add("changes", Json.createObjectBuilder()
+						.add("items", Json.createArrayBuilder()
+								.add(Json.createObjectBuilder()
+										.add("id", "AA56D30F61E44C2FA6C1F6FA8024A002")
+										.add("changed_ts", 1525138953)
+										.add("created_on", 1525117953)
+										.build())
+								.build())
+						.add("tags", JsonValue.EMPTY_JSON_ARRAY)
+						.add("deletions", JsonValue.EMPTY_JSON_ARRAY)
+						.build())
+				.build());
+
+		// AND the change log trimmed past that item
+		assertThat(repository.deleteChangesRecordedBefore(Instant.now().getEpochSecond() + 60)).isPositive();
+
+		// WHEN the first client synchronizes with its cursor
+		var response = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("sync_cursor", cursor)
+				.add("changes", emptyChanges())
+				.build());
+
+		// THEN every item newer than its last sync is returned, as without a cursor
+		assertThat(ids(response.getJsonArray("items"), "id"))
+				.contains("AA56D30F61E44C2FA6C1F6FA8024A002", "CE18D30F61E44C2FA6C1F6FA8024E407");
+	}
+
+	@Test
+	void indexesAreBuiltAndUsedByTheQueriesOfASync() throws Exception {
+		// GIVEN a server that has started
+		// WHEN its indexes are verified
+		var deadline = Instant.now().plusSeconds(60);
+		while (!indexManager.isVerified() && Instant.now().isBefore(deadline)) {
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+
+		SoftAssertions.assertSoftly(softly -> {
+			// THEN none of the queries of a sync is a collection scan
+			softly.assertThat(indexManager.isVerified()).isTrue();
+			softly.assertThat(indexManager.getCollectionScans()).isEmpty();
+
+			// AND the sequence of the change log is unique
+			var sequenceIndex = database.getCollection("changelog").listIndexes()
+					.into(new ArrayList<>()).stream()
+					.filter(index -> new Document("seq", 1).equals(index.get("key")))
+					.findFirst();
+			softly.assertThat(sequenceIndex).hasValueSatisfying(index ->
+					assertThat(index.getBoolean("unique", false)).isTrue());
+		});
+	}
+
+	@Test
+	void reactiveSyncReturnsTheSameAsBlockingSync() throws Exception {
+		// GIVEN a client that synchronizes for the first time
+		var request = Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("changes", emptyChanges())
+				.build();
+
+		// WHEN it synchronizes through both the blocking and the reactive sync
+		var blockingResponse = sync(request);
+		var reactiveResponse = reactiveService.sync(request)
+				.get(1, TimeUnit.MINUTES)
+				.toJsonObject();
+
+		SoftAssertions.assertSoftly(softly -> {
+			// THEN both find the same elements
+			softly.assertThat(ids(reactiveResponse.getJsonArray("items"), "id"))
+					.containsExactlyInAnyOrderElementsOf(ids(blockingResponse.getJsonArray("items"), "id"));
+			softly.assertThat(ids(reactiveResponse.getJsonArray("tags"), "id"))
+					.containsExactlyInAnyOrderElementsOf(ids(blockingResponse.getJsonArray("tags"), "id"));
+			softly.assertThat(ids(reactiveResponse.getJsonArray("deletions_to_add"), "sync_id"))
+					.containsExactlyInAnyOrderElementsOf(ids(blockingResponse.getJsonArray("deletions_to_add"), "sync_id"));
+
+			// AND nothing was written in between
+			softly.assertThat(reactiveResponse.getJsonNumber("sync_cursor").longValue())
+					.isEqualTo(blockingResponse.getJsonNumber("sync_cursor").longValue());
+		});
+	}
+
+	@Test
+	void concurrentSyncsNeverGetACursorPastChangesNotWrittenYet() throws Exception {
+		// GIVEN a cursor taken before the syncs below
+		var startCursor = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 2000000000L)
+				.add("changes", emptyChanges())
+				.build())
+				.getJsonNumber("sync_cursor").longValue();
+
+		// WHEN many clients add an item each at the same time, most through the reactive sync and some through the
+		// blocking one
+		var sentIds = IntStream.range(0, 20)
+				.mapToObj(i -> String.format("BB56D30F61E44C2FA6C1F6FA8024%04d", i))
+				.collect(toList());
+		var responses = new ArrayList<CompletableFuture<JsonObject>>();
+		for (int i = 0; i < sentIds.size(); i++) {
+			var request = Json.createObjectBuilder()
+					.add("last_sync_ts", 2000000000L)
+					.add("sync_cursor", startCursor)
+					.add("changes", Json.createObjectBuilder()
+							.add("items", Json.createArrayBuilder()
+									.add(Json.createObjectBuilder()
+											.add("id", sentIds.get(i))
+											.add("changed_ts", 1525138953)
+											.add("created_on", 1525117953)
+											.build())
+									.build())
+							.add("tags", JsonValue.EMPTY_JSON_ARRAY)
+							.add("deletions", JsonValue.EMPTY_JSON_ARRAY)
+							.build())
+					.build();
+			responses.add(i % 5 == 0
+					? CompletableFuture.supplyAsync(() -> sync(request))
+					: reactiveService.sync(request).thenApply(SyncResponse::toJsonObject));
+		}
+		CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).get(1, TimeUnit.MINUTES);
+
+		// THEN every client either got each item in its response, or gets it when it synchronizes again with the
+		// cursor it got
+		SoftAssertions.assertSoftly(softly -> {
+			for (int i = 0; i < sentIds.size(); i++) {
+				var response = responses.get(i).join();
+				var seen = new HashSet<>(ids(response.getJsonArray("items"), "id"));
+				seen.add(sentIds.get(i));
+				seen.addAll(ids(sync(Json.createObjectBuilder()
+						.add("last_sync_ts", 2000000000L)
+						.add("sync_cursor", response.getJsonNumber("sync_cursor").longValue())
+						.add("changes", emptyChanges())
+						.build())
+						.getJsonArray("items"), "id"));
+
+				softly.assertThat(seen).as("seen by client %d", i).containsAll(sentIds);
+			}
+		});
+	}
+
+	@Test
+	void smileSyncReturnsTheSameAsJsonSync() throws Exception {
+		// GIVEN a client that synchronizes for the first time
+		var request = Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("changes", emptyChanges())
+				.build();
+		var smileMapper = new ObjectMapper(new SmileFactory()).registerModule(new JSR353Module());
+
+		// WHEN it synchronizes both in JSON and in Smile
+		var jsonResponse = sync(request);
+		var smileBody = given()
+				.spec(spec)
+				.contentType(WireFormats.APPLICATION_SMILE)
+				.accept(WireFormats.APPLICATION_SMILE)
+				.body(smileMapper.writeValueAsBytes(request))
+				.when()
+				.post("/sync")
+				.then().assertThat()
+				.statusCode(HTTP_OK)
+				.contentType(WireFormats.APPLICATION_SMILE)
+				.extract().body().asByteArray();
+		var smileResponse = smileMapper.readValue(smileBody, JsonObject.class);
+
+		SoftAssertions.assertSoftly(softly -> {
+			// THEN both find the same elements
+			softly.assertThat(ids(smileResponse.getJsonArray("items"), "id"))
+					.containsExactlyInAnyOrderElementsOf(ids(jsonResponse.getJsonArray("items"), "id"));
+			softly.assertThat(ids(smileResponse.getJsonArray("tags"), "id"))
+					.containsExactlyInAnyOrderElementsOf(ids(jsonResponse.getJsonArray("tags"), "id"));
+			softly.assertThat(ids(smileResponse.getJsonArray("deletions_to_add"), "sync_id"))
+					.containsExactlyInAnyOrderElementsOf(ids(jsonResponse.getJsonArray("deletions_to_add"), "sync_id"));
+		});
+	}
+
+	@Test
+	void deletionsReceivedByEveryDeviceCanBeRemoved() {
+		// GIVEN a device that has received everything up to the second deletion
+		var deviceCursor = 1525129953L;
+		sync(Json.createObjectBuilder()
+				.add("last_sync_ts", deviceCursor)
+				.add("device_id", "deletions-test-device")
+				.add("changes", emptyChanges())
+				.build());
+
+		// WHEN the deletions up to the oldest cursor are removed
+		var oldestCursor = repository.findOldestDeviceCursor(Instant.now().getEpochSecond() - 60);
+		assertThat(oldestCursor).hasValue(deviceCursor);
+		repository.deleteDeletionsUpTo(oldestCursor.getAsLong());
+
+		// THEN a first sync only gets the newer deletions
+		var response = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("changes", emptyChanges())
+				.build());
+		assertThat(response.getJsonArray("deletions_to_add").stream()
+				.map(JsonValue::asJsonObject)
+				.map(deletion -> deletion.getJsonNumber("ts").longValue()))
+				.isNotEmpty()
+				.allMatch(ts -> ts > deviceCursor);
+	}
+
+	@Test
+	void paginatedSyncReturnsEverythingInPages() {
+		// GIVEN a client that synchronizes for the first time
+		var wholeResponse = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("changes", emptyChanges())
+				.build());
+
+		// WHEN it gets the changes one element per page, sending its (empty) changes with the first page only
+		var itemIds = new ArrayList<String>();
+		var tagIds = new ArrayList<String>();
+		var deletionSyncIds = new ArrayList<String>();
+		var pages = 0;
+		var page = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("page_size", 1)
+				.add("changes", emptyChanges())
+				.build());
+		while (true) {
+			pages++;
+			itemIds.addAll(ids(page.getJsonArray("items"), "id"));
+			tagIds.addAll(ids(page.getJsonArray("tags"), "id"));
+			deletionSyncIds.addAll(ids(page.getJsonArray("deletions_to_add"), "sync_id"));
+			if (!page.getBoolean("has_more")) {
+				break;
+			}
+			page = sync(Json.createObjectBuilder()
+					.add("last_sync_ts", 0L)
+					.add("page_token", page.getString("page_token"))
+					.build());
+		}
+
+		var finalPage = page;
+		var pageCount = pages;
+		SoftAssertions.assertSoftly(softly -> {
+			// THEN all the pages together have the same elements as the whole response, each one only once
+			softly.assertThat(itemIds)
+					.containsExactlyInAnyOrderElementsOf(ids(wholeResponse.getJsonArray("items"), "id"));
+			softly.assertThat(tagIds)
+					.containsExactlyInAnyOrderElementsOf(ids(wholeResponse.getJsonArray("tags"), "id"));
+			softly.assertThat(deletionSyncIds)
+					.containsExactlyInAnyOrderElementsOf(ids(wholeResponse.getJsonArray("deletions_to_add"), "sync_id"));
+			softly.assertThat(pageCount).isGreaterThan(1);
+
+			// AND the last page has no token
+			softly.assertThat(finalPage.containsKey("page_token")).isFalse();
+		});
+	}
+
+	@Test
+	void paginatedSyncReturnsTheItemsWithoutChangedTimestamp() {
+		// GIVEN items that only have a creation timestamp, more than a page of them
+		var idsWithoutChangedTs = List.of(
+				"0A6D0C5E1F2B4C3D8E9F0A1B2C3D4E01",
+				"0A6D0C5E1F2B4C3D8E9F0A1B2C3D4E02",
+				"0A6D0C5E1F2B4C3D8E9F0A1B2C3D4E03");
+		repository.saveNewItems(idsWithoutChangedTs.stream()
+				.map(id -> Json.createObjectBuilder()
+						.add("id", id)
+						.add("created_on", 1590000000L)
+						.add("title", "created only")
+						.build())
+				.collect(toList()));
+
+		// WHEN a client gets the changes one element per page
+		var itemIds = new ArrayList<String>();
+		var page = sync(Json.createObjectBuilder()
+				.add("last_sync_ts", 0L)
+				.add("page_size", 1)
+				.add("changes", emptyChanges())
+				.build());
+		itemIds.addAll(ids(page.getJsonArray("items"), "id"));
+		while (page.getBoolean("has_more")) {
+			page = sync(Json.createObjectBuilder()
+					.add("last_sync_ts", 0L)
+					.add("page_token", page.getString("page_token"))
+					.add("changes", emptyChanges())
+					.build());
+			itemIds.addAll(ids(page.getJsonArray("items"), "id"));
+		}
+
+		// THEN every item without a changed timestamp is returned, across the page boundaries, each one only once
+		assertThat(itemIds).containsAll(idsWithoutChangedTs);
+		assertThat(itemIds).doesNotHaveDuplicates();
+	}
+
+	@Test
+	void requestAboveTheRateIsRejectedWithRetryAfter() {
+		// GIVEN the admission control on, letting a key pull once every 10 seconds
+		properties.setAdmissionBurst(1);
+		properties.setAdmissionRequestsPerSecond(0.1);
+		properties.setAdmissionControl(true);
+		try {
+			// WHEN the key pulls twice in a row
+			given()
+					.spec(spec)
+					.when()
+					.post("/pull")
+					.then().assertThat()
+					.statusCode(HTTP_OK);
+
+			var retryAfter = given()
+					.spec(spec)
+					.when()
+					.post("/pull")
+					.then().assertThat()
+					// THEN the second pull is rejected
+					.statusCode(HTTP_TOO_MANY_REQUESTS)
+					.extract().header("Retry-After");
+
+			// AND it is told to come back once it has a request again
+			assertThat(Long.parseLong(retryAfter)).isBetween(1L, 10L);
+		} finally {
+			properties.setAdmissionControl(false);
+			properties.setAdmissionBurst(20);
+			properties.setAdmissionRequestsPerSecond(5.0);
+		}
+	}
+
+	@Test
+	void asyncSyncsGiveTheirSlotBack() {
+		// GIVEN the admission control on, with a rate that doesn't get in the way, and the reactive sync
+		properties.setAdmissionBurst(1000);
+		properties.setAdmissionRequestsPerSecond(1000.0);
+		properties.setAdmissionControl(true);
+		properties.setReactiveSync(true);
+		try {
+			var request = Json.createObjectBuilder()
+					.add("last_sync_ts", 0L)
+					.add("changes", emptyChanges())
+					.build();
+
+			// WHEN a client syncs, one sync after the other, more times than there are slots
+			// THEN every sync is admitted, since each response written after the resource method returned gives its slot back
+			IntStream.range(0, 3 * properties.getAdmissionMaxConcurrentRequests())
+					.forEach(i -> sync(request));
+		} finally {
+			properties.setAdmissionControl(false);
+			properties.setReactiveSync(false);
+			properties.setAdmissionBurst(20);
+			properties.setAdmissionRequestsPerSecond(5.0);
+		}
+	}
+
+	@Test
+	void databaseMergeGivesTheSameItemsAsTheApplicationMerge() {
+		// GIVEN pairs of sent and stored items
+		var id = "9B3AD0C3B7A84B53A7AEB2E8D6F0A1C4";
+		var stored = Json.createObjectBuilder()
+				.add("id", id)
+				.add("changed_ts", 10L)
+				.add("title", "stored title")
+				.add("title_ts", 10L)
+				.add("note", "stored note")
+				.add("note_ts", 5L)
+				.add("list", "a")
+				.add("list_ts", 5L)
+				.add("stored_extra", "stored")
+				.build();
+		var cases = List.of(
+				// the sent item is the most recent, and the stored one has pairs that were not sent
+				List.of(Json.createObjectBuilder()
+						.add("id", id)
+						.add("changed_ts", 20L)
+						.add("title", "sent title")
+						.add("title_ts", 20L)
+						.add("sent_extra", "sent")
+						.build(), stored),
+				// the sent item is the most recent, but one of its pairs is older
+				List.of(Json.createObjectBuilder()
+						.add("id", id)
+						.add("changed_ts", 20L)
+						.add("title", "sent title")
+						.add("title_ts", 1L)
+						.add("list", "i")
+						.add("list_ts", 20L)
+						.build(), stored),
+				// the stored item is the most recent, but one pair of the sent item is newer
+				List.of(Json.createObjectBuilder()
+						.add("id", id)
+						.add("changed_ts", 1L)
+						.add("note", "sent note")
+						.add("note_ts", 6L)
+						.add("sent_extra", "sent")
+						.build(), stored),
+				// the sent item has a newer timestamp without its value
+				List.of(Json.createObjectBuilder()
+						.add("id", id)
+						.add("changed_ts", 20L)
+						.add("note_ts", 20L)
+						.build(), stored),
+				// the item is not stored yet
+				List.of(Json.createObjectBuilder()
+						.add("id", id)
+						.add("changed_ts", 20L)
+						.add("title", "sent title")
+						.add("title_ts", 20L)
+						.build()));
+
+		var merger = new JsonObjectMerger();
+		var collection = database.getCollection("merge_pipeline", JsonObject.class);
+		try {
+			SoftAssertions.assertSoftly(softly -> cases.forEach(pair -> {
+				var sent = pair.get(0);
+				collection.drop();
+				if (pair.size() > 1) {
+					collection.insertOne(pair.get(1));
+				}
+
+				// WHEN the sent item is merged by Mongo
+				collection.updateOne(eq("id", id), MergePipelines.itemMerge(sent), new UpdateOptions().upsert(true));
+
+				// THEN the stored result is the same as the merge in the application
+				var expected = pair.size() > 1 ? merger.mergeItem(sent, pair.get(1)) : sent;
+				softly.assertThat(collection.find(eq("id", id)).first()).as(sent.toString()).isEqualTo(expected);
+			}));
+		} finally {
+			collection.drop();
+		}
+	}
+
+	private List<String> ids(JsonArray jsonArray, String idField) {
+		return jsonArray.stream()
+				.map(JsonValue::asJsonObject)
+				.map(jsonObject -> jsonObject.getString(idField))
+				.collect(toList());
+	}
+
+	private JsonObject emptyChanges() {
+		return Json.createObjectBuilder()
+				.add("items", JsonValue.EMPTY_JSON_ARRAY)
+				.add("tags", JsonValue.EMPTY_JSON_ARRAY)
+				.add("deletions", JsonValue.EMPTY_JSON_ARRAY)
+				.build();
+	}
+
+	private JsonObject sync(JsonObject request) {
+		var responseString = given()
+				.spec(spec)
+				.body(request.toString())
+				.when()
+				.post("/sync")
+				.then().assertThat()
+				.statusCode(HTTP_OK)
+				.extract().body().asString();
+
+		try (var jsonReader = Json.createReader(new StringReader(responseString))) {
+			return jsonReader.readObject();
+		}
+	}
 }
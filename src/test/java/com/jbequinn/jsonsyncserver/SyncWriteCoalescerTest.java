@@ -0,0 +1,209 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.repository.RepositoryExecutor;
+import com.jbequinn.jsonsyncserver.service.JsonObjectMerger;
+import com.jbequinn.jsonsyncserver.service.SyncWriteCoalescer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SyncWriteCoalescerTest {
+	private static final String ID = "5F0C2B3E2F1A4C8D9E7B6A5D4C3B2A19";
+	private static final String OTHER_ID = "A7D3E9F1B2C44E5F8A6B7C8D9E0F1A2B";
+	private static final long WAIT_SECONDS = 5;
+
+	private JsonSyncServerProperties properties;
+	private FakeSyncRepository repository;
+
+	@BeforeEach
+	void setUp() {
+		properties = new JsonSyncServerProperties();
+		properties.setSyncWriteCoalescing(true);
+		properties.setSyncWriteCoalescingWindowMillis(50L);
+		properties.setSyncWriteCoalescingMaxBatch(50);
+		repository = new FakeSyncRepository();
+	}
+
+	@Test
+	void writesWithinTheWindowAreFlushedTogether() throws Exception {
+		// GIVEN a coalescer
+		var coalescer = coalescer();
+
+		// WHEN two syncs write different items within the window
+		var first = coalescer.write(newItem(ID, "title", 1L));
+		var second = coalescer.write(newItem(OTHER_ID, "title", 1L));
+		CompletableFuture.allOf(first, second).get(WAIT_SECONDS, TimeUnit.SECONDS);
+
+		// THEN both items are written in a single sync
+		assertThat(repository.syncs()).hasSize(1);
+		assertThat(repository.syncs().get(0).getNewItemsToSave().stream().map(SyncEntity::getId).collect(toList()))
+				.containsExactly(ID, OTHER_ID);
+	}
+
+	@Test
+	void writesOfTheSameItemAreMerged() throws Exception {
+		// GIVEN a coalescer
+		var coalescer = coalescer();
+
+		// WHEN two syncs update the same item within the window, the first one with the newest title
+		var first = coalescer.write(updatedItem(ID, "newest title", 2L));
+		var second = coalescer.write(updatedItem(ID, "older title", 1L));
+		CompletableFuture.allOf(first, second).get(WAIT_SECONDS, TimeUnit.SECONDS);
+
+		// THEN a single update of the item is written
+		assertThat(repository.syncs()).hasSize(1);
+		var updated = repository.syncs().get(0).getItemsToUpdate();
+		assertThat(updated).hasSize(1);
+		// AND it has the newest title
+		assertThat(updated.get(0).toJsonObject().getString("title")).isEqualTo("newest title");
+	}
+
+	@Test
+	void fullBatchIsFlushedByTheLastCaller() {
+		// GIVEN a coalescer with batches of 2 syncs, and a window too long to end during the test
+		properties.setSyncWriteCoalescingMaxBatch(2);
+		properties.setSyncWriteCoalescingWindowMillis(TimeUnit.MINUTES.toMillis(1));
+		var coalescer = coalescer();
+
+		// WHEN two syncs write
+		var first = coalescer.write(newItem(ID, "title", 1L));
+		var second = coalescer.write(newItem(OTHER_ID, "title", 1L));
+
+		// THEN both are written as soon as the second write returns
+		assertThat(first).isDone();
+		assertThat(second).isDone();
+		assertThat(repository.syncs()).hasSize(1);
+	}
+
+	@Test
+	void deletionIsNotOvertakenByALaterWriteOfTheSameItem() throws Exception {
+		// GIVEN a stored item, and a coalescer
+		repository.saveNewItems(List.of(Json.createObjectBuilder().add("id", ID).add("changed_ts", 1L).build()));
+		var coalescer = coalescer();
+
+		// WHEN a sync deletes the item, and a later sync of the same batch creates it again
+		var deletion = new ChangesDto();
+		deletion.getItemsIdsToDelete().add(ID);
+		var first = coalescer.write(deletion);
+		var second = coalescer.write(newItem(ID, "created again", 2L));
+		CompletableFuture.allOf(first, second).get(WAIT_SECONDS, TimeUnit.SECONDS);
+
+		// THEN the deletion is written first, in a sync of its own
+		assertThat(repository.syncs()).hasSize(2);
+		assertThat(repository.syncs().get(0).getItemsIdsToDelete()).containsExactly(ID);
+		assertThat(repository.syncs().get(1).getNewItemsToSave()).hasSize(1);
+		// AND the item created again is stored
+		assertThat(repository.item(ID)).hasValueSatisfying(item ->
+				assertThat(item.getString("title")).isEqualTo("created again"));
+	}
+
+	@Test
+	void flushRefusedByTheExecutorStillWritesThePendingWrites() throws Exception {
+		// GIVEN a repository executor that rejects the tasks, with its only thread and its queue taken
+		properties.setRepositoryExecutorThreads(1);
+		properties.setRepositoryExecutorQueueCapacity(1);
+		properties.setRepositoryExecutorRejectionPolicy("abort");
+		var executor = new RepositoryExecutor(properties, TestMetrics.registry());
+		var release = new CountDownLatch(1);
+		executor.execute(() -> await(release));
+		executor.execute(() -> await(release));
+		var coalescer = new SyncWriteCoalescer(repository, new JsonObjectMerger(), executor, properties);
+
+		try {
+			// WHEN a sync writes
+			var first = coalescer.write(newItem(ID, "title", 1L));
+
+			// THEN its write is flushed anyway once the window ends
+			first.get(WAIT_SECONDS, TimeUnit.SECONDS);
+			// AND the next writes are flushed too
+			coalescer.write(newItem(OTHER_ID, "title", 1L)).get(WAIT_SECONDS, TimeUnit.SECONDS);
+			assertThat(repository.syncs()).hasSize(2);
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	void failedFlushFailsTheWritesOfItsBatch() {
+		// GIVEN a repository that fails every sync
+		repository.beforeSync(changes -> {
+			throw new IllegalStateException("Mongo is down");
+		});
+		var coalescer = coalescer();
+
+		// WHEN two syncs write within the window
+		var first = coalescer.write(newItem(ID, "title", 1L));
+		var second = coalescer.write(newItem(OTHER_ID, "title", 1L));
+
+		// THEN both writes fail with the error of the repository
+		assertThatThrownBy(() -> first.get(WAIT_SECONDS, TimeUnit.SECONDS))
+				.isInstanceOf(ExecutionException.class)
+				.hasCauseInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("Mongo is down");
+		assertThatThrownBy(() -> second.get(WAIT_SECONDS, TimeUnit.SECONDS))
+				.isInstanceOf(ExecutionException.class)
+				.hasCauseInstanceOf(IllegalStateException.class)
+				.hasMessageContaining("Mongo is down");
+	}
+
+	@Test
+	void writesAreSentRightAwayWithoutCoalescing() {
+		// GIVEN a coalescer with the coalescing disabled
+		properties.setSyncWriteCoalescing(false);
+		var coalescer = coalescer();
+
+		// WHEN a sync writes
+		var write = coalescer.write(newItem(ID, "title", 1L));
+
+		// THEN it is written before the write returns
+		assertThat(write).isDone();
+		assertThat(repository.syncs()).hasSize(1);
+	}
+
+	private SyncWriteCoalescer coalescer() {
+		return new SyncWriteCoalescer(repository, new JsonObjectMerger(),
+				new RepositoryExecutor(properties, TestMetrics.registry()), properties);
+	}
+
+	private static ChangesDto newItem(String id, String title, long titleTs) {
+		var changes = new ChangesDto();
+		changes.getNewItemsToSave().add(item(id, title, titleTs));
+		return changes;
+	}
+
+	private static ChangesDto updatedItem(String id, String title, long titleTs) {
+		var changes = new ChangesDto();
+		changes.getItemsToUpdate().add(item(id, title, titleTs));
+		return changes;
+	}
+
+	private static SyncEntity item(String id, String title, long titleTs) {
+		return SyncEntity.of(EntitySchema.ITEM, Json.createObjectBuilder()
+				.add("id", id)
+				.add("changed_ts", titleTs)
+				.add("title", title)
+				.add("title_ts", titleTs)
+				.build());
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
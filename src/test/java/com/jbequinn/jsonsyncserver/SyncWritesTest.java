@@ -0,0 +1,133 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.model.ChangesDto;
+import com.jbequinn.jsonsyncserver.model.EntitySchema;
+import com.jbequinn.jsonsyncserver.model.SyncEntity;
+import com.jbequinn.jsonsyncserver.repository.SyncWrites;
+import com.jbequinn.jsonsyncserver.repository.UpdateMode;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SyncWritesTest {
+	private static final String ID = "DEB4FC0A7E6A4BE38F3E3C4B25D5B7F2";
+	private static final int BATCH_SIZE = 500;
+
+	@Test
+	void diffSetsTheChangedFieldsAndUnsetsTheRemovedOnes() {
+		// GIVEN a stored item, and its update with a new title and without a note
+		var changes = update(
+				item().add("title", "old title").add("title_ts", 1L).add("note", "note").add("note_ts", 1L).build(),
+				item().add("title", "new title").add("title_ts", 2L).build());
+
+		// WHEN the writes are built in the "diff" mode
+		var writes = SyncWrites.of(changes, BATCH_SIZE, UpdateMode.DIFF);
+
+		// THEN there is a single update of the item
+		assertThat(writes.getItemWrites()).hasSize(1);
+		var update = (BsonDocument) ((UpdateOneModel<?>) writes.getItemWrites().get(0)).getUpdate();
+
+		// AND it sets the changed fields only
+		var set = update.getDocument("$set");
+		assertThat(set.keySet()).containsExactlyInAnyOrder("title", "title_ts");
+		assertThat(set.getString("title").getValue()).isEqualTo("new title");
+		assertThat(set.get("title_ts").asNumber().longValue()).isEqualTo(2L);
+
+		// AND it unsets the removed ones
+		assertThat(update.getDocument("$unset").keySet()).containsExactlyInAnyOrder("note", "note_ts");
+	}
+
+	@Test
+	void diffWithOnlyNewFieldsHasNoUnset() {
+		// GIVEN a stored item, and its update with a note added
+		var changes = update(
+				item().add("title", "title").add("title_ts", 1L).build(),
+				item().add("title", "title").add("title_ts", 1L).add("note", "note").add("note_ts", 2L).build());
+
+		// WHEN the writes are built in the "diff" mode
+		var writes = SyncWrites.of(changes, BATCH_SIZE, UpdateMode.DIFF);
+
+		// THEN the update only has a $set
+		var update = (BsonDocument) ((UpdateOneModel<?>) writes.getItemWrites().get(0)).getUpdate();
+		assertThat(update.keySet()).containsExactly("$set");
+		assertThat(update.getDocument("$set").keySet()).containsExactlyInAnyOrder("note", "note_ts");
+	}
+
+	@Test
+	void diffSkipsTheUpdatesThatChangeNothing() {
+		// GIVEN an item updated to the same fields it has stored
+		var item = item().add("title", "title").add("title_ts", 1L).build();
+		var changes = update(item, item);
+
+		// WHEN the writes are built in the "diff" mode
+		var writes = SyncWrites.of(changes, BATCH_SIZE, UpdateMode.DIFF);
+
+		// THEN nothing is written
+		assertThat(writes.getItemWrites()).isEmpty();
+		// AND the item is still reported as changed by the sync
+		assertThat(writes.getChangedItemIds()).containsExactly(ID);
+	}
+
+	@Test
+	void diffReplacesTheItemsNotReadBefore() {
+		// GIVEN an update of an item whose stored version is unknown
+		var changes = new ChangesDto();
+		changes.getItemsToUpdate().add(SyncEntity.of(EntitySchema.ITEM, item().add("title", "title").build()));
+
+		// WHEN the writes are built in the "diff" mode
+		var writes = SyncWrites.of(changes, BATCH_SIZE, UpdateMode.DIFF);
+
+		// THEN the whole item is replaced
+		assertThat(writes.getItemWrites()).hasSize(1);
+		assertThat(writes.getItemWrites().get(0)).isInstanceOf(ReplaceOneModel.class);
+	}
+
+	@Test
+	void replaceReplacesTheWholeItem() {
+		// GIVEN a stored item, and its update with a new title
+		var updated = item().add("title", "new title").add("title_ts", 2L).build();
+		var changes = update(item().add("title", "old title").add("title_ts", 1L).build(), updated);
+
+		// WHEN the writes are built in the "replace" mode
+		var writes = SyncWrites.of(changes, BATCH_SIZE, UpdateMode.REPLACE);
+
+		// THEN the whole item is replaced by its update
+		assertThat(writes.getItemWrites()).hasSize(1);
+		var replacement = ((ReplaceOneModel<SyncEntity>) writes.getItemWrites().get(0)).getReplacement();
+		assertThat(replacement.toJsonObject()).isEqualTo(updated);
+	}
+
+	@Test
+	void unknownUpdateModeIsRejected() {
+		// GIVEN a mistyped update mode
+		// WHEN it is parsed
+		// THEN it is rejected
+		assertThatThrownBy(() -> UpdateMode.of("dif"))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("dif");
+		// AND the valid ones are not
+		assertThat(UpdateMode.of("diff")).isEqualTo(UpdateMode.DIFF);
+		assertThat(UpdateMode.of("replace")).isEqualTo(UpdateMode.REPLACE);
+	}
+
+	private static JsonObjectBuilder item() {
+		return Json.createObjectBuilder()
+				.add("id", ID)
+				.add("changed_ts", 1L);
+	}
+
+	private static ChangesDto update(JsonObject stored, JsonObject updated) {
+		var changes = new ChangesDto();
+		changes.getStoredItems().put(ID, SyncEntity.of(EntitySchema.ITEM, stored));
+		changes.getItemsToUpdate().add(SyncEntity.of(EntitySchema.ITEM, updated));
+		return changes;
+	}
+}
@@ -0,0 +1,27 @@
+package com.jbequinn.jsonsyncserver;
+
+import io.smallrye.config.SmallRyeConfigBuilder;
+import io.smallrye.metrics.MetricsRegistryImpl;
+import org.eclipse.microprofile.config.spi.ConfigProviderResolver;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+/**
+ * Metric registry for the beans built without Quarkus. The registry reads the MicroProfile config, which Quarkus only
+ * sets up when it starts, so an empty one is registered first
+ */
+public final class TestMetrics {
+
+	private TestMetrics() {
+	}
+
+	public static synchronized MetricRegistry registry() {
+		var resolver = ConfigProviderResolver.instance();
+		var classLoader = Thread.currentThread().getContextClassLoader();
+		try {
+			resolver.getConfig(classLoader);
+		} catch (IllegalStateException e) {
+			resolver.registerConfig(new SmallRyeConfigBuilder().build(), classLoader);
+		}
+		return new MetricsRegistryImpl();
+	}
+}
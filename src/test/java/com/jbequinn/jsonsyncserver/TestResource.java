@@ -22,8 +22,8 @@ public class TestResource {
 			mongoContainer.start();
 
 			final Map<String, String> systemProps = new HashMap<>();
-			systemProps.put("quarkus.mongodb.hosts", mongoContainer.getContainerIpAddress()
-					+ ":" + mongoContainer.getMappedPort(27017));
+			systemProps.put("quarkus.mongodb.hosts",
+					mongoContainer.getContainerIpAddress() + ":" + mongoContainer.getMappedPort(27017));
 
 			return systemProps;
 		}
@@ -0,0 +1,45 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.filter.TokenBucket;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenBucketTest {
+	private static final long START = 1_000_000L;
+
+	@Test
+	void burstIsLetThroughThenRejected() {
+		// GIVEN a bucket of 3 tokens, refilled with 2 a second
+		var bucket = new TokenBucket(3, 2, START);
+
+		// WHEN 4 operations arrive at once
+		// THEN the first 3 go through
+		assertThat(bucket.tryTake(START)).isZero();
+		assertThat(bucket.tryTake(START)).isZero();
+		assertThat(bucket.tryTake(START)).isZero();
+		// AND the 4th has to wait half a second for the next token
+		assertThat(bucket.tryTake(START)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(500));
+	}
+
+	@Test
+	void tokensAreRefilledUpToTheCapacity() {
+		// GIVEN an empty bucket of 3 tokens, refilled with 2 a second
+		var bucket = new TokenBucket(3, 2, START);
+		for (int i = 0; i < 3; i++) {
+			bucket.tryTake(START);
+		}
+
+		// WHEN half a second has passed
+		var later = START + TimeUnit.MILLISECONDS.toNanos(500);
+
+		// THEN one more operation goes through, but not two
+		assertThat(bucket.tryTake(later)).isZero();
+		assertThat(bucket.tryTake(later)).isPositive();
+
+		// AND after a long time the bucket is only full
+		assertThat(bucket.tokens(later + TimeUnit.HOURS.toNanos(1))).isEqualTo(3);
+	}
+}
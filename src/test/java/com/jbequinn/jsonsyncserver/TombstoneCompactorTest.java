@@ -0,0 +1,125 @@
+package com.jbequinn.jsonsyncserver;
+
+import com.jbequinn.jsonsyncserver.service.TombstoneCompaction;
+import com.jbequinn.jsonsyncserver.service.TombstoneCompactor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TombstoneCompactorTest {
+	private static final long RETENTION_DAYS = 90;
+
+	private JsonSyncServerProperties properties;
+	private FakeSyncRepository repository;
+	private TombstoneCompactor compactor;
+
+	@BeforeEach
+	void setUp() {
+		properties = new JsonSyncServerProperties();
+		properties.setTombstoneRetentionDays(RETENTION_DAYS);
+		repository = new FakeSyncRepository();
+		compactor = new TombstoneCompactor(repository, properties);
+
+		// GIVEN deletions from before the retention period, from 20 days ago, and from yesterday
+		repository.saveNewDeletions(List.of(
+				deletion("expired", daysAgo(100)),
+				deletion("old", daysAgo(20)),
+				deletion("recent", daysAgo(1))));
+	}
+
+	@Test
+	void retentionRemovesTheDeletionsOlderThanTheRetentionPeriod() {
+		// GIVEN the "retention" mode, and a device that synced before all of them
+		properties.setTombstoneCompaction("retention");
+		repository.saveDeviceCursor("device", daysAgo(200), daysAgo(1));
+
+		// WHEN the deletions are compacted
+		var removed = compactor.compact();
+
+		// THEN only the one older than the retention period is removed
+		assertThat(removed).isEqualTo(1);
+		assertThat(remainingSyncIds()).containsExactlyInAnyOrder("old", "recent");
+	}
+
+	@Test
+	void deviceCursorsRemoveTheDeletionsEveryDeviceReceived() {
+		// GIVEN the "device-cursors" mode, and two devices that synced 10 and 5 days ago
+		properties.setTombstoneCompaction("device-cursors");
+		repository.saveDeviceCursor("device", daysAgo(10), daysAgo(1));
+		repository.saveDeviceCursor("another device", daysAgo(5), daysAgo(2));
+		// AND a device that synced long ago, and wasn't seen within the retention period
+		repository.saveDeviceCursor("lost device", daysAgo(150), daysAgo(120));
+
+		// WHEN the deletions are compacted
+		var removed = compactor.compact();
+
+		// THEN those received by every device seen are removed
+		assertThat(removed).isEqualTo(2);
+		assertThat(remainingSyncIds()).containsExactly("recent");
+	}
+
+	@Test
+	void deviceCursorsWithoutDevicesFallBackToTheRetention() {
+		// GIVEN the "device-cursors" mode, and no device known
+		properties.setTombstoneCompaction("device-cursors");
+
+		// WHEN the deletions are compacted
+		compactor.compact();
+
+		// THEN only the one older than the retention period is removed
+		assertThat(remainingSyncIds()).containsExactlyInAnyOrder("old", "recent");
+	}
+
+	@Test
+	void offRemovesNothing() {
+		// GIVEN the compaction off
+		properties.setTombstoneCompaction("off");
+
+		// WHEN the deletions are compacted anyway
+		var removed = compactor.compact();
+
+		// THEN all of them are kept
+		assertThat(removed).isZero();
+		assertThat(remainingSyncIds()).hasSize(3);
+	}
+
+	@Test
+	void unknownCompactionIsRejected() {
+		// GIVEN a mistyped compaction
+		// WHEN it is parsed
+		// THEN it is rejected
+		assertThatThrownBy(() -> TombstoneCompaction.of("device-cursor"))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("device-cursor");
+		// AND the valid ones are not
+		assertThat(TombstoneCompaction.of("off")).isEqualTo(TombstoneCompaction.OFF);
+		assertThat(TombstoneCompaction.of("retention")).isEqualTo(TombstoneCompaction.RETENTION);
+		assertThat(TombstoneCompaction.of("device-cursors")).isEqualTo(TombstoneCompaction.DEVICE_CURSORS);
+	}
+
+	private List<String> remainingSyncIds() {
+		return repository.deletions().stream()
+				.map(deletion -> deletion.getString("sync_id"))
+				.collect(toList());
+	}
+
+	private static long daysAgo(long days) {
+		return Instant.now().getEpochSecond() - TimeUnit.DAYS.toSeconds(days);
+	}
+
+	private static JsonObject deletion(String syncId, long ts) {
+		return Json.createObjectBuilder()
+				.add("sync_id", syncId)
+				.add("ts", ts)
+				.build();
+	}
+}